@@ -0,0 +1,94 @@
+package uk.ac.derby.ldi.sili2.interpreter;
+
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/** Benchmarks of whole programs, typical of the work Sili programs do.
+ *
+ * run measures a compiled program running in a fresh ExecutionContext, as a program run again
+ * and again by an embedding application would.  compileAndRun adds parsing, optimising and
+ * linking, as a single run from the command line does once the JVM has warmed up.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class MacroBenchmark {
+
+	private static final HashMap<String, String> workloads = new HashMap<String, String>();
+
+	static {
+		workloads.put("fib",
+			"function fib(n)\n" +
+			"{\n" +
+			"    r = n\n" +
+			"    if (n > 1)\n" +
+			"        r = fib(n - 1) + fib(n - 2)\n" +
+			"    return r\n" +
+			"}\n" +
+			"type(fib(20))\n");
+		workloads.put("nestedLoops",
+			"total = 0\n" +
+			"for (i = 0; i < 200; i++i)\n" +
+			"{\n" +
+			"    for (j = 0; j < 200; j++j)\n" +
+			"    {\n" +
+			"        total += i * j\n" +
+			"    }\n" +
+			"}\n" +
+			"type(total)\n");
+		// The sum of Example03.sil, over a larger array, many times.
+		workloads.put("arraySum",
+			"function sum(a, b)\n" +
+			"{\n" +
+			"    finalSum = 0\n" +
+			"    for (i = 0; i < b; i++i)\n" +
+			"    {\n" +
+			"        finalSum += a[i]\n" +
+			"    }\n" +
+			"    return finalSum\n" +
+			"}\n" +
+			"arr = [55, 67, 124, 572, 126, 121, 3, 14, 15, 92, 65, 35, 89, 79, 32, 38]\n" +
+			"x = 0\n" +
+			"loop(1000) {\n" +
+			"    x += sum(arr, 16)\n" +
+			"}\n" +
+			"type(x)\n");
+		workloads.put("stringBuilding",
+			"s = \"\"\n" +
+			"for (i = 0; i < 1000; i++i)\n" +
+			"{\n" +
+			"    s += \"x\"\n" +
+			"}\n" +
+			"type(s)\n");
+	}
+
+	@Param({"fib", "nestedLoops", "arraySum", "stringBuilding"})
+	public String workload;
+
+	private String source;
+	private CompiledProgram program;
+	private Output output;
+
+	@Setup
+	public void setup() {
+		source = workloads.get(workload);
+		program = CompiledProgram.compile(source);
+		output = new Output(Writer.nullWriter(), false);
+	}
+
+	@Benchmark
+	public void run() {
+		program.newContext(output).run();
+	}
+
+	@Benchmark
+	public void compileAndRun() {
+		CompiledProgram.compile(source).newContext(output).run();
+	}
+}
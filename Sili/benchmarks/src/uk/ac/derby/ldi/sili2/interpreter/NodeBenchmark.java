@@ -0,0 +1,86 @@
+package uk.ac.derby.ldi.sili2.interpreter;
+
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import uk.ac.derby.ldi.sili2.parser.ast.*;
+import uk.ac.derby.ldi.sili2.values.*;
+
+/** Benchmarks of the tree interpreter executing one node of each common kind.
+ *
+ * Each case is a small program whose last statement holds the node measured.  The program is
+ * compiled as a run would compile it, with variables a, b, s, xs and r as inputs so nothing is
+ * folded away, and the node is executed again and again by a Parser with a display of its own.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class NodeBenchmark {
+
+	private static final String[] inputs = {"a", "b", "s", "xs", "r"};
+
+	// Expressions are measured on their own; other cases are measured as a whole statement.
+	private static final HashMap<String, String> expressions = new HashMap<String, String>();
+	private static final HashMap<String, String> statements = new HashMap<String, String>();
+
+	static {
+		expressions.put("Identifier", "r = a");
+		expressions.put("Add", "r = a + b");
+		expressions.put("AddInteger", "r = a + 42");
+		expressions.put("Subtract", "r = a - b");
+		expressions.put("Times", "r = a * b");
+		expressions.put("Divide", "r = a / b");
+		expressions.put("Pow", "r = a ^ b");
+		expressions.put("AddString", "r = s + s");
+		expressions.put("CompLT", "r = a < b");
+		expressions.put("CompEqual", "r = a == b");
+		expressions.put("And", "r = a < b and b < a");
+		expressions.put("UnaryMinus", "r = -a");
+		expressions.put("ArrayIndex", "r = xs[b]");
+		expressions.put("Call", "function f(x) {\n return x + 1\n}\nr = f(a)");
+		statements.put("Assignment", "r = a");
+		statements.put("AssignmentIncrement", "r += a");
+		statements.put("ArrayAssignment", "xs[b] = a");
+		statements.put("ArrayAssignmentIncrement", "xs[b] += a");
+		statements.put("IfStatement", "if (a < b) r = a else r = b");
+		statements.put("For", "for (i = 0; i < 10; i++i) r += i");
+		statements.put("LoopX", "loop(10) {\n r += a\n}");
+	}
+
+	@Param({"Identifier", "Add", "AddInteger", "Subtract", "Times", "Divide", "Pow", "AddString", "CompLT", "CompEqual", "And", "UnaryMinus",
+		"ArrayIndex", "Call", "Assignment", "AssignmentIncrement", "ArrayAssignment", "ArrayAssignmentIncrement", "IfStatement", "For", "LoopX"})
+	public String node;
+
+	private SimpleNode measured;
+	private Parser parser;
+
+	@Setup
+	public void setup() {
+		boolean expression = expressions.containsKey(node);
+		CompiledProgram program = CompiledProgram.compile(expression ? expressions.get(node) : statements.get(node), inputs);
+		ASTCode code = program.getCode();
+		SimpleNode statement = (SimpleNode)code.jjtGetChild(code.jjtGetNumChildren() - 1).jjtGetChild(0);
+		measured = expression ? (SimpleNode)statement.jjtGetChild(1) : statement;
+		Value[] values = new Value[10];
+		for (int i = 0; i < values.length; i++)
+			values[i] = ValueInteger.valueOf(i);
+		Display display = new Display(program.getMain());
+		display.setArgument(0, 0, ValueInteger.valueOf(7));
+		display.setArgument(0, 1, ValueInteger.valueOf(3));
+		display.setArgument(0, 2, new ValueString("Sili"));
+		display.setArgument(0, 3, new ValueArray(values));
+		display.setArgument(0, 4, ValueInteger.valueOf(0));
+		parser = new Parser(display, new Output(Writer.nullWriter(), false), program.getInvariantCount());
+	}
+
+	@Benchmark
+	public Object execute() {
+		return measured.jjtAccept(parser, null);
+	}
+}
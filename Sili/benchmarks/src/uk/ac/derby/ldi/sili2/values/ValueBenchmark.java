@@ -0,0 +1,157 @@
+package uk.ac.derby.ldi.sili2.values;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/** Microbenchmarks of the Value operations the interpreter performs most.
+ *
+ * Operands are held as Value, as the interpreter holds them, so each operation is an
+ * interface call, as it is when a program runs.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ValueBenchmark {
+
+	private Value integer;
+	private Value otherInteger;
+	private Value rational;
+	private Value otherRational;
+	private Value string;
+	private Value otherString;
+	private Value bool;
+	private ValueArray integers;
+	private ValueArray rationals;
+	private ValueArray mixed;
+	private int index;
+
+	@Setup
+	public void setup() {
+		integer = ValueInteger.valueOf(1234);
+		otherInteger = ValueInteger.valueOf(56);
+		rational = new ValueRational(12.34);
+		otherRational = new ValueRational(5.6);
+		string = new ValueString("Sili");
+		otherString = new ValueString("benchmark");
+		bool = ValueBoolean.TRUE;
+		Value[] values = new Value[64];
+		for (int i = 0; i < values.length; i++)
+			values[i] = ValueInteger.valueOf(i);
+		integers = new ValueArray(values.clone());
+		for (int i = 0; i < values.length; i++)
+			values[i] = new ValueRational(i);
+		rationals = new ValueArray(values.clone());
+		values[0] = string;
+		mixed = new ValueArray(values.clone());
+		index = 17;
+	}
+
+	@Benchmark
+	public Value integerValueOf() {
+		return ValueInteger.valueOf(index * 1000);
+	}
+
+	@Benchmark
+	public Value integerAdd() {
+		return integer.add(otherInteger);
+	}
+
+	@Benchmark
+	public Value integerSubtract() {
+		return integer.subtract(otherInteger);
+	}
+
+	@Benchmark
+	public Value integerMult() {
+		return integer.mult(otherInteger);
+	}
+
+	@Benchmark
+	public Value integerDiv() {
+		return integer.div(otherInteger);
+	}
+
+	@Benchmark
+	public int integerCompare() {
+		return integer.compare(otherInteger);
+	}
+
+	@Benchmark
+	public Value integerEq() {
+		return integer.eq(otherInteger);
+	}
+
+	@Benchmark
+	public Value integerAddRational() {
+		return integer.add(rational);
+	}
+
+	@Benchmark
+	public Value rationalAdd() {
+		return rational.add(otherRational);
+	}
+
+	@Benchmark
+	public Value rationalMult() {
+		return rational.mult(otherRational);
+	}
+
+	@Benchmark
+	public Value rationalPow() {
+		return rational.pow(otherRational);
+	}
+
+	@Benchmark
+	public Value stringAdd() {
+		return string.add(otherString);
+	}
+
+	@Benchmark
+	public int stringCompare() {
+		return string.compare(otherString);
+	}
+
+	@Benchmark
+	public Value booleanAnd() {
+		return bool.and(bool);
+	}
+
+	@Benchmark
+	public Value integerArrayGetIndex() {
+		return integers.getIndex(index);
+	}
+
+	@Benchmark
+	public void integerArraySetIndex() {
+		integers.setIndex(index, otherInteger);
+	}
+
+	@Benchmark
+	public void integerArrayAddIndex() {
+		integers.addIndex(index, otherInteger);
+	}
+
+	@Benchmark
+	public Value rationalArrayGetIndex() {
+		return rationals.getIndex(index);
+	}
+
+	@Benchmark
+	public void rationalArrayAddIndex() {
+		rationals.addIndex(index, otherRational);
+	}
+
+	@Benchmark
+	public Value mixedArrayGetIndex() {
+		return mixed.getIndex(index);
+	}
+
+	@Benchmark
+	public void mixedArrayAddIndex() {
+		mixed.addIndex(index, otherRational);
+	}
+}
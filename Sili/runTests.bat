@@ -16,4 +16,58 @@ java -classpath ./bin Sili < ./Example/Example05.sil
 pause
 echo "=== Example06.sil ==="
 java -classpath ./bin Sili < ./Example/Example06.sil
+pause
+echo "=== Example07.sil ==="
+java -classpath ./bin Sili < ./Example/Example07.sil
+pause
+echo "=== Example08.sil ==="
+java -classpath ./bin Sili < ./Example/Example08.sil
+pause
+echo "=== Example09.sil ==="
+java -classpath ./bin Sili < ./Example/Example09.sil
+pause
+echo "=== Example10.sil ==="
+java -classpath ./bin Sili < ./Example/Example10.sil
+pause
+echo "=== Example11.sil ==="
+java -classpath ./bin Sili < ./Example/Example11.sil
+pause
+echo "=== Example12.sil ==="
+java -classpath ./bin Sili < ./Example/Example12.sil
+pause
+echo "=== Example07.sil (-c) ==="
+java -classpath ./bin Sili -c < ./Example/Example07.sil
+pause
+echo "=== Example08.sil (-c) ==="
+java -classpath ./bin Sili -c < ./Example/Example08.sil
+pause
+echo "=== Example09.sil (-c) ==="
+java -classpath ./bin Sili -c < ./Example/Example09.sil
+pause
+echo "=== Example10.sil (-c) ==="
+java -classpath ./bin Sili -c < ./Example/Example10.sil
+pause
+echo "=== Example11.sil (-c) ==="
+java -classpath ./bin Sili -c < ./Example/Example11.sil
+pause
+echo "=== Example12.sil (-c) ==="
+java -classpath ./bin Sili -c < ./Example/Example12.sil
+pause
+echo "=== Example07.sil (-v) ==="
+java -classpath ./bin Sili -v < ./Example/Example07.sil
+pause
+echo "=== Example08.sil (-v) ==="
+java -classpath ./bin Sili -v < ./Example/Example08.sil
+pause
+echo "=== Example09.sil (-v) ==="
+java -classpath ./bin Sili -v < ./Example/Example09.sil
+pause
+echo "=== Example10.sil (-v) ==="
+java -classpath ./bin Sili -v < ./Example/Example10.sil
+pause
+echo "=== Example11.sil (-v) ==="
+java -classpath ./bin Sili -v < ./Example/Example11.sil
+pause
+echo "=== Example12.sil (-v) ==="
+java -classpath ./bin Sili -v < ./Example/Example12.sil
 pause
\ No newline at end of file
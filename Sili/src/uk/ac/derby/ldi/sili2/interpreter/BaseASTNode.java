@@ -21,4 +21,11 @@ public class BaseASTNode {
 	// reference a compiled function definition, so that the function needn't be redefined
 	// on every execution.	
 	public Object optimised = null;
+
+	// The source line the node starts on, set at parse-time.  0 for a node the optimiser made.
+	public int line = 0;
+
+	// The types of value the node can evaluate to, as a set of TypeInference bits, once the program has
+	// been analysed.  0 if it hasn't been, or the node gives no value.
+	public int inferredType = 0;
 }
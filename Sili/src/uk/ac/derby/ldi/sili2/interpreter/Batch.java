@@ -0,0 +1,122 @@
+package uk.ac.derby.ldi.sili2.interpreter;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import uk.ac.derby.ldi.sili2.parser.ast.ASTCode;
+
+/** Runs many Sili programs in one JVM, on a pool of worker threads.
+ *
+ * Each program is parsed, optimised and run by itself, with its own display and its own
+ * Output, which collects what it writes in memory.  When all the programs have finished,
+ * their outputs are written in the order the programs were given, each headed by the
+ * program's name and the time it took to parse and run.
+ */
+class Batch {
+
+	private final int workers;
+	private final int megabytes;
+	private final boolean runVM;
+	private final boolean runCompiled;
+	private final ProgramCache cache;
+
+	// The result of running one program.
+	private static class Result {
+		private final String output;
+		private final double milliseconds;
+
+		Result(String output, double milliseconds) {
+			this.output = output;
+			this.milliseconds = milliseconds;
+		}
+	}
+
+	/** Ctor.  Each worker's call stack is limited to the given number of megabytes.  The cache may be null. */
+	Batch(int workers, int megabytes, boolean runVM, boolean runCompiled, ProgramCache cache) {
+		this.workers = workers;
+		this.megabytes = megabytes;
+		this.runVM = runVM;
+		this.runCompiled = runCompiled;
+		this.cache = cache;
+	}
+
+	/** Get the programs named by a list of files and directories.  Directories are searched, at any depth,
+	 * for .sil files, which are taken in order of name. */
+	static List<Path> findPrograms(List<String> names) throws IOException {
+		ArrayList<Path> programs = new ArrayList<Path>();
+		for (String name: names) {
+			Path path = Paths.get(name);
+			if (Files.isDirectory(path)) {
+				try (Stream<Path> found = Files.walk(path)) {
+					programs.addAll(found.filter(p -> Files.isRegularFile(p) && p.toString().endsWith(".sil")).sorted().collect(Collectors.toList()));
+				}
+			} else
+				programs.add(path);
+		}
+		return programs;
+	}
+
+	/** Run programs, and write their outputs and times to a given Output. */
+	void run(List<Path> programs, Output output) throws InterruptedException {
+		final long stackBytes = (long)megabytes << 20;
+		ExecutorService pool = Executors.newFixedThreadPool(workers, new ThreadFactory() {
+			private int count = 0;
+			public synchronized Thread newThread(Runnable runnable) {
+				// As in single runs, recursion depth is set by the stack limit rather than -Xss.
+				Thread thread = new Thread(null, runnable, "sili-" + ++count, stackBytes);
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		long start = System.nanoTime();
+		ArrayList<Future<Result>> results = new ArrayList<Future<Result>>();
+		for (Path program: programs)
+			results.add(pool.submit(() -> run(program, stackBytes)));
+		try {
+			for (int i = 0; i < programs.size(); i++) {
+				Result result;
+				try {
+					result = results.get(i).get();
+				} catch (ExecutionException e) {
+					result = new Result(e.getCause().toString() + System.lineSeparator(), 0);
+				}
+				output.println(String.format("=== %s (%.3f ms) ===", programs.get(i), result.milliseconds));
+				output.print(result.output);
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+		output.println(String.format("=== %d programs in %.3f ms, %d worker(s) ===", programs.size(), (System.nanoTime() - start) / 1e6, workers));
+	}
+
+	// Parse, optimise and run one program, collecting its output.
+	private Result run(Path program, long stackBytes) {
+		long start = System.nanoTime();
+		StringWriter text = new StringWriter();
+		Output output = new Output(text, false);
+		try {
+			ASTCode code = Interpreter.load(Files.readAllBytes(program), cache, false);
+			Interpreter.execute(code, runVM, runCompiled, stackBytes, output);
+		} catch (IOException e) {
+			output.println("Unable to read " + program + ": " + e);
+		} catch (StackOverflowError e) {
+			output.println("Stack overflow: recursion exceeds the " + megabytes + " megabyte call stack limit.");
+		} catch (Throwable e) {
+			output.println(e.getMessage());
+		}
+		output.flush();
+		return new Result(text.toString(), (System.nanoTime() - start) / 1e6);
+	}
+}
@@ -0,0 +1,861 @@
+package uk.ac.derby.ldi.sili2.interpreter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.OutputStream;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileManager;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+
+import uk.ac.derby.ldi.sili2.parser.ast.*;
+
+/** Compiles a Sili program to a JVM class, as an alternative to interpreting it with Parser.
+ *
+ * The program is resolved statically by Resolver, translated to the source of a subclass
+ * of CompiledCode, and compiled in memory by the JDK's compiler.  The main program becomes
+ * its execute() method and every FunctionDefinition becomes a method of its own, so HotSpot
+ * can inline and register-allocate Sili code.  Variables live in Java locals unless an
+ * inner function references them, in which case they live in a frame installed in the display.
+ *
+ * A program compiled to run by itself also gets a main method, which runs it as the interpreter
+ * would; StandaloneCompiler puts it in a jar.
+ *
+ * TieredCompiler uses it to compile just the hot functions of a program that is being
+ * interpreted, as a subclass of CompiledUnit that calls them by number.  Their arithmetic and comparisons are then specialised for integers wherever
+ * Parser has only seen integers, guarded by CompiledCode.integers().
+ *
+ * Either way, arithmetic and comparisons whose operands TypeInference has proven to be
+ * integers are done on longs with no guard.
+ */
+class BytecodeCompiler implements SiliVisitor {
+
+	static final String packageName = "uk.ac.derby.ldi.sili2.compiled";
+	static final String className = "Program";
+
+	private static final String ifTestMessage = "The test expression of an if statement must be boolean.";
+	private static final String forTestMessage = "The test expression of a for loop must be boolean.";
+
+	private final Resolver resolver;
+	private final IdentityHashMap<FunctionDefinition, String> methodNames = new IdentityHashMap<FunctionDefinition, String>();
+	private final ArrayList<FunctionDefinition> functions = new ArrayList<FunctionDefinition>();
+	private final boolean tiered;
+	private final StringBuilder constants = new StringBuilder();
+	private final StringBuilder methods = new StringBuilder();
+	private int constantCount = 0;
+	private int temporaryCount = 0;
+	private String source = null;
+
+	// Arguments of CompiledCode.launch for the main method of a program compiled to run by itself, or null if it has none
+	private String launch = null;
+
+	// State of the method being generated
+	private FunctionDefinition function;
+	private StringBuilder code;
+	private int indent;
+
+	/** Ctor */
+	BytecodeCompiler(ASTCode program) {
+		resolver = new Resolver(program);
+		new TypeInference(resolver).infer();
+		for (FunctionDefinition definition: resolver.getFunctions())
+			functions.add(definition);
+		tiered = false;
+		nameMethods();
+	}
+
+	/** Ctor for compiling some functions of a program that has been resolved, and has run for a while.  The
+	 * functions may only call each other, and may only use their own variables. */
+	BytecodeCompiler(Resolver resolver, Iterable<FunctionDefinition> hotFunctions) {
+		this.resolver = resolver;
+		for (FunctionDefinition definition: hotFunctions)
+			functions.add(definition);
+		tiered = true;
+		nameMethods();
+	}
+
+	private void nameMethods() {
+		int methodNumber = 0;
+		for (FunctionDefinition definition: functions)
+			methodNames.put(definition, "fn" + methodNumber++);
+	}
+
+	/** Get the Java source of the compiled program. */
+	String generate() {
+		if (source != null)
+			return source;
+		if (tiered)
+			compileInvoke();
+		else
+			compileFunction(resolver.getMain());
+		for (FunctionDefinition definition: functions)
+			compileFunction(definition);
+		code = new StringBuilder();
+		code.append("package " + packageName + ";\n\n");
+		code.append("import uk.ac.derby.ldi.sili2.values.*;\n\n");
+		code.append("public final class " + className + " extends uk.ac.derby.ldi.sili2.interpreter."
+			+ (tiered ? "CompiledUnit" : "CompiledCode") + " {\n");
+		code.append(constants);
+		code.append(methods);
+		if (launch != null)
+			code.append("\tpublic static void main(String[] args) {\n\t\tlaunch(new " + className + "(), " + launch + ");\n\t}\n");
+		code.append("}\n");
+		source = code.toString();
+		code = null;
+		return source;
+	}
+
+	/** Compile the program to a JVM class and return a new instance of it. */
+	CompiledCode compile() {
+		HashMap<String, byte[]> classes = compileClasses();
+		try {
+			ClassLoader loader = new ClassFileLoader(classes);
+			return (CompiledCode)loader.loadClass(packageName + "." + className).getDeclaredConstructor().newInstance();
+		} catch (ReflectiveOperationException e) {
+			throw new ExceptionSemantic("Unable to load compiled program: " + e);
+		}
+	}
+
+	/** Compile the program to a JVM class with a main method, which runs it on a call stack of a given number of
+	 * megabytes and writes to standard output.  Return the class files, keyed by class name. */
+	HashMap<String, byte[]> compileStandalone(int megabytes, boolean flushEveryLine) {
+		launch = megabytes + ", " + flushEveryLine;
+		return compileClasses();
+	}
+
+	// Compile the program, and return the class files, keyed by class name.
+	private HashMap<String, byte[]> compileClasses() {
+		JavaCompiler javac = ToolProvider.getSystemJavaCompiler();
+		if (javac == null)
+			throw new ExceptionSemantic("A Java compiler is needed to compile Sili programs, but none is available.");
+		DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<JavaFileObject>();
+		ClassFileManager fileManager = new ClassFileManager(javac.getStandardFileManager(diagnostics, null, null));
+		ArrayList<String> options = new ArrayList<String>();
+		options.add("-classpath");
+		options.add(getClassPath());
+		options.add("-g:none");
+		options.add("-proc:none");
+		JavaFileObject source = new SourceFile(packageName.replace('.', '/') + "/" + className, generate());
+		if (!javac.getTask(null, fileManager, diagnostics, options, null, Collections.singletonList(source)).call()) {
+			String message = "Unable to compile program.";
+			for (Diagnostic<? extends JavaFileObject> diagnostic: diagnostics.getDiagnostics())
+				if (diagnostic.getKind() == Diagnostic.Kind.ERROR) {
+					message += " " + diagnostic.getMessage(null);
+					break;
+				}
+			throw new ExceptionSemantic(message);
+		}
+		return fileManager.getClasses();
+	}
+
+	// Class path used to compile generated code; it must be able to see CompiledCode and the values.
+	private static String getClassPath() {
+		String classPath = System.getProperty("java.class.path");
+		try {
+			String location = new File(CompiledCode.class.getProtectionDomain().getCodeSource().getLocation().toURI()).getPath();
+			return (classPath == null || classPath.length() == 0) ? location : location + File.pathSeparator + classPath;
+		} catch (Exception e) {
+			return classPath;
+		}
+	}
+
+	/** In-memory Java source. */
+	private static class SourceFile extends SimpleJavaFileObject {
+		private final String source;
+
+		SourceFile(String name, String source) {
+			super(URI.create("string:///" + name + Kind.SOURCE.extension), Kind.SOURCE);
+			this.source = source;
+		}
+
+		public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+			return source;
+		}
+	}
+
+	/** In-memory class file. */
+	private static class ClassFile extends SimpleJavaFileObject {
+		private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+		ClassFile(String name) {
+			super(URI.create("bytes:///" + name.replace('.', '/') + Kind.CLASS.extension), Kind.CLASS);
+		}
+
+		public OutputStream openOutputStream() {
+			return bytes;
+		}
+
+		byte[] getBytes() {
+			return bytes.toByteArray();
+		}
+	}
+
+	/** Collects generated class files in memory. */
+	private static class ClassFileManager extends ForwardingJavaFileManager<StandardJavaFileManager> {
+		private final HashMap<String, ClassFile> classes = new HashMap<String, ClassFile>();
+
+		ClassFileManager(StandardJavaFileManager fileManager) {
+			super(fileManager);
+		}
+
+		public JavaFileObject getJavaFileForOutput(JavaFileManager.Location location, String name, JavaFileObject.Kind kind, FileObject sibling) {
+			ClassFile file = new ClassFile(name);
+			classes.put(name, file);
+			return file;
+		}
+
+		HashMap<String, byte[]> getClasses() {
+			HashMap<String, byte[]> result = new HashMap<String, byte[]>();
+			for (String name: classes.keySet())
+				result.put(name, classes.get(name).getBytes());
+			return result;
+		}
+	}
+
+	/** Loads generated classes. */
+	private static class ClassFileLoader extends ClassLoader {
+		private final HashMap<String, byte[]> classes;
+
+		ClassFileLoader(HashMap<String, byte[]> classes) {
+			super(CompiledCode.class.getClassLoader());
+			this.classes = classes;
+		}
+
+		protected Class<?> findClass(String name) throws ClassNotFoundException {
+			byte[] bytes = classes.get(name);
+			if (bytes == null)
+				throw new ClassNotFoundException(name);
+			return defineClass(name, bytes, 0, bytes.length);
+		}
+	}
+
+	// Return a Java string literal.
+	private static String quote(String s) {
+		StringBuilder sb = new StringBuilder("\"");
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c == '"' || c == '\\')
+				sb.append('\\').append(c);
+			else if (c < 0x20)
+				sb.append(String.format("\\%03o", (int)c));
+			else if (c > 0x7e)
+				sb.append(String.format("\\u%04x", (int)c));
+			else
+				sb.append(c);
+		}
+		return sb.append('"').toString();
+	}
+
+	// Define a constant and return its name.
+	private String constant(String type, String initialiser) {
+		String name = "c" + constantCount++;
+		constants.append("\tprivate static final " + type + " " + name + " = " + initialiser + ";\n");
+		return name;
+	}
+
+	// Return a new name for a Java local.
+	private String temporary() {
+		return "t" + temporaryCount++;
+	}
+
+	// Emit a line of code in the current method.
+	private void emit(String line) {
+		for (int i = 0; i < indent; i++)
+			code.append('\t');
+		code.append(line).append('\n');
+	}
+
+	// Emit a statement, wrapped in braces.
+	private void emitBlock(Node node) {
+		indent++;
+		node.jjtAccept(this, null);
+		indent--;
+	}
+
+	// Get the ith child of a given node.
+	private static SimpleNode getChild(SimpleNode node, int childIndex) {
+		return (SimpleNode)node.jjtGetChild(childIndex);
+	}
+
+	// Get the token value of the ith child of a given node.
+	private static String getTokenOfChild(SimpleNode node, int childIndex) {
+		return getChild(node, childIndex).tokenValue;
+	}
+
+	// Compile a child expression of the given node.
+	private String doChild(SimpleNode node, int childIndex) {
+		return (String)node.jjtGetChild(childIndex).jjtAccept(this, null);
+	}
+
+	// Compile all child statements of the given node.
+	private Object doChildren(SimpleNode node, Object data) {
+		return node.childrenAccept(this, data);
+	}
+
+	// Java expression that reads or writes a variable.
+	private String variable(Resolver.Variable variable) {
+		if (variable.getScope() != function)
+			return "display[" + variable.getLevel() + "][" + variable.getSlot() + "]";
+		if (resolver.isCaptured(function, variable.getSlot()))
+			return "f[" + variable.getSlot() + "]";
+		return "v" + variable.getSlot();
+	}
+
+	// Java expression that reads a variable referenced by a node.  Reading a variable that hasn't been
+	// assigned fails as it does in Parser; parameters always have been.
+	private String dereference(SimpleNode node) {
+		Resolver.Variable variable = resolver.getVariable(node);
+		if (variable.getScope() == function && variable.getSlot() < function.getParameterCount())
+			return variable(variable);
+		String name = (node instanceof ASTDereference) ? node.tokenValue : getTokenOfChild(node, 0);
+		return "defined(" + variable(variable) + ", " + quote(name) + ")";
+	}
+
+	// Java expression that invokes a function.  Resolver has checked the call.
+	private String invoke(SimpleNode node) {
+		FunctionDefinition definition = resolver.getFunction(node);
+		SimpleNode arglist = getChild(node, 1);
+		String arguments = "";
+		for (int i = 0; i < arglist.jjtGetNumChildren(); i++)
+			arguments += ((i == 0) ? "" : ", ") + doChild(arglist, i);
+		return methodNames.get(definition) + "(" + arguments + ")";
+	}
+
+	// Generate invoke(), which calls the compiled functions.
+	private void compileInvoke() {
+		code = new StringBuilder();
+		indent = 1;
+		emit("public Value invoke(int function, Value[] a) {");
+		emit("\tswitch (function) {");
+		for (int i = 0; i < functions.size(); i++) {
+			FunctionDefinition definition = functions.get(i);
+			String arguments = "";
+			for (int j = 0; j < definition.getParameterCount(); j++)
+				arguments += ((j == 0) ? "" : ", ") + "a[" + j + "]";
+			emit("\tcase " + i + ": return " + methodNames.get(definition) + "(" + arguments + ");");
+		}
+		emit("\tdefault: throw new IllegalArgumentException();");
+		emit("\t}");
+		emit("}");
+		methods.append(code);
+		methods.append('\n');
+		code = null;
+	}
+
+	// Generate the method for a function, or execute() for the main program.
+	private void compileFunction(FunctionDefinition definition) {
+		function = definition;
+		code = new StringBuilder();
+		indent = 1;
+		boolean isMain = (definition == resolver.getMain());
+		if (isMain)
+			emit("public void execute() {");
+		else {
+			String parameters = "";
+			for (int i = 0; i < definition.getParameterCount(); i++)
+				parameters += ((i == 0) ? "" : ", ") + "Value p" + i;
+			emit("// " + definition.getSignature().replace('\n', ' '));
+			emit("private Value " + methodNames.get(definition) + "(" + parameters + ") {");
+		}
+		indent++;
+		boolean hasFrame = resolver.hasCaptured(definition);
+		if (hasFrame) {
+			emit("Value[] f = new Value[" + definition.getLocalCount() + "];");
+			emit("Value[] saved = display[" + definition.getLevel() + "];");
+			emit("display[" + definition.getLevel() + "] = f;");
+		}
+		for (int slot = 0; slot < definition.getLocalCount(); slot++) {
+			String initialiser = (slot < definition.getParameterCount()) ? "p" + slot : "null";
+			if (!resolver.isCaptured(definition, slot))
+				emit("Value v" + slot + " = " + initialiser + ";");
+			else if (slot < definition.getParameterCount())
+				emit("f[" + slot + "] = " + initialiser + ";");
+		}
+		if (hasFrame) {
+			emit("try {");
+			indent++;
+		}
+		definition.getFunctionBody().jjtAccept(this, null);
+		if (definition.hasReturn())
+			emit("return " + doChild(definition.getFunctionReturnExpression(), 0) + ";");
+		else if (!isMain)
+			emit("return null;");
+		if (hasFrame) {
+			indent--;
+			emit("} finally {");
+			emit("\tdisplay[" + definition.getLevel() + "] = saved;");
+			emit("}");
+		}
+		indent--;
+		emit("}");
+		methods.append(code);
+		methods.append('\n');
+		code = null;
+	}
+
+	// Called if one of the following methods is missing...
+	public Object visit(SimpleNode node, Object data) {
+		throw new ExceptionSemantic(node + ": compiler not implemented for this node.");
+	}
+
+	// A Sili program
+	public Object visit(ASTCode node, Object data) {
+		return doChildren(node, data);
+	}
+
+	// A statement
+	public Object visit(ASTStatement node, Object data) {
+		return doChildren(node, data);
+	}
+
+	// A block
+	public Object visit(ASTBlock node, Object data) {
+		return doChildren(node, data);
+	}
+
+	// Function definition; its body is compiled to a method of its own.
+	public Object visit(ASTFnDef node, Object data) {
+		return data;
+	}
+
+	// Function definition parameter list
+	public Object visit(ASTParmlist node, Object data) {
+		return data;
+	}
+
+	// Function body
+	public Object visit(ASTFnBody node, Object data) {
+		return doChildren(node, data);
+	}
+
+	// Function return expression
+	public Object visit(ASTReturnExpression node, Object data) {
+		return doChild(node, 0);
+	}
+
+	// Function call
+	public Object visit(ASTCall node, Object data) {
+		emit(invoke(node) + ";");
+		return data;
+	}
+
+	// Function invocation in an expression
+	public Object visit(ASTFnInvoke node, Object data) {
+		return invoke(node);
+	}
+
+	// Function invocation argument list; compiled by invoke().
+	public Object visit(ASTArgList node, Object data) {
+		return data;
+	}
+
+	// IF
+	public Object visit(ASTIfStatement node, Object data) {
+		emit("if (test(" + doChild(node, 0) + ", " + quote(ifTestMessage) + ")) {");
+		emitBlock(node.jjtGetChild(1));
+		if (node.ifHasElse) {
+			emit("} else {");
+			emitBlock(node.jjtGetChild(2));
+		}
+		emit("}");
+		return data;
+	}
+
+	// FOR loop
+	public Object visit(ASTFor node, Object data) {
+		node.jjtGetChild(0).jjtAccept(this, data);
+		emit("while (true) {");
+		indent++;
+		emit("if (!test(" + doChild(node, 1) + ", " + quote(forTestMessage) + "))");
+		emit("\tbreak;");
+		node.jjtGetChild(3).jjtAccept(this, data);
+		node.jjtGetChild(2).jjtAccept(this, data);
+		indent--;
+		emit("}");
+		return data;
+	}
+
+	// Quadratic equation
+	public Object visit(ASTQuad node, Object data) {
+		emit("quad(out, " + doChild(node, 0) + ", " + doChild(node, 1) + ", " + doChild(node, 2) + ");");
+		return data;
+	}
+
+	// Line equation
+	public Object visit(ASTLine node, Object data) {
+		emit("line(out, " + doChild(node, 0) + ", " + doChild(node, 1) + ", " + doChild(node, 2) + ", " + doChild(node, 3) + ");");
+		return data;
+	}
+
+	// Speed equation
+	public Object visit(ASTSpeed node, Object data) {
+		emit("speed(out, " + doChild(node, 0) + ", " + doChild(node, 1) + ");");
+		return data;
+	}
+
+	// Time equation
+	public Object visit(ASTTime node, Object data) {
+		emit("time(out, " + doChild(node, 0) + ", " + doChild(node, 1) + ");");
+		return data;
+	}
+
+	// Distance equation
+	public Object visit(ASTDistance node, Object data) {
+		emit("distance(out, " + doChild(node, 0) + ", " + doChild(node, 1) + ");");
+		return data;
+	}
+
+	// While loop
+	public Object visit(ASTWhile node, Object data) {
+		emit("while (whileTest(" + doChild(node, 0) + ")) {");
+		emitBlock(node.jjtGetChild(1));
+		emit("}");
+		return data;
+	}
+
+	// Loop x number of times; the count is re-evaluated on every iteration, as Parser does.
+	public Object visit(ASTLoopX node, Object data) {
+		String count = temporary();
+		emit("for (double " + count + " = 0; " + count + " != " + doChild(node, 0) + ".doubleValue(); " + count + " = " + count + " + 1) {");
+		emitBlock(node.jjtGetChild(1));
+		emit("}");
+		return data;
+	}
+
+	// Find Y from line equation
+	public Object visit(ASTPointY node, Object data) {
+		emit("pointY(out, " + doChild(node, 0) + ", " + doChild(node, 1) + ", " + doChild(node, 2) + ");");
+		return data;
+	}
+
+	// Find X from line equation
+	public Object visit(ASTPointX node, Object data) {
+		emit("pointX(out, " + doChild(node, 0) + ", " + doChild(node, 1) + ", " + doChild(node, 2) + ");");
+		return data;
+	}
+
+	// Identifier
+	public Object visit(ASTIdentifier node, Object data) {
+		return data;
+	}
+
+	// TYPE statement
+	public Object visit(ASTType node, Object data) {
+		emit("type(out, " + doChild(node, 0) + ");");
+		return data;
+	}
+
+	// TYPEREPEAT statement
+	public Object visit(ASTTypeRepeat node, Object data) {
+		String count = temporary();
+		emit("for (long " + count + " = 0; " + count + " != " + doChild(node, 1) + ".longValue(); " + count + "++) {");
+		indent++;
+		emit("type(out, " + doChild(node, 0) + ");");
+		node.jjtGetChild(2).jjtAccept(this, data);
+		indent--;
+		emit("}");
+		return data;
+	}
+
+	// Dereference a variable or parameter
+	public Object visit(ASTDereference node, Object data) {
+		return dereference(node);
+	}
+
+	// Array literal
+	public Object visit(ASTArrayList node, Object data) {
+		String values = "";
+		for (int i = 0; i < node.jjtGetNumChildren(); i++)
+			values += ((i == 0) ? "" : ", ") + doChild(node, i);
+		return "array(" + values + ")";
+	}
+
+	// Array index
+	public Object visit(ASTArrayIndex node, Object data) {
+		return "getIndex(" + doChild(node, 1) + ", " + dereference(node) + ")";
+	}
+
+	// Assignment statement
+	public Object visit(ASTAssignment node, Object data) {
+		emit(variable(resolver.getVariable(node)) + " = " + doChild(node, 1) + ";");
+		return data;
+	}
+
+	// Emit an assignment that applies a Value operation to the current value.
+	private void assignOperation(SimpleNode node, String operation) {
+		emit(variable(resolver.getVariable(node)) + " = " + dereference(node) + "." + operation + "(" + doChild(node, 1) + ");");
+	}
+
+	// Emit an increment or decrement by one of an integer value.
+	private void assignStep(SimpleNode node, String step) {
+		emit(variable(resolver.getVariable(node)) + " = ValueInteger.valueOf(" + doChild(node, 1) + ".longValue() " + step + ");");
+	}
+
+	// Assignment increment statement
+	public Object visit(ASTAssignmentIncrement node, Object data) {
+		assignOperation(node, "add");
+		return data;
+	}
+
+	// Assignment mul statement
+	public Object visit(ASTAssignmentMul node, Object data) {
+		assignOperation(node, "mult");
+		return data;
+	}
+
+	// Assignment div statement
+	public Object visit(ASTAssignmentDiv node, Object data) {
+		assignOperation(node, "div");
+		return data;
+	}
+
+	// Assignment increment statement solo
+	public Object visit(ASTAssignmentIncrementSolo node, Object data) {
+		assignStep(node, "+ 1");
+		return data;
+	}
+
+	// Assignment decrement statement
+	public Object visit(ASTAssignmentDecrement node, Object data) {
+		assignOperation(node, "subtract");
+		return data;
+	}
+
+	// Assignment decrement statement solo
+	public Object visit(ASTAssignmentDecrementSolo node, Object data) {
+		assignStep(node, "- 1");
+		return data;
+	}
+
+	// Emit an array element assignment.
+	private void assignIndex(SimpleNode node, String operation) {
+		emit(operation + "(" + doChild(node, 1) + ", " + doChild(node, 2) + ", " + dereference(node) + ");");
+	}
+
+	// Array assignment statement
+	public Object visit(ASTArrayAssignment node, Object data) {
+		assignIndex(node, "setIndex");
+		return data;
+	}
+
+	// Array increment
+	public Object visit(ASTArrayAssignmentIncrement node, Object data) {
+		assignIndex(node, "addIndex");
+		return data;
+	}
+
+	// Array decrement
+	public Object visit(ASTArrayAssignmentDecrement node, Object data) {
+		assignIndex(node, "subIndex");
+		return data;
+	}
+
+	// Array multiply
+	public Object visit(ASTArrayAssignmentMul node, Object data) {
+		assignIndex(node, "multIndex");
+		return data;
+	}
+
+	// Array divide
+	public Object visit(ASTArrayAssignmentDiv node, Object data) {
+		assignIndex(node, "divIndex");
+		return data;
+	}
+
+	// Return a binary Value operation.
+	private String binary(SimpleNode node, String operation) {
+		return doChild(node, 0) + "." + operation + "(" + doChild(node, 1) + ")";
+	}
+
+	// Return a binary Value operation, which is done on longs if its operands are proven to be integers,
+	// or when compiling hot functions if Parser has only seen integer operands.  The integer result is
+	// a format of the two longs.
+	private String binary(SimpleNode node, String operation, String integerResult) {
+		if (getChild(node, 0).inferredType == TypeInference.INTEGER && getChild(node, 1).inferredType == TypeInference.INTEGER)
+			return String.format(integerResult, "((ValueInteger)(" + doChild(node, 0) + ")).longValue()", "((ValueInteger)(" + doChild(node, 1) + ")).longValue()");
+		if (!tiered || node.optimised != Specialisation.INTEGER)
+			return binary(node, operation);
+		String left = temporary();
+		String right = temporary();
+		emit("Value " + left + ";");
+		emit("Value " + right + ";");
+		String a = "((ValueInteger)" + left + ").longValue()";
+		String b = "((ValueInteger)" + right + ").longValue()";
+		return "(integers(" + left + " = " + doChild(node, 0) + ", " + right + " = " + doChild(node, 1) + ") ? "
+			+ String.format(integerResult, a, b) + " : " + left + "." + operation + "(" + right + "))";
+	}
+
+	// Return a trigonometric operation, which is always performed on a rational.
+	private String trigonometric(SimpleNode node, String operation) {
+		return "new ValueRational(" + doChild(node, 0) + ".doubleValue())." + operation + "()";
+	}
+
+	// OR.  The right operand isn't evaluated if the left one is true.
+	public Object visit(ASTOr node, Object data) {
+		String left = temporary();
+		emit("Value " + left + ";");
+		return "(isTrue(" + left + " = " + doChild(node, 0) + ") ? ValueBoolean.TRUE : " + left + ".or(" + doChild(node, 1) + "))";
+	}
+
+	// AND.  The right operand isn't evaluated if the left one is false.
+	public Object visit(ASTAnd node, Object data) {
+		String left = temporary();
+		emit("Value " + left + ";");
+		return "(isFalse(" + left + " = " + doChild(node, 0) + ") ? ValueBoolean.FALSE : " + left + ".and(" + doChild(node, 1) + "))";
+	}
+
+	// ==
+	public Object visit(ASTCompEqual node, Object data) {
+		return binary(node, "eq", "ValueBoolean.valueOf(%s == %s)");
+	}
+
+	// !=
+	public Object visit(ASTCompNequal node, Object data) {
+		return binary(node, "neq", "ValueBoolean.valueOf(%s != %s)");
+	}
+
+	// >=
+	public Object visit(ASTCompGTE node, Object data) {
+		return binary(node, "gte", "ValueBoolean.valueOf(%s >= %s)");
+	}
+
+	// <=
+	public Object visit(ASTCompLTE node, Object data) {
+		return binary(node, "lte", "ValueBoolean.valueOf(%s <= %s)");
+	}
+
+	// >
+	public Object visit(ASTCompGT node, Object data) {
+		return binary(node, "gt", "ValueBoolean.valueOf(%s > %s)");
+	}
+
+	// <
+	public Object visit(ASTCompLT node, Object data) {
+		return binary(node, "lt", "ValueBoolean.valueOf(%s < %s)");
+	}
+
+	// +
+	public Object visit(ASTAdd node, Object data) {
+		return binary(node, "add", "ValueInteger.valueOf(%s + %s)");
+	}
+
+	// -
+	public Object visit(ASTSubtract node, Object data) {
+		return binary(node, "subtract", "ValueInteger.valueOf(%s - %s)");
+	}
+
+	// *
+	public Object visit(ASTTimes node, Object data) {
+		return binary(node, "mult", "ValueInteger.valueOf(%s * %s)");
+	}
+
+	// /
+	public Object visit(ASTDivide node, Object data) {
+		return binary(node, "div", "ValueInteger.valueOf(%s / %s)");
+	}
+
+	// Power
+	public Object visit(ASTPow node, Object data) {
+		return binary(node, "pow");
+	}
+
+	// Percent
+	public Object visit(ASTPercent node, Object data) {
+		return binary(node, "percent");
+	}
+
+	// Cos
+	public Object visit(ASTCos node, Object data) {
+		return trigonometric(node, "cos");
+	}
+
+	// Sin
+	public Object visit(ASTSin node, Object data) {
+		return trigonometric(node, "sin");
+	}
+
+	// Tan
+	public Object visit(ASTTan node, Object data) {
+		return trigonometric(node, "tan");
+	}
+
+	// Inverse cos
+	public Object visit(ASTICos node, Object data) {
+		return trigonometric(node, "icos");
+	}
+
+	// Inverse sin
+	public Object visit(ASTISin node, Object data) {
+		return trigonometric(node, "isin");
+	}
+
+	// Inverse tan
+	public Object visit(ASTITan node, Object data) {
+		return trigonometric(node, "itan");
+	}
+
+	// NOT
+	public Object visit(ASTUnaryNot node, Object data) {
+		return doChild(node, 0) + ".not()";
+	}
+
+	// + (unary)
+	public Object visit(ASTUnaryPlus node, Object data) {
+		return doChild(node, 0) + ".unary_plus()";
+	}
+
+	// - (unary)
+	public Object visit(ASTUnaryMinus node, Object data) {
+		return doChild(node, 0) + ".unary_minus()";
+	}
+
+	// String literal
+	public Object visit(ASTCharacter node, Object data) {
+		return constant("ValueString", "ValueString.stripDelimited(" + quote(node.tokenValue) + ")");
+	}
+
+	// Integer literal.  One that Parser can't parse fails where it's used, as it does in Parser.
+	public Object visit(ASTInteger node, Object data) {
+		String value = "ValueInteger.valueOf(Long.parseLong(" + quote(node.tokenValue) + "))";
+		try {
+			Long.parseLong(node.tokenValue);
+		} catch (NumberFormatException e) {
+			return value;
+		}
+		return constant("ValueInteger", value);
+	}
+
+	// Floating point literal
+	public Object visit(ASTRational node, Object data) {
+		String value = "new ValueRational(Double.parseDouble(" + quote(node.tokenValue) + "))";
+		try {
+			Double.parseDouble(node.tokenValue);
+		} catch (NumberFormatException e) {
+			return value;
+		}
+		return constant("ValueRational", value);
+	}
+
+	// True literal
+	public Object visit(ASTTrue node, Object data) {
+		return "ValueBoolean.TRUE";
+	}
+
+	// False literal
+	public Object visit(ASTFalse node, Object data) {
+		return "ValueBoolean.FALSE";
+	}
+
+}
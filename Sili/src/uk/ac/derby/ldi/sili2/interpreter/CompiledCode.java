@@ -0,0 +1,190 @@
+package uk.ac.derby.ldi.sili2.interpreter;
+
+import uk.ac.derby.ldi.sili2.values.*;
+
+/** Base class of the JVM classes generated by BytecodeCompiler.
+ *
+ * Generated code is loaded by its own class loader, so everything it needs from
+ * the interpreter is provided here as public or protected members.  The helpers
+ * reproduce the behaviour and messages of the corresponding Parser methods.
+ */
+public abstract class CompiledCode {
+
+	private static final int maximumFunctionNesting = 64;
+
+	/** Frames of the active function at each nesting level, for variables referenced from inner functions. */
+	protected final Value[][] display = new Value[maximumFunctionNesting][];
+
+	/** Where TYPE and the equation builtins write. */
+	protected Output out;
+
+	/** Set when code specialised for integer operands meets operands that aren't. */
+	protected volatile boolean deoptimised = false;
+
+	/** Run the compiled program. */
+	public abstract void execute();
+
+	/** Run the compiled program, writing to a given Output. */
+	public void execute(Output output) {
+		out = output;
+		execute();
+	}
+
+	/** Run a compiled program as the interpreter runs one: on a thread whose call stack is limited to a
+	 * given number of megabytes, writing to standard output, and reporting an error by writing its message. */
+	public static void launch(final CompiledCode program, final int megabytes, boolean flushEveryLine) {
+		final Output output = Output.standard(flushEveryLine);
+		Thread thread = new Thread(null, () -> {
+			try {
+				program.execute(output);
+			} catch (StackOverflowError e) {
+				output.println("Stack overflow: recursion exceeds the " + megabytes + " megabyte call stack limit.");
+			} catch (Throwable e) {
+				output.println(e.getMessage());
+			}
+			output.flush();
+		}, "sili", (long)megabytes << 20);
+		thread.start();
+		try {
+			thread.join();
+		} catch (InterruptedException e) {
+			System.out.println(e.getMessage());
+		}
+	}
+
+	/** Throw a semantic error from within an expression. */
+	protected static Value fail(String message) {
+		throw new ExceptionSemantic(message);
+	}
+
+	/** Read a variable, which must have been assigned. */
+	protected static Value defined(Value v, String name) {
+		if (v == null)
+			throw new ExceptionSemantic("Variable or parameter " + name + " is undefined.");
+		return v;
+	}
+
+	/** Evaluate the test expression of an IF or FOR. */
+	protected static boolean test(Value v, String message) {
+		if (!(v instanceof ValueBoolean))
+			throw new ExceptionSemantic(message);
+		return ((ValueBoolean)v).booleanValue();
+	}
+
+	/** Evaluate the test expression of a WHILE, which Parser casts to a boolean without checking it. */
+	protected static boolean whileTest(Value v) {
+		return ((ValueBoolean)v).booleanValue();
+	}
+
+	/** True if both operands of an operation specialised for integers are integers.  If they
+	 * aren't, the code is marked as deoptimised, and the caller performs the Value operation instead. */
+	protected final boolean integers(Value left, Value right) {
+		if (left instanceof ValueInteger && right instanceof ValueInteger)
+			return true;
+		deoptimised = true;
+		return false;
+	}
+
+	/** True if a value is boolean true; the left operand of OR decides the result. */
+	protected static boolean isTrue(Value v) {
+		return v instanceof ValueBoolean && v.booleanValue();
+	}
+
+	/** True if a value is boolean false; the left operand of AND decides the result. */
+	protected static boolean isFalse(Value v) {
+		return v instanceof ValueBoolean && !v.booleanValue();
+	}
+
+	/** Create an array literal. */
+	protected static Value array(Value... values) {
+		return new ValueArray(values);
+	}
+
+	/** Index an array. */
+	protected static Value getIndex(Value index, Value array) {
+		return ((ValueArray)array).getIndex((int)index.longValue());
+	}
+
+	/** Assign to an array element. */
+	protected static void setIndex(Value index, Value v, Value array) {
+		((ValueArray)array).setIndex((int)index.longValue(), v);
+	}
+
+	/** Add to an array element. */
+	protected static void addIndex(Value index, Value v, Value array) {
+		((ValueArray)array).addIndex((int)index.longValue(), v);
+	}
+
+	/** Subtract from an array element. */
+	protected static void subIndex(Value index, Value v, Value array) {
+		((ValueArray)array).subIndex((int)index.longValue(), v);
+	}
+
+	/** Multiply an array element. */
+	protected static void multIndex(Value index, Value v, Value array) {
+		((ValueArray)array).multIndex((int)index.longValue(), v);
+	}
+
+	/** Divide an array element. */
+	protected static void divIndex(Value index, Value v, Value array) {
+		((ValueArray)array).divIndex((int)index.longValue(), v);
+	}
+
+	/** TYPE statement. */
+	protected static void type(Output out, Value v) {
+		out.println(v);
+	}
+
+	/** Quadratic equation. */
+	protected static void quad(Output out, Value va, Value vb, Value vc) {
+		double a = va.doubleValue();
+		double b = vb.doubleValue();
+		double c = vc.doubleValue();
+		double positive = (-b + Math.pow((Math.pow(b, 2) -4 * a *c), 0.5)) / (2 * a);
+		double negative = (-b - Math.pow((Math.pow(b, 2) -4 * a *c), 0.5)) / (2 * a);
+		out.print("Quadratic of +X = ").print(positive).print(" Quadratic of -X = ").print(negative).println();
+	}
+
+	/** Line equation. */
+	protected static void line(Output out, Value vx1, Value vy1, Value vx2, Value vy2) {
+		double x1 = vx1.doubleValue();
+		double y1 = vy1.doubleValue();
+		double x2 = vx2.doubleValue();
+		double y2 = vy2.doubleValue();
+		double grad = (y1 - y2) / (x1 -x2);
+		out.print("Gradient = ").print(grad).println();
+		double intercept = y1 - (grad * x1);
+		out.print("Line equation y = ").print(grad).print("x + ").print(intercept).println();
+	}
+
+	/** Speed equation. */
+	protected static void speed(Output out, Value distance, Value time) {
+		out.print("Speed = ").print(distance.doubleValue() / time.doubleValue()).print("units/s").println();
+	}
+
+	/** Time equation. */
+	protected static void time(Output out, Value distance, Value speed) {
+		out.print("Time = ").print(distance.doubleValue() / speed.doubleValue()).print(" seconds").println();
+	}
+
+	/** Distance equation. */
+	protected static void distance(Output out, Value speed, Value time) {
+		out.print("Distance = ").print(speed.doubleValue() * time.doubleValue()).print("units").println();
+	}
+
+	/** Find Y from line equation. */
+	protected static void pointY(Output out, Value vm, Value vx, Value vintercept) {
+		double m = vm.doubleValue();
+		double x = vx.doubleValue();
+		double intercept = vintercept.doubleValue();
+		out.print("Y = ").print((m * x) + intercept).println();
+	}
+
+	/** Find X from line equation. */
+	protected static void pointX(Output out, Value vm, Value vy, Value vintercept) {
+		double m = vm.doubleValue();
+		double y = vy.doubleValue();
+		double intercept = vintercept.doubleValue();
+		out.print("X = ").print((y - intercept) / m).println();
+	}
+}
@@ -0,0 +1,129 @@
+package uk.ac.derby.ldi.sili2.interpreter;
+
+import java.io.Reader;
+import java.io.StringReader;
+
+import uk.ac.derby.ldi.sili2.parser.ast.*;
+
+/** A Sili program, parsed, optimised and linked, ready to run any number of times.
+ *
+ * Compiling resolves every name, inlines calls of small functions, binds every variable to
+ * a Display.Reference and every call to its FunctionDefinition, analyses the loops,
+ * evaluates the literals and infers the types of the expressions.  Nothing
+ * in the program changes after that, apart from the Specialisation hints of the arithmetic
+ * and comparison nodes.  Those are safe to share: a node checks its operands fit its hint
+ * every time it runs, and falls back to GENERIC if they don't.
+ *
+ * All the state of a run is held by an ExecutionContext, so one CompiledProgram may be
+ * run by any number of contexts, one per thread, at once.
+ *
+ * The named inputs are variables of the main scope that each run starts with.
+ *
+ * Functions that become hot, in one run or over many, are compiled by a TieredCompiler
+ * while the program runs, unless compiling has been turned off.  The calls of pure
+ * functions are memoised by each context, unless memoising has been turned off.
+ */
+public final class CompiledProgram {
+
+	private final ASTCode code;
+	private final String[] inputs;
+	private final FunctionDefinition main;
+	private final int invariantCount;
+	private final TieredCompiler tiers;
+
+	/** Ctor.  Compile a program that Optimiser has optimised.  Throws ExceptionSemantic if a name can't be resolved. */
+	CompiledProgram(ASTCode code, String[] inputs) {
+		this(code, inputs, false);
+	}
+
+	/** Ctor.  Compile a program that Optimiser has optimised.  If it is to be profiled, every call it makes
+	 * runs as written: no function is inlined, memoised or compiled to JVM bytecode.  Throws ExceptionSemantic
+	 * if a name can't be resolved. */
+	CompiledProgram(ASTCode code, String[] inputs, boolean profiled) {
+		this.code = code;
+		this.inputs = inputs.clone();
+		Resolver resolver = new Resolver(code, inputs);
+		main = resolver.getMain();
+		if (!profiled && Inliner.isEnabled())
+			new Inliner(resolver).inline();
+		invariantCount = link(code, resolver, new Parser(), 0);
+		new TypeInference(resolver).infer();
+		if (!profiled && Memoiser.isEnabled())
+			new Memoiser(resolver).findPureFunctions();
+		tiers = (!profiled && TieredCompiler.isEnabled()) ? new TieredCompiler(resolver) : null;
+	}
+
+	/** Compile a program read from a given source, whose main scope starts with the named input variables.
+	 * Throws ExceptionSemantic if it doesn't parse, or a name can't be resolved. */
+	public static CompiledProgram compile(Reader source, String... inputs) {
+		ASTCode code;
+		try {
+			code = new Sili(source).code();
+		} catch (ParseException e) {
+			throw new ExceptionSemantic(e.getMessage());
+		}
+		return new CompiledProgram(Optimiser.optimise(code, inputs), inputs);
+	}
+
+	/** Compile a program given as a string, whose main scope starts with the named input variables.
+	 * Throws ExceptionSemantic if it doesn't parse, or a name can't be resolved. */
+	public static CompiledProgram compile(String source, String... inputs) {
+		return compile(new StringReader(source), inputs);
+	}
+
+	/** Create a context in which to run the program, writing to a given Output. */
+	public ExecutionContext newContext(Output output) {
+		return new ExecutionContext(this, output);
+	}
+
+	/** Get the number of input variables a run needs. */
+	public int getInputCount() {
+		return inputs.length;
+	}
+
+	/** Get the name of the ith input variable. */
+	public String getInputName(int i) {
+		return inputs[i];
+	}
+
+	ASTCode getCode() {
+		return code;
+	}
+
+	FunctionDefinition getMain() {
+		return main;
+	}
+
+	int getInvariantCount() {
+		return invariantCount;
+	}
+
+	TieredCompiler getTiers() {
+		return tiers;
+	}
+
+	/** Bind every variable reference and function call to what the resolver found, and evaluate
+	 * the literals so running the program never writes to the tree.  Return the number of loop-invariant
+	 * expressions found so far. */
+	static int link(SimpleNode node, Resolver resolver, Parser evaluator, int invariantCount) {
+		if (resolver.isTopLevelFunction(node))
+			return invariantCount;
+		Resolver.Variable variable = resolver.getVariable(node);
+		if (variable != null) {
+			String name = (node instanceof ASTDereference) ? node.tokenValue : ((SimpleNode)node.jjtGetChild(0)).tokenValue;
+			node.optimised = new Display.Reference(variable.getLevel(), variable.getSlot(), name);
+		} else if (resolver.isSelfTailCall(node))
+			node.optimised = new Parser.SelfTailCall(resolver.getFunction(node));
+		else if (node instanceof ASTCall || node instanceof ASTFnInvoke)
+			node.optimised = resolver.getFunction(node);
+		else if (node instanceof ASTFor || node instanceof ASTWhile || node instanceof ASTLoopX || node instanceof ASTTypeRepeat) {
+			LoopAnalysis loop = new LoopAnalysis(node, resolver, invariantCount);
+			node.optimised = loop;
+			invariantCount = loop.getInvariantCount();
+		} else if (Optimiser.isLiteral(node))
+			node.jjtAccept(evaluator, null);
+		for (int i=0; i<node.jjtGetNumChildren(); i++)
+			invariantCount = link((SimpleNode)node.jjtGetChild(i), resolver, evaluator, invariantCount);
+		return invariantCount;
+	}
+}
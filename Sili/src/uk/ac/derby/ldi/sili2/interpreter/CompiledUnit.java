@@ -0,0 +1,18 @@
+package uk.ac.derby.ldi.sili2.interpreter;
+
+import uk.ac.derby.ldi.sili2.values.Value;
+
+/** Base class of the JVM classes BytecodeCompiler generates for TieredCompiler.
+ *
+ * A unit holds some functions of a program, and no main program: its calls are made
+ * through invoke(), by number, from the interpreter.
+ */
+public abstract class CompiledUnit extends CompiledCode {
+
+	/** A unit has no main program. */
+	public void execute() {
+	}
+
+	/** Call the ith of the unit's functions with the given arguments. */
+	public abstract Value invoke(int function, Value[] arguments);
+}
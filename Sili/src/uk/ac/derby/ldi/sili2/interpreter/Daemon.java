@@ -0,0 +1,210 @@
+package uk.ac.derby.ldi.sili2.interpreter;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/** A resident interpreter, which runs programs sent to it over a local socket.
+ *
+ * The socket is a loopback TCP port, or a Unix-domain socket at a given path.  A client
+ * connects, sends a program's source and shuts down its side of the connection.  The
+ * program runs on a thread of its own, in a fresh ExecutionContext, and its output is sent
+ * back a line at a time as it is written.  The connection is closed when the program ends.
+ *
+ * A request consisting of the word STATS returns the daemon's counters instead.
+ *
+ * Compiled programs are kept, keyed by a hash of their source, so a program that is sent
+ * again skips parsing and reuses the same tree, which the JIT will already have compiled.
+ */
+class Daemon {
+
+	private static final int maximumCachedPrograms = 1024;
+	private static final byte[] statsRequest = "STATS".getBytes();
+
+	private final SocketAddress address;
+	private final int megabytes;
+
+	// Compiled programs, in order of use, with the sources they were compiled from.
+	private final Map<String, Entry> programs = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+		private static final long serialVersionUID = 0;
+		protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+			return size() > maximumCachedPrograms;
+		}
+	};
+
+	private static class Entry {
+		private final byte[] source;
+		private final CompiledProgram program;
+
+		Entry(byte[] source, CompiledProgram program) {
+			this.source = source;
+			this.program = program;
+		}
+	}
+
+	// Counters
+	private final long started = System.nanoTime();
+	private final LongAdder requests = new LongAdder();
+	private final LongAdder failures = new LongAdder();
+	private final LongAdder cacheHits = new LongAdder();
+	private final LongAdder totalLatency = new LongAdder();
+	private final AtomicLong maximumLatency = new AtomicLong();
+	private final AtomicLong requestNumber = new AtomicLong();
+
+	/** Ctor.  Each request's call stack is limited to the given number of megabytes. */
+	Daemon(SocketAddress address, int megabytes) {
+		this.address = address;
+		this.megabytes = megabytes;
+	}
+
+	/** Get the address of a port number on the loopback interface, or of a Unix-domain socket with a given path. */
+	static SocketAddress address(String name) {
+		if (name.matches("[0-9]+"))
+			return new InetSocketAddress(InetAddress.getLoopbackAddress(), Integer.parseInt(name));
+		return UnixDomainSocketAddress.of(name);
+	}
+
+	/** Accept and run requests until the process is stopped. */
+	void serve() throws IOException {
+		ServerSocketChannel server;
+		if (address instanceof UnixDomainSocketAddress) {
+			// A socket file left by a daemon that was killed would stop this one binding.
+			final Path path = ((UnixDomainSocketAddress)address).getPath();
+			Files.deleteIfExists(path);
+			server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+			Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+				try {
+					Files.deleteIfExists(path);
+				} catch (IOException e) {
+				}
+			}));
+		} else
+			server = ServerSocketChannel.open();
+		server.bind(address);
+		System.err.println("Sili daemon listening on " + address);
+		final long stackBytes = (long)megabytes << 20;
+		while (true) {
+			final SocketChannel client = server.accept();
+			Thread thread = new Thread(null, () -> handle(client), "sili-request-" + requestNumber.incrementAndGet(), stackBytes);
+			thread.setDaemon(true);
+			thread.start();
+		}
+	}
+
+	// Read a request, run it and send back its output.
+	private void handle(SocketChannel client) {
+		try (SocketChannel channel = client) {
+			InputStream in = Channels.newInputStream(channel);
+			OutputStream out = Channels.newOutputStream(channel);
+			byte[] source = in.readAllBytes();
+			long start = System.nanoTime();
+			Output output = new Output(new OutputStreamWriter(out), true);
+			if (Arrays.equals(trim(source), statsRequest))
+				output.print(getStatistics());
+			else if (!run(source, output))
+				failures.increment();
+			output.flush();
+			long latency = System.nanoTime() - start;
+			requests.increment();
+			totalLatency.add(latency);
+			maximumLatency.accumulateAndGet(latency, Math::max);
+		} catch (IOException e) {
+			// The client has gone away.
+		}
+	}
+
+	// Run a program.  Return false if it fails.
+	private boolean run(byte[] source, Output output) {
+		try {
+			getProgram(source).newContext(output).run();
+			return true;
+		} catch (StackOverflowError e) {
+			output.println("Stack overflow: recursion exceeds the " + megabytes + " megabyte call stack limit.");
+		} catch (Throwable e) {
+			output.println(e.getMessage());
+		}
+		return false;
+	}
+
+	// Get the compiled form of a program, compiling it if it hasn't been seen.
+	private CompiledProgram getProgram(byte[] source) throws Exception {
+		String key = ProgramCache.key(source);
+		synchronized (programs) {
+			Entry entry = programs.get(key);
+			if (entry != null && Arrays.equals(entry.source, source)) {
+				cacheHits.increment();
+				return entry.program;
+			}
+		}
+		CompiledProgram program = new CompiledProgram(Interpreter.load(source, null, false), new String[0]);
+		synchronized (programs) {
+			programs.put(key, new Entry(source, program));
+		}
+		return program;
+	}
+
+	// Drop leading and trailing white space.
+	private static byte[] trim(byte[] bytes) {
+		int start = 0;
+		int end = bytes.length;
+		while (start < end && bytes[start] <= ' ')
+			start++;
+		while (end > start && bytes[end - 1] <= ' ')
+			end--;
+		return Arrays.copyOfRange(bytes, start, end);
+	}
+
+	/** Get the counters, one per line. */
+	String getStatistics() {
+		long count = requests.sum();
+		double seconds = (System.nanoTime() - started) / 1e9;
+		int cached;
+		synchronized (programs) {
+			cached = programs.size();
+		}
+		String newline = System.lineSeparator();
+		return "requests " + count + newline
+			+ "failures " + failures.sum() + newline
+			+ "cached programs " + cached + newline
+			+ "cache hits " + cacheHits.sum() + newline
+			+ String.format("mean latency %.3f ms%n", (count == 0) ? 0.0 : totalLatency.sum() / 1e6 / count)
+			+ String.format("maximum latency %.3f ms%n", maximumLatency.get() / 1e6)
+			+ String.format("throughput %.3f requests/s%n", count / seconds)
+			+ Memoiser.getStatistics();
+	}
+
+	/** Send a program to a daemon, and copy its output to standard output as it arrives. */
+	static void request(SocketAddress address, InputStream source) throws IOException {
+		SocketChannel channel = (address instanceof UnixDomainSocketAddress)
+			? SocketChannel.open(StandardProtocolFamily.UNIX) : SocketChannel.open();
+		try (SocketChannel client = channel) {
+			client.connect(address);
+			OutputStream out = Channels.newOutputStream(client);
+			source.transferTo(out);
+			out.flush();
+			client.shutdownOutput();
+			InputStream in = Channels.newInputStream(client);
+			byte[] buffer = new byte[8192];
+			for (int count; (count = in.read(buffer)) > 0; ) {
+				System.out.write(buffer, 0, count);
+				System.out.flush();
+			}
+		}
+	}
+}
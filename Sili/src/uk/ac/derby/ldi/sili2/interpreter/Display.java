@@ -1,100 +1,224 @@
 package uk.ac.derby.ldi.sili2.interpreter;
 
+import java.util.Arrays;
+
 import uk.ac.derby.ldi.sili2.values.Value;
+import uk.ac.derby.ldi.sili2.values.ValueArray;
+import uk.ac.derby.ldi.sili2.values.ValueInteger;
+import uk.ac.derby.ldi.sili2.values.ValueRational;
 
 /** A display manages run-time access to variable and parameter scope where
  * functions may be nested.
- */ 
+ *
+ * Every function invocation's variables and parameters live in a frame on a single
+ * value stack, sized by Resolver before the program runs.  The display holds the frame
+ * pointer of the active function at each nesting level.  Slots are tagged: integer and
+ * rational slots hold their value unboxed in a long, and only box it when the Value
+ * itself is asked for.  The box is kept, so a slot is boxed at most once per assignment.
+ *
+ * A function that calls itself as the last thing it does reuses its own frame, so
+ * self tail calls don't nest on the Java stack.
+ */
 class Display {
 
+	private static final byte UNASSIGNED = 0;
+	private static final byte REFERENCE = 1;
+	private static final byte LONG = 2;
+	private static final byte DOUBLE = 3;
+
 	private final int maximumFunctionNesting = 64;
-	private FunctionInvocation[] display = new FunctionInvocation[maximumFunctionNesting];
-	private int currentLevel;
-
-	/** Reference to a slot. */
-	class Reference {
-		private int displayDepth;
-		private int slotNumber;
-		
+	private int[] frames = new int[maximumFunctionNesting];
+
+	private byte[] tags = new byte[1024];
+	private long[] primitives = new long[1024];
+	private Value[] references = new Value[1024];
+	private int top = 0;
+	private int tailCallFrame = -1;
+
+	/** Reference to a slot: a variable or parameter of the function at a given nesting level.
+	 * References are fixed when a program is compiled, and may be shared by any number of displays. */
+	static class Reference {
+		private final int displayDepth;
+		private final int slotNumber;
+		private final String name;
+
 		/** Ctor */
-		Reference(int depth, int slot) {
+		Reference(int depth, int slot, String name) {
 			displayDepth = depth;
 			slotNumber = slot;
+			this.name = name;
 		}
-		
-		/** Set value pointed to by this reference. */
-		void setValue(Value v) {
-			display[displayDepth].setValue(slotNumber, v);
-		}
-		
-		/** Get value pointed to by this reference. */
-		Value getValue() {
-			return display[displayDepth].getValue(slotNumber);
-		}
 	}
-	
+
+	// Return the stack index of a referenced slot.
+	private int slot(Reference r) {
+		return frames[r.displayDepth] + r.slotNumber;
+	}
+
+	// Return the stack index of a referenced slot, which must have been assigned.
+	private int assignedSlot(Reference r) {
+		int slot = frames[r.displayDepth] + r.slotNumber;
+		if (tags[slot] == UNASSIGNED)
+			throw new ExceptionSemantic("Variable or parameter " + r.name + " is undefined.");
+		return slot;
+	}
+
+	/** Set value pointed to by a reference. */
+	void setValue(Reference r, Value v) {
+		set(slot(r), v);
+	}
+
+	/** Get value pointed to by a reference. */
+	Value getValue(Reference r) {
+		return get(assignedSlot(r));
+	}
+
+	/** True if a reference points to an unboxed integer. */
+	boolean isLong(Reference r) {
+		return tags[slot(r)] == LONG;
+	}
+
+	/** True if a reference points to an array. */
+	boolean isArray(Reference r) {
+		int slot = slot(r);
+		return tags[slot] == REFERENCE && references[slot] instanceof ValueArray;
+	}
+
+	/** True if a reference points to an unboxed rational. */
+	boolean isDouble(Reference r) {
+		return tags[slot(r)] == DOUBLE;
+	}
+
+	/** Get value pointed to by a reference as a long, without boxing it. */
+	long getLong(Reference r) {
+		int slot = assignedSlot(r);
+		if (tags[slot] == LONG)
+			return primitives[slot];
+		return get(slot).longValue();
+	}
+
+	/** Get value pointed to by a reference as a double, without boxing it. */
+	double getDouble(Reference r) {
+		int slot = assignedSlot(r);
+		if (tags[slot] == DOUBLE)
+			return Double.longBitsToDouble(primitives[slot]);
+		return get(slot).doubleValue();
+	}
+
+	/** Set value pointed to by a reference to an integer, without boxing it. */
+	void setLong(Reference r, long v) {
+		int slot = slot(r);
+		tags[slot] = LONG;
+		primitives[slot] = v;
+		references[slot] = null;
+	}
+
+	/** Set value pointed to by a reference to a rational, without boxing it. */
+	void setDouble(Reference r, double v) {
+		int slot = slot(r);
+		tags[slot] = DOUBLE;
+		primitives[slot] = Double.doubleToRawLongBits(v);
+		references[slot] = null;
+	}
+
 	/** Ctor */
-	Display() {
+	Display(FunctionDefinition main) {
 		// root or 0th scope
-		currentLevel = 0;
-		display[currentLevel] = new FunctionInvocation(new FunctionDefinition("%main", currentLevel));
-	}
-	
-	/** Execute a function in its scope, using a specified parser. */
-	Value execute(FunctionInvocation fn, Parser p) {
-		int changeLevel = fn.getLevel();
-		FunctionInvocation oldContext = display[changeLevel];
-		int oldLevel = currentLevel;
-		display[changeLevel] = fn;
-		currentLevel = changeLevel;
-		Value v = display[currentLevel].execute(p);
-		display[changeLevel] = oldContext;
-		currentLevel = oldLevel;
-		return v;
+		frames[main.getLevel()] = open(main);
 	}
-	
-	/** Get the current scope nesting level. */
-	int getLevel() {
-		return currentLevel;
-	}
-	
-	/** Return a Reference to a variable or parameter.  Return null if it doesn't exist. */
-	Reference findReference(String name) {
-		int level = currentLevel;
-		while (level >= 0) {
-			int offset = display[level].findSlotNumber(name);
-			if (offset >= 0)
-				return new Reference(level, offset);
-			level--;
+
+	/** Make room for variables the main scope has defined since the display was created.  Only
+	 * called between top-level statements, when no function is running. */
+	void extendMain(FunctionDefinition main) {
+		int size = main.getLocalCount();
+		if (size > top) {
+			ensureStack(size);
+			Arrays.fill(tags, top, size, UNASSIGNED);
+			top = size;
 		}
-		return null;		
 	}
 
-	/** Create a variable in the current level and return its Reference. */
-	Reference defineVariable(String name) {
-		return new Reference(currentLevel, display[currentLevel].defineVariable(name));
+	// Ensure the value stack can hold at least the given number of slots.
+	private void ensureStack(int size) {
+		if (size > tags.length) {
+			int length = Math.max(tags.length * 2, size);
+			tags = Arrays.copyOf(tags, length);
+			primitives = Arrays.copyOf(primitives, length);
+			references = Arrays.copyOf(references, length);
+		}
 	}
 
-	/** Find a function.  Return null if it doesn't exist. */
-	FunctionDefinition findFunction(String name) {
-		int level = currentLevel;
-		while (level >= 0) {
-			FunctionDefinition definition = display[level].findFunction(name);
-			if (definition != null)
-				return definition;
-			level--;
+	private Value get(int slot) {
+		Value v = references[slot];
+		if (v == null) {
+			if (tags[slot] == LONG)
+				v = ValueInteger.valueOf(primitives[slot]);
+			else if (tags[slot] == DOUBLE)
+				v = new ValueRational(Double.longBitsToDouble(primitives[slot]));
+			references[slot] = v;
 		}
-		return null;
+		return v;
+	}
+
+	private void set(int slot, Value v) {
+		references[slot] = v;
+		if (v instanceof ValueInteger) {
+			tags[slot] = LONG;
+			primitives[slot] = ((ValueInteger)v).longValue();
+		} else if (v instanceof ValueRational) {
+			tags[slot] = DOUBLE;
+			primitives[slot] = Double.doubleToRawLongBits(((ValueRational)v).doubleValue());
+		} else
+			tags[slot] = REFERENCE;
+	}
+
+	/** Open a frame for an invocation of a function on top of the stack.  Return its frame pointer. */
+	int open(FunctionDefinition fn) {
+		int frame = top;
+		top = frame + fn.getLocalCount();
+		ensureStack(top);
+		Arrays.fill(tags, frame, top, UNASSIGNED);
+		return frame;
+	}
+
+	/** Mark a number of slots, from the one a reference points to, unassigned. */
+	void unassign(Reference first, int count) {
+		int slot = slot(first);
+		Arrays.fill(tags, slot, slot + count, UNASSIGNED);
+	}
+
+	/** Set the ith argument in a frame returned by open.  The first slots are always arguments. */
+	void setArgument(int frame, int i, Value v) {
+		set(frame + i, v);
 	}
 
-	/** Find a function in the current level.  Return null if it doesn't exist. */
-	FunctionDefinition findFunctionInCurrentLevel(String name) {
-		return display[currentLevel].findFunction(name);
+	/** Hand over the frame, returned by open, of a self tail call.  It runs when control returns to execute. */
+	void tailCall(int frame) {
+		tailCallFrame = frame;
 	}
-	
-	/** Add a function to the current level. */
-	void addFunction(FunctionDefinition definition) {
-		display[currentLevel].addFunction(definition);
+
+	/** Execute a function in a frame returned by open, using a specified parser.  The frame is closed on return. */
+	Value execute(FunctionDefinition fn, int frame, Parser p) {
+		int changeLevel = fn.getLevel();
+		int oldFrame = frames[changeLevel];
+		frames[changeLevel] = frame;
+		p.doChildren(fn.getFunctionBody(), null);
+		while (tailCallFrame >= 0) {
+			// Move the arguments down into this frame and run the body again.
+			int next = tailCallFrame;
+			int parameterCount = fn.getParameterCount();
+			tailCallFrame = -1;
+			System.arraycopy(tags, next, tags, frame, parameterCount);
+			System.arraycopy(primitives, next, primitives, frame, parameterCount);
+			System.arraycopy(references, next, references, frame, parameterCount);
+			Arrays.fill(tags, frame + parameterCount, next, UNASSIGNED);
+			top = next;
+			p.doChildren(fn.getFunctionBody(), null);
+		}
+		Value v = fn.hasReturn() ? p.doChild(fn.getFunctionReturnExpression(), 0) : null;
+		frames[changeLevel] = oldFrame;
+		top = frame;
+		return v;
 	}
-	
+
 }
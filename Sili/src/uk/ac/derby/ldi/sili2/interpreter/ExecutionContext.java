@@ -0,0 +1,43 @@
+package uk.ac.derby.ldi.sili2.interpreter;
+
+import uk.ac.derby.ldi.sili2.values.*;
+
+/** The state of one run of a CompiledProgram: its variables, call stack, loop-invariant
+ * values and output.  The values of the calls of pure functions it has memoised are kept
+ * from one run to the next.
+ *
+ * A context runs on the thread that calls run, so the depth of recursion is limited by that
+ * thread's stack.  It may be run again once a run has finished, but not by two threads at once;
+ * give each thread a context of its own.
+ */
+public final class ExecutionContext {
+
+	private final CompiledProgram program;
+	private final Output output;
+
+	// Values of the calls of pure functions, kept from one run to the next, or null if they aren't memoised
+	private final Memoiser.Cache memo;
+
+	/** Ctor */
+	ExecutionContext(CompiledProgram program, Output output) {
+		this.program = program;
+		this.output = output;
+		memo = Memoiser.isEnabled() ? new Memoiser.Cache() : null;
+	}
+
+	/** Run the program from the start, with fresh variables.  Each input is assigned to the
+	 * corresponding named input variable.  Throws ExceptionSemantic on a run-time error. */
+	public void run(Value... inputs) {
+		if (inputs.length != program.getInputCount())
+			throw new ExceptionSemantic("Program expects " + program.getInputCount() + " input(s) but was given " + inputs.length + ".");
+		Display display = new Display(program.getMain());
+		for (int i = 0; i < inputs.length; i++)
+			display.setArgument(0, i, inputs[i]);
+		program.getCode().jjtAccept(new Parser(display, output, program.getInvariantCount(), program.getTiers(), memo), null);
+	}
+
+	/** Get the Output the program writes to. */
+	public Output getOutput() {
+		return output;
+	}
+}
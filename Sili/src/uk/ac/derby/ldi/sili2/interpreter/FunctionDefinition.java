@@ -24,6 +24,13 @@ class FunctionDefinition implements Comparable<Object>, Serializable {
 	private SimpleNode ASTFunctionReturnExpression = null;
 	private int depth;
 	
+	// Tiered execution: how hot the function is, and its compiled form once it has one
+	private transient long hotness = 0;
+	private transient volatile TieredCompiler.CompiledFunction compiled = null;
+	
+	// Memoisation: whether the function is pure, so its calls may look their values up
+	private transient boolean memoised = false;
+	
 	/** Ctor for function definition. */
 	FunctionDefinition(String functionName, int level) {
 		name = functionName;
@@ -131,5 +138,35 @@ class FunctionDefinition implements Comparable<Object>, Serializable {
 	FunctionDefinition findFunction(String name) {
 		return functions.get(name);
 	}
+	
+	/** Count calls of this function, or iterations of its loops.  Return the new count. */
+	long heat(long count) {
+		return hotness += count;
+	}
+	
+	/** Reset the count of calls and loop iterations. */
+	void cool() {
+		hotness = 0;
+	}
+	
+	/** Get the compiled form of this function, or null if it is interpreted. */
+	TieredCompiler.CompiledFunction getCompiled() {
+		return compiled;
+	}
+	
+	/** Set the compiled form of this function, or null to interpret it. */
+	void setCompiled(TieredCompiler.CompiledFunction compiled) {
+		this.compiled = compiled;
+	}
+	
+	/** True if this function is pure, so its calls may look up their values in a Memoiser.Cache. */
+	boolean isMemoised() {
+		return memoised;
+	}
+	
+	/** Set whether this function is pure.  Only set while the program is compiled. */
+	void setMemoised(boolean memoised) {
+		this.memoised = memoised;
+	}
 
 }
@@ -0,0 +1,97 @@
+package uk.ac.derby.ldi.sili2.interpreter;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+
+import uk.ac.derby.ldi.sili2.parser.ast.*;
+
+/** Runs a Sili program a top-level statement at a time, as it is read.
+ *
+ * Each statement is parsed, resolved, linked and run before the next is read, so output
+ * starts straight away and a program may be as long as its input.  Once a statement has
+ * run nothing refers to it, unless it defines a function, so its tree can be collected.
+ *
+ * A statement that uses a name no statement has defined yet is held back, with every
+ * statement after it, until the name is defined; a name that is never defined is reported
+ * at the end of the input.  A function's body is resolved when the first call to it is, so
+ * it sees the variables the program has defined by then, rather than all of them.  Apart
+ * from that, a program gives the same output when it is run this way, except that an error
+ * found late may follow some output.  The optimiser needs the whole program, so it isn't used.
+ *
+ * Buffered output is flushed whenever the interpreter is about to wait for more input.
+ */
+class IncrementalRunner {
+
+	private final Sili language;
+	private final Output output;
+	private final Resolver resolver = new Resolver();
+	private final Display display = new Display(resolver.getMain());
+	private final Parser evaluator = new Parser();
+	private final ArrayList<ASTStatement> waiting = new ArrayList<ASTStatement>();
+
+	// Invariant expressions of the functions linked so far
+	private int invariantCount = 0;
+
+	// Input that flushes the output before it blocks.
+	private static class FlushingInput extends FilterInputStream {
+		private final Output output;
+
+		FlushingInput(InputStream in, Output output) {
+			super(in);
+			this.output = output;
+		}
+
+		public int read() throws IOException {
+			if (in.available() == 0)
+				output.flush();
+			return in.read();
+		}
+
+		public int read(byte[] buffer, int offset, int length) throws IOException {
+			if (in.available() == 0)
+				output.flush();
+			return in.read(buffer, offset, length);
+		}
+	}
+
+	/** Ctor.  Read a program from a given input, and write its output to a given Output. */
+	IncrementalRunner(InputStream in, Output output) {
+		language = new Sili(new FlushingInput(in, output));
+		this.output = output;
+	}
+
+	/** Read and run the program.  Throws ExceptionSemantic or ParseException at the first error. */
+	void run() throws ParseException {
+		ASTStatement statement;
+		while ((statement = language.nextStatement()) != null) {
+			resolver.resolveStatement(statement);
+			waiting.add(statement);
+			if (resolver.isComplete()) {
+				for (ASTStatement ready: waiting)
+					execute(ready);
+				waiting.clear();
+			}
+		}
+		resolver.finish();
+	}
+
+	// Link the functions resolved so far, then link and run a statement whose names are all bound.
+	private void execute(ASTStatement statement) {
+		for (FunctionDefinition definition: resolver.takeResolvedFunctions()) {
+			invariantCount = CompiledProgram.link(definition.getFunctionBody(), resolver, evaluator, invariantCount);
+			resolver.forget(definition.getFunctionBody());
+			if (definition.hasReturn()) {
+				invariantCount = CompiledProgram.link(definition.getFunctionReturnExpression(), resolver, evaluator, invariantCount);
+				resolver.forget(definition.getFunctionReturnExpression());
+			}
+		}
+		// The statement's own invariant expressions are numbered after the functions', and their slots
+		// are reused once it has run.
+		int statementInvariants = CompiledProgram.link(statement, resolver, evaluator, invariantCount);
+		resolver.forget(statement);
+		display.extendMain(resolver.getMain());
+		statement.jjtAccept(new Parser(display, output, statementInvariants), null);
+	}
+}
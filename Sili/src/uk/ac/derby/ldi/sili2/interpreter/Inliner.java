@@ -0,0 +1,261 @@
+package uk.ac.derby.ldi.sili2.interpreter;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+import uk.ac.derby.ldi.sili2.parser.ast.*;
+
+/** Inlines calls of small functions into their callers.
+ *
+ * A function is inlined if it doesn't call itself, directly or through other functions,
+ * defines no functions, and its body and return expression have no more than a given
+ * number of nodes.  Each call of it is replaced by an Inline node holding assignments of
+ * the arguments to the parameters, then a copy of the body and of the return expression.
+ * The function's parameters and variables become fresh slots of the caller's frame, so
+ * each call site has its own, and a variable of an enclosing scope is the same variable it
+ * was.  Calls within the copies are inlined in turn, to a given depth.
+ *
+ * Parser clears the slots of an inlined call before running it, so a variable read before
+ * the function assigns it is undefined, as it would be in a new frame.  Any other visitor
+ * sees the original call, whose arguments are the same nodes the assignments evaluate.
+ *
+ * Inlining runs on a resolved program before it is linked, so the copies are linked, their
+ * loops analysed and their types inferred with the caller.
+ */
+class Inliner {
+
+	/** Number of nodes a function may have and be inlined, by default. */
+	static final int defaultSize = 40;
+
+	/** Number of inlined calls that may be nested within one another, by default. */
+	static final int defaultDepth = 3;
+
+	private static volatile int size = defaultSize;
+	private static volatile int depth = defaultDepth;
+
+	/** An inlined call. */
+	static class Inline extends SimpleNode {
+		private final SimpleNode call;
+		private final Display.Reference locals;
+		private final int localCount;
+		private final boolean hasReturn;
+
+		Inline(SimpleNode call, Display.Reference locals, int localCount, boolean hasReturn) {
+			super(0);
+			this.call = call;
+			this.locals = locals;
+			this.localCount = localCount;
+			this.hasReturn = hasReturn;
+			line = call.line;
+		}
+
+		/** Get the call this replaces. */
+		SimpleNode getCall() {
+			return call;
+		}
+
+		/** Get the first of the caller's slots that hold the function's parameters and variables. */
+		Display.Reference getLocals() {
+			return locals;
+		}
+
+		/** Get the number of slots that hold the function's parameters and variables. */
+		int getLocalCount() {
+			return localCount;
+		}
+
+		/** True if the last child is the function's return expression. */
+		boolean hasReturn() {
+			return hasReturn;
+		}
+
+		/** Parser runs the inlined function; any other visitor sees the call. */
+		public Object jjtAccept(SiliVisitor visitor, Object data) {
+			if (visitor instanceof Parser)
+				return ((Parser)visitor).inline(this, data);
+			return call.jjtAccept(visitor, data);
+		}
+
+		public String toString() {
+			return "Inline " + call;
+		}
+	}
+
+	// A copy of the body and return expression of a function that is inlined, taken before any call is
+	// inlined, and the number of slots the function had then
+	private static class Template {
+		private final SimpleNode body;
+		private final SimpleNode returnExpression;
+		private final int localCount;
+
+		Template(FunctionDefinition definition, SimpleNode body, SimpleNode returnExpression) {
+			this.body = body;
+			this.returnExpression = returnExpression;
+			localCount = definition.getLocalCount();
+		}
+	}
+
+	private final Resolver resolver;
+	private final IdentityHashMap<FunctionDefinition, Template> templates = new IdentityHashMap<FunctionDefinition, Template>();
+	private int inlined = 0;
+
+	/** Set the number of nodes a function may have and be inlined, and the depth inlined calls may be nested to.
+	 * A size or depth of 0 turns inlining off. */
+	static void setLimits(int nodes, int nesting) {
+		size = nodes;
+		depth = nesting;
+	}
+
+	/** True if calls are inlined. */
+	static boolean isEnabled() {
+		return size > 0 && depth > 0;
+	}
+
+	/** Ctor.  Inline calls of a program that has been resolved, but not linked, by a given resolver. */
+	Inliner(Resolver resolver) {
+		this.resolver = resolver;
+	}
+
+	/** Inline the calls of small functions throughout the program. */
+	void inline() {
+		for (FunctionDefinition definition: resolver.getFunctions())
+			if (isInlinable(definition))
+				templates.put(definition, new Template(definition, copy(definition.getFunctionBody(), null, null, 0),
+					definition.hasReturn() ? copy(definition.getFunctionReturnExpression(), null, null, 0) : null));
+		if (templates.isEmpty())
+			return;
+		inline(resolver.getMain());
+		for (FunctionDefinition definition: resolver.getFunctions())
+			inline(definition);
+	}
+
+	// Inline the calls in the body and return expression of a function.
+	private void inline(FunctionDefinition definition) {
+		SimpleNode body = definition.getFunctionBody();
+		for (int i = 0; i < body.jjtGetNumChildren(); i++)
+			inline(body, i, definition, 0);
+		if (definition.hasReturn())
+			inline(definition.getFunctionReturnExpression(), 0, definition, 0);
+	}
+
+	// True if a function may be inlined.
+	private boolean isInlinable(FunctionDefinition definition) {
+		int nodes = count(definition.getFunctionBody());
+		int returnNodes = definition.hasReturn() ? count(definition.getFunctionReturnExpression()) : 0;
+		if (nodes < 0 || returnNodes < 0 || nodes + returnNodes > size)
+			return false;
+		Set<FunctionDefinition> reached = Collections.newSetFromMap(new IdentityHashMap<FunctionDefinition, Boolean>());
+		findCalls(definition, reached);
+		return !reached.contains(definition);
+	}
+
+	// Count the nodes of a subtree.  Return -1 if it defines a function.
+	private static int count(Node node) {
+		if (node instanceof ASTFnDef)
+			return -1;
+		int nodes = 1;
+		for (int i = 0; i < node.jjtGetNumChildren(); i++) {
+			int child = count(node.jjtGetChild(i));
+			if (child < 0)
+				return -1;
+			nodes += child;
+		}
+		return nodes;
+	}
+
+	// Add the functions a function calls, and those they call, and so on.
+	private void findCalls(FunctionDefinition definition, Set<FunctionDefinition> reached) {
+		findCalls(definition.getFunctionBody(), reached);
+		if (definition.hasReturn())
+			findCalls(definition.getFunctionReturnExpression(), reached);
+	}
+
+	private void findCalls(Node node, Set<FunctionDefinition> reached) {
+		if (node instanceof ASTFnDef)
+			return;
+		if (node instanceof ASTCall || node instanceof ASTFnInvoke) {
+			FunctionDefinition callee = resolver.getFunction(node);
+			if (callee != null && reached.add(callee))
+				findCalls(callee, reached);
+		}
+		for (int i = 0; i < node.jjtGetNumChildren(); i++)
+			findCalls(node.jjtGetChild(i), reached);
+	}
+
+	// Inline the calls within the ith child of a node, run in a given caller, then the child itself if it is one.
+	// Nesting is the number of inlined calls the child is within.
+	private void inline(SimpleNode parent, int i, FunctionDefinition caller, int nesting) {
+		SimpleNode node = (SimpleNode)parent.jjtGetChild(i);
+		if (node instanceof ASTFnDef)
+			return;
+		for (int j = 0; j < node.jjtGetNumChildren(); j++)
+			inline(node, j, caller, nesting);
+		if (nesting >= depth || !(node instanceof ASTCall || node instanceof ASTFnInvoke) || resolver.isSelfTailCall(node))
+			return;
+		FunctionDefinition callee = resolver.getFunction(node);
+		Template template = templates.get(callee);
+		if (template == null)
+			return;
+		Inline inline = expand(node, callee, template, caller, nesting);
+		parent.jjtAddChild(inline, i);
+		inline.jjtSetParent(parent);
+	}
+
+	// Replace a call by assignments of its arguments and copies of the function, whose own variables
+	// are given fresh slots of the caller.
+	private Inline expand(SimpleNode call, FunctionDefinition callee, Template template, FunctionDefinition caller, int nesting) {
+		int site = inlined++;
+		int base = caller.getLocalCount();
+		for (int slot = 0; slot < template.localCount; slot++)
+			caller.defineVariable("%inline" + site + "." + slot);
+		Inline inline = new Inline(call, new Display.Reference(caller.getLevel(), base, callee.getName()),
+			template.localCount, callee.hasReturn());
+		Node arguments = call.jjtGetChild(1);
+		int child = 0;
+		for (int i = 0; i < callee.getParameterCount(); i++) {
+			ASTAssignment assignment = new ASTAssignment(SiliTreeConstants.JJTASSIGNMENT);
+			ASTIdentifier parameter = new ASTIdentifier(SiliTreeConstants.JJTIDENTIFIER);
+			parameter.tokenValue = callee.getParameterName(i);
+			assignment.line = parameter.line = call.line;
+			assignment.jjtAddChild(parameter, 0);
+			parameter.jjtSetParent(assignment);
+			assignment.jjtAddChild(arguments.jjtGetChild(i), 1);
+			resolver.bindVariable(assignment, new Resolver.Variable(caller, base + i));
+			add(inline, child++, assignment);
+		}
+		SimpleNode body = copy(template.body, callee, caller, base);
+		add(inline, child++, body);
+		for (int i = 0; i < body.jjtGetNumChildren(); i++)
+			inline(body, i, caller, nesting + 1);
+		if (template.returnExpression != null) {
+			add(inline, child, copy((SimpleNode)template.returnExpression.jjtGetChild(0), callee, caller, base));
+			inline(inline, child, caller, nesting + 1);
+		}
+		return inline;
+	}
+
+	private static void add(SimpleNode parent, int i, SimpleNode child) {
+		parent.jjtAddChild(child, i);
+		child.jjtSetParent(parent);
+	}
+
+	// Copy a subtree, binding the copies as the originals are bound, except that the variables of one function
+	// become the slots of another from a given base.
+	private SimpleNode copy(SimpleNode node, FunctionDefinition from, FunctionDefinition to, int base) {
+		SimpleNode copy = ProgramCache.create(node.getId());
+		copy.tokenValue = node.tokenValue;
+		copy.ifHasElse = node.ifHasElse;
+		copy.fnHasReturn = node.fnHasReturn;
+		copy.line = node.line;
+		Resolver.Variable variable = resolver.getVariable(node);
+		if (variable != null)
+			resolver.bindVariable(copy, (variable.getScope() == from) ? new Resolver.Variable(to, base + variable.getSlot()) : variable);
+		FunctionDefinition function = resolver.getFunction(node);
+		if (function != null)
+			resolver.bindFunction(copy, function);
+		for (int i = 0; i < node.jjtGetNumChildren(); i++)
+			add(copy, i, copy((SimpleNode)node.jjtGetChild(i), from, to, base));
+		return copy;
+	}
+}
@@ -1,37 +1,302 @@
 package uk.ac.derby.ldi.sili2.interpreter;
 
+import java.io.ByteArrayInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
 import uk.ac.derby.ldi.sili2.parser.ast.ASTCode;
+import uk.ac.derby.ldi.sili2.parser.ast.ParseException;
 import uk.ac.derby.ldi.sili2.parser.ast.Sili;
-import uk.ac.derby.ldi.sili2.parser.ast.SiliVisitor;
 
 public class Interpreter {
-	
+
+	private static final int defaultStackLimit = 256;
+	private static final int defaultWorkers = Runtime.getRuntime().availableProcessors();
+	private static final String defaultCache = Paths.get(System.getProperty("user.home"), ".sili", "cache").toString();
+	private static final String defaultStacks = "sili.collapsed";
+
 	private static void usage() {
-		System.out.println("Usage: sili [-d1] < <source>");
+		System.out.println("Usage: sili [-d1] [-d2] [-d3] [-c | -v | -prof[<file>]] [-t<calls>] [-n<nodes>[,<depth>]] [-e[<entries>]] [-m<megabytes>] [-u] [-o<file>] [-k[<directory>]] < <source>");
+		System.out.println("       sili [-c | -v] [-t<calls>] [-n<nodes>[,<depth>]] [-e[<entries>]] [-m<megabytes>] [-u] [-o<file>] [-k[<directory>]] [-j<workers>] <source or directory>...");
+		System.out.println("       sili -a<jar> [-m<megabytes>] [-u] [-k[<directory>]] < <source>");
+		System.out.println("       sili -i [-m<megabytes>] [-u] [-o<file>] < <source>");
+		System.out.println("       sili [-t<calls>] [-n<nodes>[,<depth>]] [-e[<entries>]] [-m<megabytes>] -s<port or socket path>");
+		System.out.println("       sili -r<port or socket path> < <source>");
 		System.out.println("          -d1 -- output AST");
+		System.out.println("          -d2 -- output virtual machine code");
+		System.out.println("          -d3 -- output optimised AST");
+		System.out.println("          -c  -- compile to JVM bytecode instead of interpreting");
+		System.out.println("          -v  -- run on the virtual machine instead of interpreting");
+		System.out.println("          -a<jar> -- compile to a runnable jar, which needs no interpreter, instead of running");
+		System.out.println("          -t<n> -- compile a function to JVM bytecode once it has made n calls and loop iterations (default " + TieredCompiler.defaultThreshold + ", 0 never)");
+		System.out.println("          -n<n>[,<d>] -- inline functions of up to n nodes into their callers, nested up to d deep (default " + Inliner.defaultSize + "," + Inliner.defaultDepth + ", 0 never)");
+		System.out.println("          -e[<n>] -- keep up to n values of calls of pure functions (default " + Memoiser.defaultEntries + ", 0 never), and report hits and misses");
+		System.out.println("          -m<n> -- limit the call stack to n megabytes (default " + defaultStackLimit + ")");
+		System.out.println("          -u  -- write output a line at a time instead of buffering it");
+		System.out.println("          -o<file> -- write output to a file");
+		System.out.println("          -prof[<file>] -- profile the run, report hot spots and write call stacks to a file (default " + defaultStacks + ")");
+		System.out.println("          -k[<directory>] -- cache optimised programs in a directory (default " + defaultCache + ")");
+		System.out.println("          -j<n> -- run the given sources on n worker threads (default " + defaultWorkers + ")");
+		System.out.println("          -i  -- run each top-level statement as soon as it has been read");
+		System.out.println("          -s<address> -- run as a daemon, serving programs sent to a loopback port or Unix-domain socket");
+		System.out.println("          -r<address> -- send a program to a daemon and write out what it returns");
+	}
+
+	// True if command-line values are all counts that fit in an int.
+	private static boolean isCount(String... values) {
+		for (String digits: values) {
+			if (!digits.matches("[0-9]+"))
+				return false;
+			try {
+				Integer.parseInt(digits);
+			} catch (NumberFormatException e) {
+				return false;
+			}
+		}
+		return true;
 	}
-	
+
 	public static void main(String args[]) {
 		boolean debugAST = false;
-		if (args.length == 1) {
-			if (args[0].equals("-d1"))
+		boolean debugVM = false;
+		boolean debugOptimised = false;
+		boolean compile = false;
+		boolean virtualMachine = false;
+		int stackLimit = defaultStackLimit;
+		boolean flushEveryLine = false;
+		String outputFile = null;
+		String cacheDirectory = null;
+		int workers = defaultWorkers;
+		ArrayList<String> sources = new ArrayList<String>();
+		String serve = null;
+		String request = null;
+		boolean incremental = false;
+		String profileFile = null;
+		String jarFile = null;
+		boolean memoStatistics = false;
+		for (String arg: args) {
+			if (arg.equals("-d1"))
 				debugAST = true;
+			else if (arg.equals("-d2"))
+				debugVM = true;
+			else if (arg.equals("-d3"))
+				debugOptimised = true;
+			else if (arg.equals("-c"))
+				compile = true;
+			else if (arg.equals("-v"))
+				virtualMachine = true;
+			else if (arg.startsWith("-a") && arg.length() > 2)
+				jarFile = arg.substring(2);
+			else if (arg.startsWith("-m") && isCount(arg.substring(2)))
+				stackLimit = Integer.parseInt(arg.substring(2));
+			else if (arg.startsWith("-t") && arg.substring(2).matches("[0-9]{1,18}"))
+				TieredCompiler.setThreshold(Long.parseLong(arg.substring(2)));
+			else if (arg.startsWith("-e") && (arg.length() == 2 || isCount(arg.substring(2)))) {
+				if (arg.length() > 2)
+					Memoiser.setEntries(Integer.parseInt(arg.substring(2)));
+				memoStatistics = true;
+			} else if (arg.startsWith("-n") && arg.substring(2).matches("[0-9]+(,[0-9]+)?") && isCount(arg.substring(2).split(","))) {
+				String[] limits = arg.substring(2).split(",");
+				Inliner.setLimits(Integer.parseInt(limits[0]), (limits.length > 1) ? Integer.parseInt(limits[1]) : Inliner.defaultDepth);
+			}
+			else if (arg.equals("-u"))
+				flushEveryLine = true;
+			else if (arg.startsWith("-o") && arg.length() > 2)
+				outputFile = arg.substring(2);
+			else if (arg.startsWith("-k"))
+				cacheDirectory = (arg.length() > 2) ? arg.substring(2) : defaultCache;
+			else if (arg.startsWith("-j") && arg.substring(2).matches("[1-9][0-9]*") && isCount(arg.substring(2)))
+				workers = Integer.parseInt(arg.substring(2));
+			else if (arg.startsWith("-prof"))
+				profileFile = (arg.length() > 5) ? arg.substring(5) : defaultStacks;
+			else if (arg.equals("-i"))
+				incremental = true;
+			else if (arg.startsWith("-s") && arg.length() > 2)
+				serve = arg.substring(2);
+			else if (arg.startsWith("-r") && arg.length() > 2)
+				request = arg.substring(2);
+			else if (!arg.startsWith("-"))
+				sources.add(arg);
 			else {
 				usage();
 				return;
 			}
 		}
-		Sili language = new Sili(System.in);
-		try {
-			ASTCode parser = language.code();
-			SiliVisitor nodeVisitor;
-			if (debugAST)
-				nodeVisitor = new ParserDebugger();
+		// -e0 turns memoising off, so there is nothing to report.
+		memoStatistics &= Memoiser.isEnabled();
+		if (request != null) {
+			try {
+				Daemon.request(Daemon.address(request), System.in);
+			} catch (IOException e) {
+				System.out.println("Unable to reach daemon at " + request + ": " + e.getMessage());
+			}
+			return;
+		}
+		if (serve != null) {
+			try {
+				new Daemon(Daemon.address(serve), stackLimit).serve();
+			} catch (IOException e) {
+				System.out.println("Unable to listen on " + serve + ": " + e.getMessage());
+			}
+			return;
+		}
+		if (incremental && (debugAST || debugVM || debugOptimised || compile || virtualMachine || cacheDirectory != null || !sources.isEmpty())) {
+			usage();
+			return;
+		}
+		if (profileFile != null && (compile || virtualMachine || incremental || !sources.isEmpty())) {
+			usage();
+			return;
+		}
+		if (jarFile != null && (debugAST || debugVM || debugOptimised || compile || virtualMachine || incremental || profileFile != null || outputFile != null || !sources.isEmpty())) {
+			usage();
+			return;
+		}
+		final boolean runIncrementally = incremental;
+		final boolean dumpAST = debugAST;
+		final boolean dumpVM = debugVM;
+		final boolean dumpOptimised = debugOptimised;
+		final boolean runCompiled = compile;
+		final boolean runVM = virtualMachine;
+		final int megabytes = stackLimit;
+		final long stackBytes = (long)stackLimit << 20;
+		final String stacksFile = profileFile;
+		final String standaloneJar = jarFile;
+		final boolean standaloneFlushEveryLine = flushEveryLine;
+		final ProgramCache cache = (cacheDirectory == null) ? null : new ProgramCache(Paths.get(cacheDirectory));
+		final Output output;
+		if (outputFile == null)
+			output = Output.standard(flushEveryLine);
+		else {
+			try {
+				output = new Output(new OutputStreamWriter(new FileOutputStream(outputFile)), flushEveryLine);
+			} catch (IOException e) {
+				System.out.println("Unable to write to " + outputFile + ": " + e.getMessage());
+				return;
+			}
+		}
+		if (!sources.isEmpty()) {
+			if (debugAST || debugVM || debugOptimised) {
+				usage();
+				return;
+			}
+			try {
+				List<Path> programs = Batch.findPrograms(sources);
+				new Batch(workers, stackLimit, runVM, runCompiled, cache).run(programs, output);
+			} catch (IOException | InterruptedException e) {
+				output.println(e.getMessage());
+			}
+			if (outputFile != null)
+				output.close();
 			else
-				nodeVisitor = new Parser();
-			parser.jjtAccept(nodeVisitor, null);
-		} catch (Throwable e) {
+				output.flush();
+			if (memoStatistics)
+				System.err.print(Memoiser.getStatistics());
+			return;
+		}
+		// Run on a thread of our own, so recursion depth is set by the stack limit rather than -Xss.
+		Thread thread = new Thread(null, new Runnable() {
+			public void run() {
+				try {
+					if (runIncrementally) {
+						new IncrementalRunner(System.in, output).run();
+						output.flush();
+						return;
+					}
+					ASTCode parser;
+					if (cache == null || dumpAST) {
+						parser = new Sili(System.in).code();
+						if (dumpAST) {
+							parser.jjtAccept(new ParserDebugger(), null);
+							return;
+						}
+						parser = Optimiser.optimise(parser);
+					} else
+						parser = load(System.in.readAllBytes(), cache, true);
+					if (dumpOptimised)
+						parser.jjtAccept(new ParserDebugger(), null);
+					else if (dumpVM)
+						new VMCompiler(parser).compile().disassemble(System.out);
+					else if (standaloneJar != null)
+						StandaloneCompiler.compile(parser, Paths.get(standaloneJar), megabytes, standaloneFlushEveryLine);
+					else if (stacksFile != null)
+						profile(parser, output, stacksFile);
+					else
+						execute(parser, runVM, runCompiled, stackBytes, output);
+				} catch (StackOverflowError e) {
+					output.println("Stack overflow: recursion exceeds the " + megabytes + " megabyte call stack limit.");
+				} catch (Throwable e) {
+					output.println(e.getMessage());
+				}
+				output.flush();
+			}
+		}, "sili", stackBytes);
+		thread.start();
+		try {
+			thread.join();
+		} catch (InterruptedException e) {
 			System.out.println(e.getMessage());
 		}
+		if (outputFile != null)
+			output.close();
+		if (memoStatistics)
+			System.err.print(Memoiser.getStatistics());
+	}
+
+	/** Run an optimised program on the virtual machine, as JVM bytecode or on the tree interpreter. */
+	static void execute(ASTCode code, boolean runVM, boolean runCompiled, long stackBytes, Output output) {
+		if (runVM)
+			new VirtualMachine(new VMCompiler(code).compile(), stackBytes, output).execute();
+		else if (runCompiled)
+			new BytecodeCompiler(code).compile().execute(output);
+		else
+			new CompiledProgram(code, new String[0]).newContext(output).run();
+	}
+
+	/** Run an optimised program on the tree interpreter with a Profiler, report its hot spots on
+	 * standard error and write its call stacks to a given file. */
+	static void profile(ASTCode code, Output output, String stacksFile) throws IOException {
+		// Compiled, inlined and memoised functions would hide their calls from the profiler.
+		CompiledProgram program = new CompiledProgram(code, new String[0], true);
+		Profiler profiler = new Profiler();
+		profiler.instrument(program.getCode());
+		profiler.start();
+		try {
+			program.newContext(output).run();
+		} finally {
+			profiler.stop();
+			output.flush();
+			profiler.report(System.err);
+			profiler.writeStacks(Paths.get(stacksFile));
+		}
+	}
+
+	/** Parse and optimise a program, using the cache if there is one.  If report is set, cache hits,
+	 * misses and the time taken are reported on standard error. */
+	static ASTCode load(byte[] source, ProgramCache cache, boolean report) throws ParseException {
+		if (cache == null)
+			return Optimiser.optimise(new Sili(new ByteArrayInputStream(source)).code());
+		long start = System.nanoTime();
+		String key = ProgramCache.key(source);
+		ASTCode code = cache.load(source, key);
+		if (code != null) {
+			if (report)
+				System.err.printf("Cache hit: %s loaded in %.3f ms%n", key, (System.nanoTime() - start) / 1e6);
+			return code;
+		}
+		code = Optimiser.optimise(new Sili(new ByteArrayInputStream(source)).code());
+		try {
+			cache.store(source, key, code);
+		} catch (IOException e) {
+			System.err.println("Unable to cache program: " + e.getMessage());
+		}
+		if (report)
+			System.err.printf("Cache miss: %s parsed in %.3f ms%n", key, (System.nanoTime() - start) / 1e6);
+		return code;
 	}
 }
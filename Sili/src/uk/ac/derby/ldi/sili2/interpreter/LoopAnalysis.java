@@ -0,0 +1,307 @@
+package uk.ac.derby.ldi.sili2.interpreter;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+
+import uk.ac.derby.ldi.sili2.parser.ast.*;
+import uk.ac.derby.ldi.sili2.values.*;
+
+/** What Parser knows about a LOOP, FOR, WHILE or TYPEREPEAT before it runs.
+ *
+ * An expression in the loop that reads only variables the loop doesn't assign, and
+ * that no function called from the loop can assign, is loop-invariant.  Invariant
+ * operator expressions are wrapped in an Invariant node, which is evaluated the first
+ * time it is reached in each execution of the loop and reused until the loop ends.
+ * Nothing is evaluated before it would have been, so errors are reported as before.
+ * The values are kept by the Parser running the program, so the tree stays unchanged
+ * while it runs.
+ *
+ * A LOOP or TYPEREPEAT with an invariant count, and a FOR of the form
+ * FOR (i = ...; i < bound; i++i) with an invariant bound and a body that doesn't assign i,
+ * are counted loops.  Parser runs them on a long counter, and only stores i in its slot
+ * before a body that reads it, and on exit.
+ */
+class LoopAnalysis {
+
+	/** An expression whose value doesn't change while a loop runs. */
+	static class Invariant extends SimpleNode {
+		private final SimpleNode expression;
+		private final ASTDereference[] reads;
+		private final int index;
+
+		Invariant(SimpleNode expression, ArrayList<ASTDereference> reads, int index) {
+			super(0);
+			this.expression = expression;
+			this.index = index;
+			this.reads = reads.toArray(new ASTDereference[reads.size()]);
+			jjtAddChild(expression, 0);
+			expression.jjtSetParent(this);
+		}
+
+		/** True if the value has been evaluated in this execution of the loop. */
+		boolean isCached(Parser parser) {
+			return parser.getInvariant(index) != null;
+		}
+
+		// Evaluate the expression once.  A value computed from an array isn't kept, as the array
+		// might be changed through another variable.
+		private Value getValue(Parser parser) {
+			Value v = parser.getInvariant(index);
+			if (v != null)
+				return v;
+			v = (Value)expression.jjtAccept(parser, null);
+			for (ASTDereference read: reads)
+				if (parser.isArray(read))
+					return v;
+			parser.setInvariant(index, v);
+			return v;
+		}
+
+		/** Parser gets the value; any other visitor sees the expression itself. */
+		public Object jjtAccept(SiliVisitor visitor, Object data) {
+			if (visitor instanceof Parser)
+				return getValue((Parser)visitor);
+			return expression.jjtAccept(visitor, data);
+		}
+
+		public String toString() {
+			return expression.toString();
+		}
+	}
+
+	private static final int NONE = 0;
+	private static final int LT = 1;
+	private static final int LTE = 2;
+	private static final int GT = 3;
+	private static final int GTE = 4;
+	private static final int NEQUAL = 5;
+
+	private final Resolver resolver;
+	private final HashSet<Resolver.Variable> written = new HashSet<Resolver.Variable>();
+	private boolean hasCalls = false;
+	private final ArrayList<Invariant> invariants = new ArrayList<Invariant>();
+	private int invariantCount;
+	private boolean countInvariant = false;
+
+	// A counted FOR
+	private int comparison = NONE;
+	private long step;
+	private boolean bodyReadsInduction;
+
+	/** Analyse a loop, and wrap its invariant expressions.  They are numbered from the number
+	 * of invariant expressions found so far. */
+	LoopAnalysis(SimpleNode loop, Resolver resolver, int invariantCount) {
+		this.resolver = resolver;
+		this.invariantCount = invariantCount;
+		findWrites(loop);
+		if (loop instanceof ASTFor)
+			analyseFor((ASTFor)loop);
+		else if (loop instanceof ASTLoopX)
+			countInvariant = isInvariant(loop.jjtGetChild(0));
+		else if (loop instanceof ASTTypeRepeat)
+			countInvariant = isInvariant(loop.jjtGetChild(1));
+		// A FOR's initialisation runs once, before the loop, so it has nothing to hoist.
+		for (int i = (loop instanceof ASTFor) ? 1 : 0; i < loop.jjtGetNumChildren(); i++)
+			hoist(loop.jjtGetChild(i));
+	}
+
+	// Note the variables a loop assigns, and whether it calls any functions.
+	private void findWrites(Node node) {
+		if (node instanceof ASTCall || node instanceof ASTFnInvoke)
+			hasCalls = true;
+		else if (!(node instanceof ASTDereference || node instanceof ASTArrayIndex)) {
+			Resolver.Variable variable = resolver.getVariable(node);
+			if (variable != null)
+				written.add(variable);
+		}
+		for (int i = 0; i < node.jjtGetNumChildren(); i++)
+			findWrites(node.jjtGetChild(i));
+	}
+
+	// True if a variable can't change while the loop runs.
+	private boolean isInvariant(Resolver.Variable variable) {
+		return variable != null && !written.contains(variable)
+			&& !(hasCalls && resolver.isCaptured(variable.getScope(), variable.getSlot()));
+	}
+
+	// True if an expression has the same value every time the loop evaluates it.
+	private boolean isInvariant(Node node) {
+		if (node instanceof Invariant)
+			return isInvariant(((Invariant)node).expression);
+		if (Optimiser.isLiteral(node))
+			return true;
+		if (node instanceof ASTDereference)
+			return isInvariant(resolver.getVariable(node));
+		if (!Optimiser.isConstantOperator(node))
+			return false;
+		for (int i = 0; i < node.jjtGetNumChildren(); i++)
+			if (!isInvariant(node.jjtGetChild(i)))
+				return false;
+		return true;
+	}
+
+	// Gather the variable reads of an expression.
+	private static void findReads(Node node, ArrayList<ASTDereference> reads) {
+		if (node instanceof ASTDereference)
+			reads.add((ASTDereference)node);
+		for (int i = 0; i < node.jjtGetNumChildren(); i++)
+			findReads(node.jjtGetChild(i), reads);
+	}
+
+	// Wrap the largest invariant operator expressions within a node.
+	private void hoist(Node node) {
+		for (int i = 0; i < node.jjtGetNumChildren(); i++) {
+			Node child = node.jjtGetChild(i);
+			if (child instanceof Invariant) {
+				invariants.add((Invariant)child);
+				continue;
+			}
+			if (child instanceof ASTFnDef)
+				continue;
+			if (Optimiser.isConstantOperator(child) && isInvariant(child)) {
+				ArrayList<ASTDereference> reads = new ArrayList<ASTDereference>();
+				findReads(child, reads);
+				if (!reads.isEmpty()) {
+					Invariant invariant = new Invariant((SimpleNode)child, reads, invariantCount++);
+					node.jjtAddChild(invariant, i);
+					invariant.jjtSetParent(node);
+					invariants.add(invariant);
+					continue;
+				}
+			}
+			hoist(child);
+		}
+	}
+
+	// True if a node reads a variable.
+	private boolean reads(Node node, Resolver.Variable variable) {
+		if ((node instanceof ASTDereference || node instanceof ASTArrayIndex) && variable.equals(resolver.getVariable(node)))
+			return true;
+		for (int i = 0; i < node.jjtGetNumChildren(); i++)
+			if (reads(node.jjtGetChild(i), variable))
+				return true;
+		return false;
+	}
+
+	// True if a node assigns a variable.
+	private boolean writes(Node node, Resolver.Variable variable) {
+		if (!(node instanceof ASTDereference || node instanceof ASTArrayIndex) && variable.equals(resolver.getVariable(node)))
+			return true;
+		for (int i = 0; i < node.jjtGetNumChildren(); i++)
+			if (writes(node.jjtGetChild(i), variable))
+				return true;
+		return false;
+	}
+
+	// True if a node is a read of a variable.
+	private boolean isRead(Node node, Resolver.Variable variable) {
+		return node instanceof ASTDereference && variable.equals(resolver.getVariable(node));
+	}
+
+	// Recognise FOR (i = ...; i <op> bound; <step i>) where the body doesn't assign i.
+	private void analyseFor(ASTFor node) {
+		Node initialisation = node.jjtGetChild(0);
+		Node test = node.jjtGetChild(1);
+		Node increment = node.jjtGetChild(2);
+		Node body = node.jjtGetChild(3);
+		Resolver.Variable induction = resolver.getVariable(initialisation);
+		if (!(initialisation instanceof ASTAssignment) || induction == null || test.jjtGetNumChildren() != 2
+				|| resolver.isCaptured(induction.getScope(), induction.getSlot())
+				|| !isRead(test.jjtGetChild(0), induction) || !induction.equals(resolver.getVariable(increment))
+				|| writes(body, induction) || !isInvariant(test.jjtGetChild(1)))
+			return;
+		Node by = increment.jjtGetChild(1);
+		if (increment instanceof ASTAssignmentIncrementSolo && isRead(by, induction))
+			step = 1;
+		else if (increment instanceof ASTAssignmentDecrementSolo && isRead(by, induction))
+			step = -1;
+		else if (increment instanceof ASTAssignmentIncrement && by instanceof ASTInteger)
+			step = Long.parseLong(((SimpleNode)by).tokenValue);
+		else if (increment instanceof ASTAssignmentDecrement && by instanceof ASTInteger)
+			step = -Long.parseLong(((SimpleNode)by).tokenValue);
+		else
+			return;
+		if (test instanceof ASTCompLT)
+			comparison = LT;
+		else if (test instanceof ASTCompLTE)
+			comparison = LTE;
+		else if (test instanceof ASTCompGT)
+			comparison = GT;
+		else if (test instanceof ASTCompGTE)
+			comparison = GTE;
+		else if (test instanceof ASTCompNequal)
+			comparison = NEQUAL;
+		countInvariant = true;
+		bodyReadsInduction = reads(body, induction);
+	}
+
+	/** Get the number of invariant expressions found so far, including this loop's. */
+	int getInvariantCount() {
+		return invariantCount;
+	}
+
+	/** Start an execution of the loop by a Parser.  Return what to pass to exit. */
+	Value[] enter(Parser parser) {
+		if (invariants.isEmpty())
+			return null;
+		// A function called from the loop may run this loop again, so keep the values of this run.
+		Value[] saved = hasCalls ? new Value[invariants.size()] : null;
+		for (int i = 0; i < invariants.size(); i++) {
+			int index = invariants.get(i).index;
+			if (saved != null)
+				saved[i] = parser.getInvariant(index);
+			parser.setInvariant(index, null);
+		}
+		return saved;
+	}
+
+	/** End an execution of the loop by a Parser. */
+	void exit(Parser parser, Value[] saved) {
+		if (saved != null)
+			for (int i = 0; i < invariants.size(); i++)
+				parser.setInvariant(invariants.get(i).index, saved[i]);
+	}
+
+	/** True if a count or bound, just evaluated by a Parser, has the same value every time the loop evaluates it. */
+	boolean isInvariantCount(Node count, Parser parser) {
+		return countInvariant && (!(count instanceof Invariant) || ((Invariant)count).isCached(parser));
+	}
+
+	/** True if a FOR has the form of a counted loop.  It runs as one if its induction variable
+	 * and bound turn out to be integers. */
+	boolean isCounted() {
+		return comparison != NONE;
+	}
+
+	/** True if the body of a counted FOR reads its induction variable. */
+	boolean bodyReadsInduction() {
+		return bodyReadsInduction;
+	}
+
+	/** The amount a counted FOR adds to its induction variable. */
+	long getStep() {
+		return step;
+	}
+
+	/** Evaluate the test of a counted FOR. */
+	boolean test(long induction, long bound) {
+		switch (comparison) {
+			case LT: return induction < bound;
+			case LTE: return induction <= bound;
+			case GT: return induction > bound;
+			case GTE: return induction >= bound;
+			default: return induction != bound;
+		}
+	}
+
+	/** Return the number of times a LOOP with a given count runs, or -1 if it doesn't run a
+	 * whole number of times that can be counted exactly. */
+	static long loopCount(Value count) {
+		if (!(count instanceof ValueInteger || count instanceof ValueRational))
+			return -1;
+		double d = count.doubleValue();
+		if (d < 0 || d > (1L << 53) || d != Math.floor(d))
+			return -1;
+		return (long)d;
+	}
+}
@@ -0,0 +1,227 @@
+package uk.ac.derby.ldi.sili2.interpreter;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+
+import uk.ac.derby.ldi.sili2.parser.ast.*;
+import uk.ac.derby.ldi.sili2.values.*;
+
+/** Memoises the calls of pure functions.
+ *
+ * A function is pure if it returns a value, uses no variable but its own parameters and
+ * variables, defines no functions, writes no output, assigns no array element and only calls
+ * pure functions.  Its value then depends on its arguments alone, so each ExecutionContext
+ * keeps the values of its calls in a Cache, keyed by the function and the argument values,
+ * and a call with the same arguments returns the same value without running it again.
+ *
+ * Only calls whose arguments are integers, rationals, booleans or strings are looked up, and
+ * only values that aren't arrays are kept, as an array may be changed once it has been returned.
+ * A call that fails keeps nothing, so it fails again as it always would have.  The cache holds
+ * a limited number of values, and drops the least recently used.  A function whose values are
+ * seldom found again stops being memoised in that context, so it doesn't pay for the lookups.
+ * Each Cache counts its own lookups, so the FunctionDefinitions of a compiled program, which
+ * contexts share, aren't changed as it runs.
+ */
+class Memoiser {
+
+	/** Number of values a context keeps, by default. */
+	static final int defaultEntries = 65536;
+
+	// A function stops being memoised if fewer than 1 in seldomHits of its lookups have found their values, checked
+	// every checkEvery misses.
+	private static final long checkEvery = 1024;
+	private static final long seldomHits = 4;
+
+	private static volatile int entries = defaultEntries;
+
+	// Counters for every context
+	private static final LongAdder hits = new LongAdder();
+	private static final LongAdder misses = new LongAdder();
+	private static final LongAdder evictions = new LongAdder();
+
+	private final Resolver resolver;
+
+	/** The arguments of a call of a pure function. */
+	static final class Key {
+		private final FunctionDefinition function;
+		private final Value[] arguments;
+		private final int hash;
+
+		private Key(FunctionDefinition function, Value[] arguments, int hash) {
+			this.function = function;
+			this.arguments = arguments;
+			this.hash = hash;
+		}
+
+		/** Keys are equal if they are of the same function, with arguments of the same types and values. */
+		public boolean equals(Object o) {
+			if (!(o instanceof Key))
+				return false;
+			Key key = (Key)o;
+			if (key.function != function || key.hash != hash)
+				return false;
+			for (int i = 0; i < arguments.length; i++)
+				if (!isSame(arguments[i], key.arguments[i]))
+					return false;
+			return true;
+		}
+
+		public int hashCode() {
+			return hash;
+		}
+	}
+
+	/** The values of the calls of pure functions a context has made. */
+	static final class Cache {
+		private final int capacity = entries;
+		private final Map<Key, Value> values = new LinkedHashMap<Key, Value>(16, 0.75f, true) {
+			private static final long serialVersionUID = 0;
+			protected boolean removeEldestEntry(Map.Entry<Key, Value> eldest) {
+				if (size() <= capacity)
+					return false;
+				evictions.increment();
+				return true;
+			}
+		};
+		// Lookups of each function that have found their values and not, and the functions that no longer look them up
+		private final IdentityHashMap<FunctionDefinition, long[]> lookups = new IdentityHashMap<FunctionDefinition, long[]>();
+		private final Set<FunctionDefinition> seldomFound = Collections.newSetFromMap(new IdentityHashMap<FunctionDefinition, Boolean>());
+
+		/** True if calls of a function look up their values: it is pure, and its values haven't seldom been found. */
+		boolean isMemoised(FunctionDefinition function) {
+			return function.isMemoised() && !seldomFound.contains(function);
+		}
+
+		/** Get the key of a call with given arguments, or null if they can't be looked up. */
+		Key key(FunctionDefinition function, Value[] arguments) {
+			int hash = System.identityHashCode(function);
+			for (Value argument: arguments) {
+				if (!isKey(argument))
+					return null;
+				hash = hash * 31 + hashOf(argument);
+			}
+			return new Key(function, arguments, hash);
+		}
+
+		/** Get the value of a call, or null if it isn't known. */
+		Value get(Key key) {
+			Value v = values.get(key);
+			long[] counts = lookups.get(key.function);
+			if (counts == null)
+				lookups.put(key.function, counts = new long[2]);
+			if (v != null) {
+				hits.increment();
+				counts[0]++;
+			} else {
+				misses.increment();
+				long missed = ++counts[1];
+				if (missed % checkEvery == 0 && counts[0] * seldomHits < missed)
+					seldomFound.add(key.function);
+			}
+			return v;
+		}
+
+		/** Keep the value of a call, unless it is an array. */
+		void put(Key key, Value v) {
+			if (isKey(v))
+				values.put(key, v);
+		}
+	}
+
+	/** Set the number of values a context keeps.  0 turns memoising off. */
+	static void setEntries(int count) {
+		entries = count;
+	}
+
+	/** True if calls of pure functions are memoised. */
+	static boolean isEnabled() {
+		return entries > 0;
+	}
+
+	/** Get the numbers of values found, not found and dropped by every context, a line each. */
+	static String getStatistics() {
+		String newline = System.lineSeparator();
+		return "memoised hits " + hits.sum() + newline
+			+ "memoised misses " + misses.sum() + newline
+			+ "memoised evictions " + evictions.sum() + newline;
+	}
+
+	// True if a value may be part of a key, or kept: it can't be changed.
+	private static boolean isKey(Value v) {
+		return v instanceof ValueInteger || v instanceof ValueRational || v instanceof ValueBoolean || v instanceof ValueString;
+	}
+
+	private static int hashOf(Value v) {
+		if (v instanceof ValueInteger)
+			return Long.hashCode(v.longValue());
+		if (v instanceof ValueRational)
+			return Double.hashCode(v.doubleValue());
+		if (v instanceof ValueBoolean)
+			return Boolean.hashCode(v.booleanValue());
+		return v.stringValue().hashCode();
+	}
+
+	// True if two values that may be part of a key are the same type and value.  1 isn't the same as 1.0.
+	private static boolean isSame(Value a, Value b) {
+		if (a.getClass() != b.getClass())
+			return false;
+		if (a instanceof ValueInteger)
+			return a.longValue() == b.longValue();
+		if (a instanceof ValueRational)
+			return Double.doubleToLongBits(a.doubleValue()) == Double.doubleToLongBits(b.doubleValue());
+		if (a instanceof ValueBoolean)
+			return a.booleanValue() == b.booleanValue();
+		return a.stringValue().equals(b.stringValue());
+	}
+
+	/** Ctor.  Find the pure functions of a program that has been resolved by a given resolver. */
+	Memoiser(Resolver resolver) {
+		this.resolver = resolver;
+	}
+
+	/** Mark the pure functions of the program to be memoised. */
+	void findPureFunctions() {
+		// The functions each candidate calls.  A candidate that calls one that isn't pure isn't pure either.
+		IdentityHashMap<FunctionDefinition, Set<FunctionDefinition>> candidates = new IdentityHashMap<FunctionDefinition, Set<FunctionDefinition>>();
+		for (FunctionDefinition definition: resolver.getFunctions()) {
+			Set<FunctionDefinition> callees = Collections.newSetFromMap(new IdentityHashMap<FunctionDefinition, Boolean>());
+			if (definition.hasReturn()
+					&& isPure(definition, definition.getFunctionBody(), callees)
+					&& isPure(definition, definition.getFunctionReturnExpression(), callees))
+				candidates.put(definition, callees);
+		}
+		boolean changed;
+		do {
+			changed = false;
+			for (FunctionDefinition definition: new ArrayList<FunctionDefinition>(candidates.keySet()))
+				if (!candidates.keySet().containsAll(candidates.get(definition))) {
+					candidates.remove(definition);
+					changed = true;
+				}
+		} while (changed);
+		for (FunctionDefinition definition: candidates.keySet())
+			definition.setMemoised(true);
+	}
+
+	// True if a node of a function only uses the function's own variables and has no effects.  Add the functions it calls.
+	private boolean isPure(FunctionDefinition definition, Node node, Set<FunctionDefinition> callees) {
+		if (node instanceof ASTFnDef || TieredCompiler.hasEffect(node))
+			return false;
+		if (node instanceof ASTCall || node instanceof ASTFnInvoke)
+			callees.add(resolver.getFunction(node));
+		else {
+			Resolver.Variable variable = resolver.getVariable(node);
+			if (variable != null && variable.getScope() != definition)
+				return false;
+		}
+		for (int i = 0; i < node.jjtGetNumChildren(); i++)
+			if (!isPure(definition, node.jjtGetChild(i), callees))
+				return false;
+		return true;
+	}
+}
@@ -0,0 +1,302 @@
+package uk.ac.derby.ldi.sili2.interpreter;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+import uk.ac.derby.ldi.sili2.parser.ast.*;
+import uk.ac.derby.ldi.sili2.values.*;
+
+/** Rewrites a Sili program's AST before it runs, without changing what it does.
+ *
+ * - Operators whose operands are all literals are evaluated, and replaced by a literal.
+ *   An operator that would fail is left alone, so it fails when it runs.
+ * - An IF with a literal test is replaced by the branch it takes, and a WHILE (FALSE)
+ *   is removed.  Code is only removed if it defines no variables or functions and calls
+ *   none, as Resolver would otherwise bind names differently.
+ * - A local variable assigned a literal exactly once, in a top-level statement of its
+ *   function, is replaced by that literal wherever the function reads it later on.
+ * - An assignment of a literal to a variable that is never read is removed.
+ *
+ * These are repeated until nothing changes.  A program that Resolver rejects is left as
+ * it is, so it fails in the same way.
+ */
+class Optimiser {
+
+	private static final int maximumPasses = 10;
+
+	// The evaluator for constant operators.  They never refer to its scope.
+	private final Parser evaluator = new Parser();
+	private final Set<Node> deadStatements = Collections.newSetFromMap(new IdentityHashMap<Node, Boolean>());
+	private boolean changed;
+
+	/** Optimise a program whose main scope starts with the named input variables, if any.  Return
+	 * the optimised program, which may be a different node. */
+	static ASTCode optimise(ASTCode code, String... inputs) {
+		try {
+			new Resolver(code, inputs);
+		} catch (ExceptionSemantic e) {
+			return code;
+		}
+		Optimiser optimiser = new Optimiser();
+		for (int pass = 0; pass < maximumPasses; pass++) {
+			optimiser.changed = false;
+			code = (ASTCode)optimiser.optimise((Node)code);
+			optimiser.deadStatements.clear();
+			optimiser.propagate(new Resolver(code, inputs));
+			if (!optimiser.changed)
+				break;
+		}
+		return code;
+	}
+
+	static boolean isLiteral(Node node) {
+		return node instanceof ASTInteger || node instanceof ASTRational || node instanceof ASTCharacter
+			|| node instanceof ASTTrue || node instanceof ASTFalse;
+	}
+
+	// True for an operator that can be evaluated when its operands are literals.
+	static boolean isConstantOperator(Node node) {
+		return node instanceof ASTOr || node instanceof ASTAnd
+			|| node instanceof ASTCompEqual || node instanceof ASTCompNequal
+			|| node instanceof ASTCompGTE || node instanceof ASTCompLTE
+			|| node instanceof ASTCompGT || node instanceof ASTCompLT
+			|| node instanceof ASTAdd || node instanceof ASTSubtract
+			|| node instanceof ASTTimes || node instanceof ASTDivide
+			|| node instanceof ASTPow || node instanceof ASTPercent
+			|| node instanceof ASTUnaryNot || node instanceof ASTUnaryPlus || node instanceof ASTUnaryMinus
+			|| node instanceof ASTCos || node instanceof ASTSin || node instanceof ASTTan
+			|| node instanceof ASTICos || node instanceof ASTISin || node instanceof ASTITan;
+	}
+
+	private static boolean isAssignment(Node node) {
+		return node instanceof ASTAssignment || node instanceof ASTAssignmentIncrement
+			|| node instanceof ASTAssignmentDecrement || node instanceof ASTAssignmentMul
+			|| node instanceof ASTAssignmentDiv || node instanceof ASTAssignmentIncrementSolo
+			|| node instanceof ASTAssignmentDecrementSolo;
+	}
+
+	// True if a subtree can be removed without changing how Resolver binds the rest of the program.
+	private static boolean isRemovable(Node node) {
+		if (node instanceof ASTFnDef || node instanceof ASTCall || node instanceof ASTFnInvoke || isAssignment(node))
+			return false;
+		for (int i = 0; i < node.jjtGetNumChildren(); i++)
+			if (!isRemovable(node.jjtGetChild(i)))
+				return false;
+		return true;
+	}
+
+	// Create a literal node for a value.  Return null if the value has no literal form.
+	private static SimpleNode literal(Value v) {
+		SimpleNode node;
+		if (v instanceof ValueInteger) {
+			node = new ASTInteger(SiliTreeConstants.JJTINTEGER);
+			node.tokenValue = Long.toString(v.longValue());
+		} else if (v instanceof ValueRational) {
+			node = new ASTRational(SiliTreeConstants.JJTRATIONAL);
+			node.tokenValue = Double.toString(v.doubleValue());
+		} else if (v instanceof ValueString) {
+			node = new ASTCharacter(SiliTreeConstants.JJTCHARACTER);
+			node.tokenValue = "\"" + v.stringValue() + "\"";
+		} else if (v == ValueBoolean.TRUE)
+			node = new ASTTrue(SiliTreeConstants.JJTTRUE);
+		else if (v == ValueBoolean.FALSE)
+			node = new ASTFalse(SiliTreeConstants.JJTFALSE);
+		else
+			return null;
+		return node;
+	}
+
+	// Copy a literal node.
+	private static SimpleNode copyLiteral(SimpleNode literal) {
+		SimpleNode node;
+		if (literal instanceof ASTInteger)
+			node = new ASTInteger(SiliTreeConstants.JJTINTEGER);
+		else if (literal instanceof ASTRational)
+			node = new ASTRational(SiliTreeConstants.JJTRATIONAL);
+		else if (literal instanceof ASTCharacter)
+			node = new ASTCharacter(SiliTreeConstants.JJTCHARACTER);
+		else if (literal instanceof ASTTrue)
+			node = new ASTTrue(SiliTreeConstants.JJTTRUE);
+		else
+			node = new ASTFalse(SiliTreeConstants.JJTFALSE);
+		node.tokenValue = literal.tokenValue;
+		return node;
+	}
+
+	// Create an empty statement list of the same kind as a given one.
+	private static SimpleNode emptyList(Node list) {
+		if (list instanceof ASTCode)
+			return new ASTCode(SiliTreeConstants.JJTCODE);
+		if (list instanceof ASTFnBody)
+			return new ASTFnBody(SiliTreeConstants.JJTFNBODY);
+		return new ASTBlock(SiliTreeConstants.JJTBLOCK);
+	}
+
+	private static void setChild(Node parent, int childIndex, Node child) {
+		parent.jjtAddChild(child, childIndex);
+		child.jjtSetParent(parent);
+	}
+
+	// Evaluate a constant operator.  Return null if it fails or its result has no literal form.
+	private SimpleNode fold(Node node) {
+		for (int i = 0; i < node.jjtGetNumChildren(); i++)
+			if (!isLiteral(node.jjtGetChild(i)))
+				return null;
+		try {
+			return literal((Value)node.jjtAccept(evaluator, null));
+		} catch (RuntimeException e) {
+			return null;
+		} catch (ExceptionSemantic e) {
+			return null;
+		}
+	}
+
+	private static boolean isStatementList(Node node) {
+		return node instanceof ASTCode || node instanceof ASTFnBody || node instanceof ASTBlock;
+	}
+
+	// A statement that does nothing, for a removed statement that isn't in a statement list.
+	private static Node emptyStatement() {
+		SimpleNode statement = new ASTStatement(SiliTreeConstants.JJTSTATEMENT);
+		setChild(statement, 0, new ASTBlock(SiliTreeConstants.JJTBLOCK));
+		return statement;
+	}
+
+	// Optimise a node and its children.  Return the node that replaces it, or null if
+	// it is a statement that should be removed.
+	private Node optimise(Node node) {
+		ArrayList<Node> kept = new ArrayList<Node>();
+		for (int i = 0; i < node.jjtGetNumChildren(); i++) {
+			Node child = node.jjtGetChild(i);
+			Node replacement = optimise(child);
+			if (replacement == null && !isStatementList(node)) {
+				if (node instanceof ASTStatement)
+					return null;
+				replacement = emptyStatement();
+			}
+			if (replacement != null) {
+				if (replacement != child)
+					setChild(node, i, replacement);
+				kept.add(replacement);
+			}
+		}
+		if (kept.size() < node.jjtGetNumChildren()) {
+			// A statement list: rebuild it without the removed statements.
+			SimpleNode list = emptyList(node);
+			for (int i = 0; i < kept.size(); i++)
+				setChild(list, i, kept.get(i));
+			list.jjtSetParent(node.jjtGetParent());
+			changed = true;
+			return list;
+		}
+		if (node instanceof ASTStatement && deadStatements.contains(node)) {
+			changed = true;
+			return null;
+		}
+		if (isConstantOperator(node)) {
+			SimpleNode folded = fold(node);
+			if (folded != null) {
+				changed = true;
+				return folded;
+			}
+		} else if (node instanceof ASTIfStatement) {
+			Node test = node.jjtGetChild(0);
+			boolean hasElse = ((ASTIfStatement)node).ifHasElse;
+			if (test instanceof ASTTrue && (!hasElse || isRemovable(node.jjtGetChild(2)))) {
+				changed = true;
+				return node.jjtGetChild(1).jjtGetChild(0);
+			}
+			if (test instanceof ASTFalse && isRemovable(node.jjtGetChild(1))) {
+				changed = true;
+				return hasElse ? node.jjtGetChild(2).jjtGetChild(0) : null;
+			}
+		} else if (node instanceof ASTWhile) {
+			if (node.jjtGetChild(0) instanceof ASTFalse && isRemovable(node.jjtGetChild(1))) {
+				changed = true;
+				return null;
+			}
+		}
+		return node;
+	}
+
+	// Gather the nodes Resolver bound to each variable.
+	private static void gatherVariables(Node node, Resolver resolver, HashMap<Resolver.Variable, ArrayList<Node>> variables) {
+		Resolver.Variable variable = resolver.getVariable(node);
+		if (variable != null) {
+			ArrayList<Node> nodes = variables.get(variable);
+			if (nodes == null)
+				variables.put(variable, nodes = new ArrayList<Node>());
+			nodes.add(node);
+		}
+		for (int i = 0; i < node.jjtGetNumChildren(); i++)
+			gatherVariables(node.jjtGetChild(i), resolver, variables);
+	}
+
+	// True if an assignment of a literal is a statement in its own right, rather than part of a FOR.
+	private static boolean isLiteralAssignmentStatement(Node node) {
+		return node instanceof ASTAssignment && isLiteral(node.jjtGetChild(1))
+			&& node.jjtGetParent() instanceof ASTStatement;
+	}
+
+	// True if a read of a variable runs after a top-level statement of the function that owns it,
+	// in the same invocation.  Reads from within nested functions never qualify.
+	private static boolean isReadAfter(Node read, FunctionDefinition scope, Node statement) {
+		Node body = scope.getFunctionBody();
+		Node child = read;
+		for (Node node = read.jjtGetParent(); node != null; node = node.jjtGetParent()) {
+			if (node == body) {
+				boolean after = false;
+				for (int i = 0; i < body.jjtGetNumChildren(); i++) {
+					if (body.jjtGetChild(i) == child)
+						return after;
+					if (body.jjtGetChild(i) == statement)
+						after = true;
+				}
+				return false;
+			}
+			if (node == scope.getFunctionReturnExpression())
+				return true;
+			if (node instanceof ASTFnDef)
+				return false;
+			child = node;
+		}
+		return false;
+	}
+
+	// Propagate variables assigned a literal once, and mark assignments nothing reads as dead.
+	private void propagate(Resolver resolver) {
+		HashMap<Resolver.Variable, ArrayList<Node>> variables = new HashMap<Resolver.Variable, ArrayList<Node>>();
+		gatherVariables(resolver.getMain().getFunctionBody(), resolver, variables);
+		for (Resolver.Variable variable: variables.keySet()) {
+			ArrayList<Node> nodes = variables.get(variable);
+			ArrayList<Node> writes = new ArrayList<Node>();
+			for (Node node: nodes)
+				if (!(node instanceof ASTDereference))
+					writes.add(node);
+			if (writes.size() != 1 || !isLiteralAssignmentStatement(writes.get(0)))
+				continue;
+			Node assignment = writes.get(0);
+			FunctionDefinition scope = variable.getScope();
+			int remaining = nodes.size();
+			if (variable.getSlot() >= scope.getParameterCount() && assignment.jjtGetParent().jjtGetParent() == scope.getFunctionBody()) {
+				SimpleNode value = (SimpleNode)assignment.jjtGetChild(1);
+				for (Node read: nodes)
+					if (read != assignment && isReadAfter(read, scope, assignment.jjtGetParent())) {
+						Node parent = read.jjtGetParent();
+						for (int i = 0; i < parent.jjtGetNumChildren(); i++)
+							if (parent.jjtGetChild(i) == read)
+								setChild(parent, i, copyLiteral(value));
+						remaining--;
+						changed = true;
+					}
+			}
+			if (remaining == 1) {
+				deadStatements.add(assignment.jjtGetParent());
+				changed = true;
+			}
+		}
+	}
+}
@@ -0,0 +1,168 @@
+package uk.ac.derby.ldi.sili2.interpreter;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.Charset;
+
+import uk.ac.derby.ldi.sili2.values.*;
+
+/** Where a Sili program's output goes.
+ *
+ * TYPE, TYPEREPEAT and the equation builtins write here rather than to System.out.
+ * Text is collected in a large buffer and handed to the target Writer when the buffer
+ * fills, at the end of every line if flushEveryLine is set, and on flush().  The target
+ * may be standard output, a file, or a StringWriter to capture the output in memory.
+ *
+ * Integers are formatted straight into the buffer, as are rationals with small whole
+ * values.  Other rationals use Double.toString, so the text is exactly what
+ * System.out.println would have written.
+ */
+public class Output {
+
+	private static final String lineSeparator = System.getProperty("line.separator");
+	private static final int bufferSize = 1 << 16;
+	// Digits of Long.MIN_VALUE, which can't be negated.
+	private static final String minimumLong = Long.toString(Long.MIN_VALUE);
+
+	private final Writer target;
+	private final boolean flushEveryLine;
+	private final char[] buffer = new char[bufferSize];
+	private int length = 0;
+
+	/** Ctor.  Write to a given target, optionally flushing it at the end of every line. */
+	public Output(Writer target, boolean flushEveryLine) {
+		this.target = target;
+		this.flushEveryLine = flushEveryLine;
+	}
+
+	/** Get an Output that writes to standard output, in the same encoding as System.out. */
+	public static Output standard(boolean flushEveryLine) {
+		String encoding = System.getProperty("stdout.encoding", System.getProperty("sun.stdout.encoding"));
+		Charset charset = (encoding == null) ? Charset.defaultCharset() : Charset.forName(encoding);
+		return new Output(new OutputStreamWriter(System.out, charset), flushEveryLine);
+	}
+
+	/** Write a string. */
+	public Output print(String s) {
+		if (s == null)
+			s = "null";
+		int count = s.length();
+		if (count > buffer.length - length) {
+			flushBuffer();
+			if (count > buffer.length) {
+				write(s);
+				return this;
+			}
+		}
+		s.getChars(0, count, buffer, length);
+		length += count;
+		return this;
+	}
+
+	/** Write an integer. */
+	public Output print(long v) {
+		if (v == Long.MIN_VALUE)
+			return print(minimumLong);
+		if (buffer.length - length < 20)
+			flushBuffer();
+		if (v < 0) {
+			buffer[length++] = '-';
+			v = -v;
+		}
+		int end = length + digitCount(v);
+		for (int i = end - 1; i >= length; i--) {
+			buffer[i] = (char)('0' + v % 10);
+			v /= 10;
+		}
+		length = end;
+		return this;
+	}
+
+	/** Write a rational, as Double.toString does. */
+	public Output print(double v) {
+		// Whole numbers from 1 to 10^7 are written as digits followed by ".0".
+		if (v == (long)v && Math.abs(v) >= 1 && Math.abs(v) < 1e7)
+			return print((long)v).print(".0");
+		return print(Double.toString(v));
+	}
+
+	/** Write a value, as its toString does. */
+	public Output print(Value v) {
+		if (v instanceof ValueInteger)
+			return print(v.longValue());
+		if (v instanceof ValueRational)
+			return print(v.doubleValue());
+		return print(String.valueOf(v));
+	}
+
+	/** End the line. */
+	public Output println() {
+		print(lineSeparator);
+		if (flushEveryLine)
+			flush();
+		return this;
+	}
+
+	/** Write a string, and end the line. */
+	public Output println(String s) {
+		return print(s).println();
+	}
+
+	/** Write a value, and end the line. */
+	public Output println(Value v) {
+		return print(v).println();
+	}
+
+	/** Write out everything buffered so far. */
+	public void flush() {
+		flushBuffer();
+		try {
+			target.flush();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/** Flush, then close the target. */
+	public void close() {
+		flushBuffer();
+		try {
+			target.close();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	// Number of decimal digits in a non-negative long.
+	private static int digitCount(long v) {
+		int count = 1;
+		while (v >= 10) {
+			v /= 10;
+			count++;
+		}
+		return count;
+	}
+
+	// Hand the buffer to the target.
+	private void flushBuffer() {
+		if (length > 0) {
+			try {
+				target.write(buffer, 0, length);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			length = 0;
+		}
+	}
+
+	// Write a string too long for the buffer straight to the target.
+	private void write(String s) {
+		try {
+			target.write(s);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+}
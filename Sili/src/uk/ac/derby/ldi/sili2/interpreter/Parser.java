@@ -6,7 +6,71 @@ import uk.ac.derby.ldi.sili2.values.*;
 public class Parser implements SiliVisitor {
 	
 	// Scope display handler
-	private Display scope = new Display();
+	private final Display scope;
+	
+	// Where TYPE and the equation builtins write
+	private final Output output;
+	
+	// Values of the loop-invariant expressions of the running loops
+	private final Value[] invariants;
+	
+	// Compiles hot functions, or null if they are always interpreted
+	private final TieredCompiler tiers;
+	
+	// Values of the calls of pure functions, or null if they aren't memoised
+	private final Memoiser.Cache memo;
+	
+	// The function whose body is running, or null for the main program
+	private FunctionDefinition running = null;
+	
+	// A call a function without a return value makes to itself as the last thing it does.
+	static class SelfTailCall {
+		private final FunctionDefinition definition;
+		
+		SelfTailCall(FunctionDefinition definition) {
+			this.definition = definition;
+		}
+		
+		FunctionDefinition getDefinition() {
+			return definition;
+		}
+	}
+	
+	/** Ctor for an evaluator of expressions that refer to no variables or functions.  Output goes to
+	 * standard output, a line at a time. */
+	public Parser() {
+		this(null, Output.standard(true), 0);
+	}
+	
+	/** Ctor for one execution of a program that CompiledProgram has linked. */
+	Parser(Display scope, Output output, int invariantCount) {
+		this(scope, output, invariantCount, null, null);
+	}
+	
+	/** Ctor for one execution of a program that CompiledProgram has linked, whose hot functions are
+	 * compiled by a given TieredCompiler, and whose calls of pure functions are memoised in a given cache. */
+	Parser(Display scope, Output output, int invariantCount, TieredCompiler tiers, Memoiser.Cache memo) {
+		this.scope = scope;
+		this.output = output;
+		invariants = new Value[invariantCount];
+		this.tiers = tiers;
+		this.memo = memo;
+	}
+	
+	/** Get the value of an invariant expression, or null if it hasn't been evaluated in this run of its loop. */
+	Value getInvariant(int index) {
+		return invariants[index];
+	}
+	
+	/** Set the value of an invariant expression. */
+	void setInvariant(int index, Value v) {
+		invariants[index] = v;
+	}
+	
+	/** True if a variable read by an invariant expression holds an array. */
+	boolean isArray(ASTDereference node) {
+		return scope.isArray(dereference(node));
+	}
 	
 	// Get the ith child of a given node.
 	private static SimpleNode getChild(SimpleNode node, int childIndex) {
@@ -36,11 +100,11 @@ public class Parser implements SiliVisitor {
 	
 	// Called if one of the following methods is missing...
 	public Object visit(SimpleNode node, Object data) {
-		System.out.println(node + ": acceptor not implemented in subclass?");
+		output.println(node + ": acceptor not implemented in subclass?");
 		return data;
 	}
 	
-	// Execute a Sili program
+	// Execute a Sili program, which CompiledProgram has linked
 	public Object visit(ASTCode node, Object data) {
 		return doChildren(node, data);	
 	}
@@ -55,28 +119,8 @@ public class Parser implements SiliVisitor {
 		return doChildren(node, data);	
 	}
 
-	// Function definition
+	// Function definition.  Functions are registered by Resolver before the program runs.
 	public Object visit(ASTFnDef node, Object data) {
-		// Already defined?
-		if (node.optimised != null)
-			return data;
-		// Child 0 - identifier (fn name)
-		String fnname = getTokenOfChild(node, 0);
-		if (scope.findFunctionInCurrentLevel(fnname) != null)
-			throw new ExceptionSemantic("Function " + fnname + " already exists.");
-		FunctionDefinition currentFunctionDefinition = new FunctionDefinition(fnname, scope.getLevel() + 1);
-		// Child 1 - function definition parameter list
-		doChild(node, 1, currentFunctionDefinition);
-		// Add to available functions
-		scope.addFunction(currentFunctionDefinition);
-		// Child 2 - function body
-		currentFunctionDefinition.setFunctionBody(getChild(node, 2));
-		// Child 3 - optional return expression
-		if (node.fnHasReturn)
-			currentFunctionDefinition.setFunctionReturnExpression(getChild(node, 3));
-		// Preserve this definition for future reference, and so we don't define
-		// it every time this node is processed.
-		node.optimised = currentFunctionDefinition;
 		return data;
 	}
 	
@@ -98,65 +142,224 @@ public class Parser implements SiliVisitor {
 		return doChildren(node, data);
 	}
 	
+	// Open a frame for a call of a linked function.  Child 1 - arglist, evaluated straight into the new frame.
+	private int openFrame(FunctionDefinition fndef, SimpleNode node) {
+		SimpleNode argumentList = getChild(node, 1);
+		int frame = scope.open(fndef);
+		for (int i=0; i<argumentList.jjtGetNumChildren(); i++)
+			scope.setArgument(frame, i, doChild(argumentList, i));
+		return frame;
+	}
+	
+	// Evaluate the arguments of a call.  Child 1 - arglist
+	private Value[] evaluateArguments(SimpleNode node) {
+		SimpleNode argumentList = getChild(node, 1);
+		Value[] arguments = new Value[argumentList.jjtGetNumChildren()];
+		for (int i=0; i<arguments.length; i++)
+			arguments[i] = doChild(argumentList, i);
+		return arguments;
+	}
+	
+	// Invoke a linked function.
+	private Value call(FunctionDefinition fndef, SimpleNode node) {
+		if (memo != null && memo.isMemoised(fndef))
+			return callMemoised(fndef, evaluateArguments(node));
+		if (tiers != null) {
+			TieredCompiler.CompiledFunction compiled = fndef.getCompiled();
+			if (compiled != null)
+				return callCompiled(fndef, compiled, evaluateArguments(node));
+			tiers.heat(fndef, 1);
+		}
+		return interpret(fndef, openFrame(fndef, node));
+	}
+	
+	// Invoke a pure function, unless its value for the arguments is known.
+	private Value callMemoised(FunctionDefinition fndef, Value[] arguments) {
+		Memoiser.Key key = memo.key(fndef, arguments);
+		if (key == null)
+			return call(fndef, arguments);
+		Value v = memo.get(key);
+		if (v == null) {
+			v = call(fndef, arguments);
+			memo.put(key, v);
+		}
+		return v;
+	}
+	
+	// Invoke a linked function on arguments that have been evaluated.
+	private Value call(FunctionDefinition fndef, Value[] arguments) {
+		if (tiers != null) {
+			TieredCompiler.CompiledFunction compiled = fndef.getCompiled();
+			if (compiled != null)
+				return callCompiled(fndef, compiled, arguments);
+			tiers.heat(fndef, 1);
+		}
+		int frame = scope.open(fndef);
+		for (int i=0; i<arguments.length; i++)
+			scope.setArgument(frame, i, arguments[i]);
+		return interpret(fndef, frame);
+	}
+	
+	// Interpret a function in a frame returned by openFrame.
+	private Value interpret(FunctionDefinition fndef, int frame) {
+		FunctionDefinition caller = running;
+		running = fndef;
+		Value v = scope.execute(fndef, frame, this);
+		running = caller;
+		return v;
+	}
+	
+	// Invoke the compiled form of a function.  If it deoptimises, it is discarded; if it fails,
+	// it is discarded and the call is interpreted instead, so it fails as it always would.
+	private Value callCompiled(FunctionDefinition fndef, TieredCompiler.CompiledFunction compiled, Value[] arguments) {
+		try {
+			Value v = compiled.invoke(arguments);
+			if (compiled.isDeoptimised())
+				tiers.deoptimise(fndef, compiled);
+			return v;
+		} catch (RuntimeException | ExceptionSemantic | StackOverflowError e) {
+			tiers.deoptimise(fndef, compiled);
+		}
+		int frame = scope.open(fndef);
+		for (int i=0; i<arguments.length; i++)
+			scope.setArgument(frame, i, arguments[i]);
+		return interpret(fndef, frame);
+	}
+	
+	// Count iterations of a loop towards compiling the function running it.
+	private void countIterations(long iterations) {
+		if (tiers != null && running != null)
+			tiers.heat(running, iterations);
+	}
+	
 	// Function call
 	public Object visit(ASTCall node, Object data) {
-		FunctionDefinition fndef;
-		if (node.optimised == null) { 
-			// Child 0 - identifier (fn name)
-			String fnname = getTokenOfChild(node, 0);
-			fndef = scope.findFunction(fnname);
-			if (fndef == null)
-				throw new ExceptionSemantic("Function " + fnname + " is undefined.");
-			// Save it for next time
-			node.optimised = fndef;
-		} else
-			fndef = (FunctionDefinition)node.optimised;
-		FunctionInvocation newInvocation = new FunctionInvocation(fndef);
-		// Child 1 - arglist
-		doChild(node, 1, newInvocation);
+		if (node.optimised instanceof SelfTailCall) {
+			// Nothing follows this call, so the caller's frame is reused when control returns to it.
+			scope.tailCall(openFrame(((SelfTailCall)node.optimised).definition, node));
+			return data;
+		}
+		FunctionDefinition fndef = (FunctionDefinition)node.optimised;
 		// Execute
-		scope.execute(newInvocation, this);
+		call(fndef, node);
 		return data;
 	}
 	
 	// Function invocation in an expression
 	public Object visit(ASTFnInvoke node, Object data) {
-		FunctionDefinition fndef;
-		if (node.optimised == null) { 
-			// Child 0 - identifier (fn name)
-			String fnname = getTokenOfChild(node, 0);
-			fndef = scope.findFunction(fnname);
-			if (fndef == null)
-				throw new ExceptionSemantic("Function " + fnname + " is undefined.");
-			if (!fndef.hasReturn())
-				throw new ExceptionSemantic("Function " + fnname + " is being invoked in an expression but does not have a return value.");
-			// Save it for next time
-			node.optimised = fndef;
-		} else
-			fndef = (FunctionDefinition)node.optimised;
-		FunctionInvocation newInvocation = new FunctionInvocation(fndef);
-		// Child 1 - arglist
-		doChild(node, 1, newInvocation);
+		FunctionDefinition fndef = (FunctionDefinition)node.optimised;
 		// Execute
-		return scope.execute(newInvocation, this);
+		return call(fndef, node);
 	}
 	
-	// Function invocation argument list.
+	/** Run a call Inliner has inlined, in the caller's frame.  Return the function's value, if it has one. */
+	Object inline(Inliner.Inline node, Object data) {
+		scope.unassign(node.getLocals(), node.getLocalCount());
+		int statements = node.hasReturn() ? node.jjtGetNumChildren() - 1 : node.jjtGetNumChildren();
+		for (int i=0; i<statements; i++)
+			doChild(node, i, null);
+		return node.hasReturn() ? doChild(node, statements) : data;
+	}
+	
+	// Function invocation argument list.  Arguments are evaluated by call(), straight
+	// into the callee's frame.
 	public Object visit(ASTArgList node, Object data) {
-		FunctionInvocation newInvocation = (FunctionInvocation)data;
-		for (int i=0; i<node.jjtGetNumChildren(); i++)
-			newInvocation.setArgument(doChild(node, i));
-		newInvocation.checkArgumentCount();
 		return data;
 	}
 	
+	// True if a node always evaluates to a boolean, or fails.
+	private static boolean isCondition(Node node) {
+		return node instanceof ASTOr || node instanceof ASTAnd || node instanceof ASTUnaryNot || isComparison(node)
+			|| node instanceof ASTTrue || node instanceof ASTFalse;
+	}
+	
+	// True if a node is a comparison.
+	private static boolean isComparison(Node node) {
+		return node instanceof ASTCompEqual || node instanceof ASTCompNequal
+			|| node instanceof ASTCompGTE || node instanceof ASTCompLTE
+			|| node instanceof ASTCompGT || node instanceof ASTCompLT;
+	}
+	
+	// True if a node always evaluates to a boolean, or fails, or TypeInference has proven it does.
+	private static boolean isBoolean(Node node) {
+		return isCondition(node) || ((SimpleNode)node).inferredType == TypeInference.BOOLEAN;
+	}
+	
+	// True if TypeInference has proven a node evaluates to an integer.
+	private static boolean isInteger(Node node) {
+		return ((SimpleNode)node).inferredType == TypeInference.INTEGER;
+	}
+	
+	// True if TypeInference has proven a node evaluates to a rational.
+	private static boolean isRational(Node node) {
+		return ((SimpleNode)node).inferredType == TypeInference.RATIONAL;
+	}
+	
+	// True if an operand of a comparison is an integer that can be read without boxing it.
+	private boolean isLongOperand(Node node) {
+		return node instanceof ASTInteger || (node instanceof ASTDereference && scope.isLong(dereference((ASTDereference)node)));
+	}
+	
+	// True if a comparison's operands are proven to be integers, or a rational and a number, so it
+	// can be made on primitives.
+	private static boolean isPrimitiveComparison(SimpleNode node) {
+		Node left = node.jjtGetChild(0);
+		Node right = node.jjtGetChild(1);
+		return (isInteger(left) && isInteger(right)) || (isRational(left) && (isRational(right) || isInteger(right)));
+	}
+	
+	// Decide a comparison from the sign of the comparison of its operands.
+	private static boolean decide(SimpleNode node, int comparison) {
+		if (node instanceof ASTCompEqual)
+			return comparison == 0;
+		if (node instanceof ASTCompNequal)
+			return comparison != 0;
+		if (node instanceof ASTCompGTE)
+			return comparison >= 0;
+		if (node instanceof ASTCompLTE)
+			return comparison <= 0;
+		if (node instanceof ASTCompGT)
+			return comparison > 0;
+		return comparison < 0;
+	}
+	
+	// Evaluate a node as a primitive boolean, as Value.booleanValue() does.  OR and AND only
+	// evaluate their right operand if they must, and comparisons of integer variables and
+	// literals, or of operands proven to be numbers, don't box them.
+	private boolean truth(SimpleNode node) {
+		if (node instanceof ASTOr && isBoolean(node.jjtGetChild(0)))
+			return truth(getChild(node, 0)) || truth(getChild(node, 1));
+		if (node instanceof ASTAnd && isBoolean(node.jjtGetChild(0)))
+			return truth(getChild(node, 0)) && truth(getChild(node, 1));
+		if (node instanceof ASTUnaryNot && isBoolean(node.jjtGetChild(0)))
+			return !truth(getChild(node, 0));
+		if (isComparison(node)) {
+			if (isInteger(node.jjtGetChild(0)) && isInteger(node.jjtGetChild(1)))
+				return decide(node, Long.compare(integer(getChild(node, 0)), integer(getChild(node, 1))));
+			if (isPrimitiveComparison(node))
+				return decide(node, Specialisation.compare(rational(getChild(node, 0)), doubleOfChild(node, 1)));
+			if (isLongOperand(node.jjtGetChild(0)) && isLongOperand(node.jjtGetChild(1)))
+				return decide(node, Long.compare(longOfChild(node, 0), longOfChild(node, 1)));
+		}
+		return ((Value)node.jjtAccept(this, null)).booleanValue();
+	}
+	
+	// Evaluate the test of a control statement.  A test that isn't boolean fails with a given
+	// message, or if there is none, a ClassCastException.
+	private boolean condition(SimpleNode node, int childIndex, String message) {
+		SimpleNode test = getChild(node, childIndex);
+		if (isBoolean(test))
+			return truth(test);
+		Value hopefullyValueBoolean = doChild(node, childIndex);
+		if (message != null && !(hopefullyValueBoolean instanceof ValueBoolean))
+			throw new ExceptionSemantic(message);
+		return ((ValueBoolean)hopefullyValueBoolean).booleanValue();
+	}
+	
 	// Execute an IF 
 	public Object visit(ASTIfStatement node, Object data) {
 		// evaluate boolean expression
-		Value hopefullyValueBoolean = doChild(node, 0);
-		if (!(hopefullyValueBoolean instanceof ValueBoolean))
-			throw new ExceptionSemantic("The test expression of an if statement must be boolean.");
-		if (((ValueBoolean)hopefullyValueBoolean).booleanValue())
+		if (condition(node, 0, "The test expression of an if statement must be boolean."))
 			doChild(node, 1);							// if(true), therefore do 'if' statement
 		else if (node.ifHasElse)						// does it have an else statement?
 			doChild(node, 2);							// if(false), therefore do 'else' statement
@@ -165,23 +368,53 @@ public class Parser implements SiliVisitor {
 	
 	// Execute a FOR loop
 	public Object visit(ASTFor node, Object data) {
+		LoopAnalysis loop = (LoopAnalysis)node.optimised;
+		Value[] saved = loop.enter(this);
 		// loop initialisation
 		doChild(node, 0);
-		while (true) {
+		if (!loop.isCounted() || !doCountedFor(node, loop)) {
+			long iterations = 0;
 			// evaluate loop test
-			Value hopefullyValueBoolean = doChild(node, 1);
-			if (!(hopefullyValueBoolean instanceof ValueBoolean))
-				throw new ExceptionSemantic("The test expression of a for loop must be boolean.");
-			if (!((ValueBoolean)hopefullyValueBoolean).booleanValue())
-				break;
-			// do loop statement
-			doChild(node, 3);
-			// assign loop increment
-			doChild(node, 2);
+			while (condition(node, 1, "The test expression of a for loop must be boolean.")) {
+				// do loop statement
+				doChild(node, 3);
+				// assign loop increment
+				doChild(node, 2);
+				iterations++;
+			}
+			countIterations(iterations);
 		}
+		loop.exit(this, saved);
 		return data;
 	}
 	
+	// Run an initialised FOR as a counted loop, if its induction variable and bound are integers.
+	// Return false, having run nothing, if they aren't.
+	private boolean doCountedFor(ASTFor node, LoopAnalysis loop) {
+		Display.Reference induction = (Display.Reference)getChild(node, 0).optimised;
+		if (!scope.isLong(induction))
+			return false;
+		SimpleNode test = getChild(node, 1);
+		Value bound = doChild(test, 1);
+		if (!(bound instanceof ValueInteger) || !loop.isInvariantCount(test.jjtGetChild(1), this))
+			return false;
+		long i = scope.getLong(induction);
+		long limit = bound.longValue();
+		long step = loop.getStep();
+		boolean store = loop.bodyReadsInduction();
+		long iterations = 0;
+		while (loop.test(i, limit)) {
+			if (store)
+				scope.setLong(induction, i);
+			doChild(node, 3);
+			i += step;
+			iterations++;
+		}
+		scope.setLong(induction, i);
+		countIterations(iterations);
+		return true;
+	}
+	
 	//duadratic equation
 	public Object visit(ASTQuad node, Object data)
 	{
@@ -190,7 +423,7 @@ public class Parser implements SiliVisitor {
 		double c = doChild(node, 2).doubleValue();
 		double positive = (-b + Math.pow((Math.pow(b, 2) -4 * a *c), 0.5)) / (2 * a);
 		double negative = (-b - Math.pow((Math.pow(b, 2) -4 * a *c), 0.5)) / (2 * a);
-		System.out.println("Quadratic of +X = " + positive + " Quadratic of -X = " + negative);
+		output.print("Quadratic of +X = ").print(positive).print(" Quadratic of -X = ").print(negative).println();
 		return data;
 	}
 	
@@ -202,9 +435,9 @@ public class Parser implements SiliVisitor {
 		double x2 = doChild(node, 2).doubleValue();
 		double y2 = doChild(node, 3).doubleValue();
 		double grad = (y1 - y2) / (x1 -x2);
-		System.out.println("Gradient = " + grad);
+		output.print("Gradient = ").print(grad).println();
 		double intercept = y1 - (grad * x1);
-		System.out.println("Line equation y = " + grad + "x + " + intercept);
+		output.print("Line equation y = ").print(grad).print("x + ").print(intercept).println();
 		return data;
 	}
 	
@@ -213,7 +446,7 @@ public class Parser implements SiliVisitor {
 	{
 		double distance = doChild(node, 0).doubleValue();
 		double time = doChild(node, 1).doubleValue();
-		System.out.println("Speed = " + (distance / time) + "units/s");
+		output.print("Speed = ").print(distance / time).print("units/s").println();
 		return data;
 	}
 	
@@ -222,7 +455,7 @@ public class Parser implements SiliVisitor {
 	{
 		double distance = doChild(node, 0).doubleValue();
 		double speed = doChild(node, 1).doubleValue();
-		System.out.println("Time = " + (distance / speed) + " seconds");
+		output.print("Time = ").print(distance / speed).print(" seconds").println();
 		return data;
 	}
 	
@@ -231,30 +464,46 @@ public class Parser implements SiliVisitor {
 	{
 		double speed = doChild(node, 0).doubleValue();
 		double time = doChild(node, 1).doubleValue();
-		System.out.println("Distance = " + (speed * time) + "units");
+		output.print("Distance = ").print(speed * time).print("units").println();
 		return data;
 	}
 		
 	
 	// While loop
 	public Object visit(ASTWhile node, Object data) {
-		while (true) {
-			//evaluate the loop
-			Value hopefullyValueBoolean = doChild(node, 0);
-			if (!((ValueBoolean)hopefullyValueBoolean).booleanValue())
-				break;
+		LoopAnalysis loop = (LoopAnalysis)node.optimised;
+		Value[] saved = loop.enter(this);
+		//evaluate the loop
+		long iterations = 0;
+		while (condition(node, 0, null)) {
 			doChild(node, 1);
+			iterations++;
 		}
+		countIterations(iterations);
+		loop.exit(this, saved);
 		return data;
 	}
 	
 	// Loop x number of times
 	public Object visit(ASTLoopX node, Object data) {
-		double count = 0;
-		while (count != doChild(node, 0).doubleValue()) {
-			doChild(node, 1); //do statement
-			count = count + 1;
+		LoopAnalysis loop = (LoopAnalysis)node.optimised;
+		Value[] saved = loop.enter(this);
+		Value count = doChild(node, 0);
+		long times = LoopAnalysis.loopCount(count);
+		if (times >= 0 && loop.isInvariantCount(node.jjtGetChild(0), this)) {
+			for (long i = 0; i < times; i++)
+				doChild(node, 1); //do statement
+			countIterations(times);
+		} else {
+			double counter = 0;
+			while (counter != count.doubleValue()) {
+				doChild(node, 1); //do statement
+				counter = counter + 1;
+				count = doChild(node, 0);
+			}
+			countIterations((long)counter);
 		}
+		loop.exit(this, saved);
 		return data;
 	}
 	
@@ -264,7 +513,7 @@ public class Parser implements SiliVisitor {
 		double x = doChild(node, 1).doubleValue();
 		double intercept = doChild(node, 2).doubleValue();
 		double y = (m * x) + intercept;
-		System.out.println("Y = " + y);
+		output.print("Y = ").print(y).println();
 		return y;
 	}
 	
@@ -274,7 +523,7 @@ public class Parser implements SiliVisitor {
 		double y = doChild(node, 1).doubleValue();
 		double intercept = doChild(node, 2).doubleValue();
 		double x = (y - intercept) / m;
-		System.out.println("X = " + x);
+		output.print("X = ").print(x).println();
 		return x;
 	}
 		
@@ -287,34 +536,130 @@ public class Parser implements SiliVisitor {
 	
 	// Execute the TYPE statement
 	public Object visit(ASTType node, Object data) {
-		System.out.println(doChild(node, 0));
+		output.println(doChild(node, 0));
 		return data;
 	}
 	
 	// Execute the TYPEREPEAT statement
 	public Object visit(ASTTypeRepeat node, Object data) {
-		long count = 0;
-		while(count != doChild(node, 1).longValue())
-		{
-			System.out.println(doChild(node, 0));
-			doChild(node, 2);
-			count++;
+		LoopAnalysis loop = (LoopAnalysis)node.optimised;
+		Value[] saved = loop.enter(this);
+		Value count = doChild(node, 1);
+		long times = count.longValue();
+		if (times >= 0 && (count instanceof ValueInteger || count instanceof ValueRational) && loop.isInvariantCount(node.jjtGetChild(1), this)) {
+			for (long i = 0; i < times; i++) {
+				output.println(doChild(node, 0));
+				doChild(node, 2);
+			}
+			countIterations(times);
+		} else {
+			long counter = 0;
+			while (counter != times) {
+				output.println(doChild(node, 0));
+				doChild(node, 2);
+				counter++;
+				times = doChild(node, 1).longValue();
+			}
+			countIterations(counter);
 		}
+		loop.exit(this, saved);
 		return data;
 	}
 	
+	// Return the Reference a dereference node points to.
+	private static Display.Reference dereference(ASTDereference node) {
+		return (Display.Reference)node.optimised;
+	}
+	
+	// Evaluate a child node as a long, as Value.longValue() does.  A variable, or an expression
+	// proven to be an integer, is evaluated without boxing it.
+	private long longOfChild(SimpleNode node, int childIndex) {
+		SimpleNode child = getChild(node, childIndex);
+		if (child instanceof ASTDereference)
+			return scope.getLong(dereference((ASTDereference)child));
+		if (isInteger(child))
+			return integer(child);
+		return doChild(node, childIndex).longValue();
+	}
+	
+	// Evaluate a child node as a double, as Value.doubleValue() does.  A variable, or an expression
+	// proven to be a number, is evaluated without boxing it.
+	private double doubleOfChild(SimpleNode node, int childIndex) {
+		SimpleNode child = getChild(node, childIndex);
+		if (child instanceof ASTDereference)
+			return scope.getDouble(dereference((ASTDereference)child));
+		if (isRational(child))
+			return rational(child);
+		if (isInteger(child))
+			return integer(child);
+		return doChild(node, childIndex).doubleValue();
+	}
+	
+	// True if a node is an operation whose result is computed from its left operand's type.
+	private static boolean isArithmetic(Node node) {
+		return node instanceof ASTAdd || node instanceof ASTSubtract || node instanceof ASTTimes || node instanceof ASTDivide
+			|| node instanceof ASTUnaryPlus || node instanceof ASTUnaryMinus;
+	}
+	
+	// Evaluate a node proven to be an integer.  Arithmetic whose left operand is proven to be an
+	// integer is done on longs, as ValueInteger does it, without boxing its operands.
+	private long integer(SimpleNode node) {
+		if (node instanceof ASTDereference)
+			return scope.getLong(dereference((ASTDereference)node));
+		if (isArithmetic(node) && isInteger(node.jjtGetChild(0))) {
+			long left = integer(getChild(node, 0));
+			if (node instanceof ASTUnaryPlus)
+				return left;
+			if (node instanceof ASTUnaryMinus)
+				return -left;
+			long right = longOfChild(node, 1);
+			if (node instanceof ASTAdd)
+				return left + right;
+			if (node instanceof ASTSubtract)
+				return left - right;
+			if (node instanceof ASTTimes)
+				return left * right;
+			return left / right;
+		}
+		return ((Value)node.jjtAccept(this, null)).longValue();
+	}
+	
+	// Evaluate a node proven to be a rational.  Arithmetic whose left operand is proven to be a
+	// rational is done on doubles, as ValueRational does it, without boxing its operands.
+	private double rational(SimpleNode node) {
+		if (node instanceof ASTDereference)
+			return scope.getDouble(dereference((ASTDereference)node));
+		if (isArithmetic(node) && isRational(node.jjtGetChild(0))) {
+			double left = rational(getChild(node, 0));
+			if (node instanceof ASTUnaryPlus)
+				return left;
+			if (node instanceof ASTUnaryMinus)
+				return -left;
+			double right = doubleOfChild(node, 1);
+			if (node instanceof ASTAdd)
+				return left + right;
+			if (node instanceof ASTSubtract)
+				return left - right;
+			if (node instanceof ASTTimes)
+				return left * right;
+			return left / right;
+		}
+		return ((Value)node.jjtAccept(this, null)).doubleValue();
+	}
+	
+	// Evaluate an arithmetic node whose left operand is proven to be an integer or a rational on
+	// primitives, and box only its result.  Return null if its left operand isn't proven to be either.
+	private Value primitive(SimpleNode node) {
+		if (isInteger(node.jjtGetChild(0)))
+			return ValueInteger.valueOf(integer(node));
+		if (isRational(node.jjtGetChild(0)))
+			return new ValueRational(rational(node));
+		return null;
+	}
+	
 	// Dereference a variable or parameter, and return its value.
 	public Object visit(ASTDereference node, Object data) {
-		Display.Reference reference;
-		if (node.optimised == null) {
-			String name = node.tokenValue;
-			reference = scope.findReference(name);
-			if (reference == null)
-				throw new ExceptionSemantic("Variable or parameter " + name + " is undefined.");
-			node.optimised = reference;
-		} else
-			reference = (Display.Reference)node.optimised;
-		return reference.getValue();
+		return scope.getValue(dereference(node));
 	}
 	
 	// Function definition parameter list
@@ -324,25 +669,20 @@ public class Parser implements SiliVisitor {
 			values[i] = doChild(node, i);			
 		}
 		
-		ValueArray arr = new ValueArray(values);
-		node.optimised = arr;
-		return node.optimised;
+		return new ValueArray(values);
 	}
 	
 	public Object visit(ASTArrayIndex node, Object data) {
-		Value index = doChild(node, 1);
+		Display.Reference reference = (Display.Reference)node.optimised;
+		if (isInteger(node.jjtGetChild(1))) {
+			// An index proven to be an integer can't fail to convert, so it is evaluated first without boxing it.
+			long index = integer(getChild(node, 1));
+			return ((ValueArray)scope.getValue(reference)).getIndex((int)index);
+		}
 		
-		Display.Reference reference;
-		if (node.optimised == null) {
-			String name = getTokenOfChild(node, 0);
-			reference = scope.findReference(name);
-			if (reference == null)
-				throw new ExceptionSemantic("Variable or parameter " + name + " is undefined.");
-			node.optimised = reference;
-		} else
-			reference = (Display.Reference)node.optimised;
+		Value index = doChild(node, 1);
 		
-		ValueArray arr = (ValueArray)reference.getValue();
+		ValueArray arr = (ValueArray)scope.getValue(reference);
 		Value item = arr.getIndex((int)index.longValue());
 		
 		return item;
@@ -351,112 +691,83 @@ public class Parser implements SiliVisitor {
 	
 	// Execute an assignment statement.
 	public Object visit(ASTAssignment node, Object data) {
-		Display.Reference reference;
-		if (node.optimised == null) {
-			String name = getTokenOfChild(node, 0);
-			reference = scope.findReference(name);
-			if (reference == null)
-				reference = scope.defineVariable(name);
-			node.optimised = reference;
-		} else
-			reference = (Display.Reference)node.optimised;
-		reference.setValue(doChild(node, 1));
+		Display.Reference reference = (Display.Reference)node.optimised;
+		if (isInteger(node.jjtGetChild(1)))
+			scope.setLong(reference, integer(getChild(node, 1)));
+		else if (isRational(node.jjtGetChild(1)))
+			scope.setDouble(reference, rational(getChild(node, 1)));
+		else
+			scope.setValue(reference, doChild(node, 1));
 		return data;
 	}
 	
 	// Execute an assignment increment statement.
 		public Object visit(ASTAssignmentIncrement node, Object data) {
-			Display.Reference reference;
-			if (node.optimised == null) {
-				String name = getTokenOfChild(node, 0);
-				reference = scope.findReference(name);
-				if (reference == null)
-					reference = scope.defineVariable(name);
-				node.optimised = reference;
+			Display.Reference reference = (Display.Reference)node.optimised;
+			if (scope.isLong(reference)) {
+				long current = scope.getLong(reference);
+				scope.setLong(reference, current + longOfChild(node, 1));
+			} else if (scope.isDouble(reference)) {
+				double current = scope.getDouble(reference);
+				scope.setDouble(reference, current + doubleOfChild(node, 1));
 			} else
-				reference = (Display.Reference)node.optimised;
-			reference.setValue(reference.getValue().add(doChild(node, 1)));
+				scope.setValue(reference, scope.getValue(reference).add(doChild(node, 1)));
 			return data;
 		}
 		
 	// Execute an assignment mul statement.
 		public Object visit(ASTAssignmentMul node, Object data) {
-			Display.Reference reference;
-			if (node.optimised == null) {
-				String name = getTokenOfChild(node, 0);
-				reference = scope.findReference(name);
-				if (reference == null)
-					reference = scope.defineVariable(name);
-				node.optimised = reference;
+			Display.Reference reference = (Display.Reference)node.optimised;
+			if (scope.isLong(reference)) {
+				long current = scope.getLong(reference);
+				scope.setLong(reference, current * longOfChild(node, 1));
+			} else if (scope.isDouble(reference)) {
+				double current = scope.getDouble(reference);
+				scope.setDouble(reference, current * doubleOfChild(node, 1));
 			} else
-				reference = (Display.Reference)node.optimised;
-			reference.setValue(reference.getValue().mult(doChild(node, 1)));
+				scope.setValue(reference, scope.getValue(reference).mult(doChild(node, 1)));
 			return data;
 		}
 				
 	// Execute an assignment div statement.
 		public Object visit(ASTAssignmentDiv node, Object data) {
-			Display.Reference reference;
-			if (node.optimised == null) {
-				String name = getTokenOfChild(node, 0);
-				reference = scope.findReference(name);
-				if (reference == null)
-					reference = scope.defineVariable(name);
-				node.optimised = reference;
+			Display.Reference reference = (Display.Reference)node.optimised;
+			if (scope.isLong(reference)) {
+				long current = scope.getLong(reference);
+				scope.setLong(reference, current / longOfChild(node, 1));
+			} else if (scope.isDouble(reference)) {
+				double current = scope.getDouble(reference);
+				scope.setDouble(reference, current / doubleOfChild(node, 1));
 			} else
-				reference = (Display.Reference)node.optimised;
-			reference.setValue(reference.getValue().div(doChild(node, 1)));
+				scope.setValue(reference, scope.getValue(reference).div(doChild(node, 1)));
 			return data;
 		}
 		
 	// Execute an assignment increment statement solo.
 		public Object visit(ASTAssignmentIncrementSolo node, Object data) {
-			Display.Reference reference;
-			if (node.optimised == null) {
-				String name = getTokenOfChild(node, 0);
-				reference = scope.findReference(name);
-				if (reference == null)
-					reference = scope.defineVariable(name);
-				node.optimised = reference;
-			} else
-				reference = (Display.Reference)node.optimised;
-			long v = doChild(node, 1).longValue();
-			v = v + 1;
-			ValueInteger v2 = new ValueInteger(v);
-			reference.setValue(v2);
+			Display.Reference reference = (Display.Reference)node.optimised;
+			scope.setLong(reference, longOfChild(node, 1) + 1);
 			return data;
 		}
 	
 	// Execute an assignment decrement statement.
 		public Object visit(ASTAssignmentDecrement node, Object data) {
-			Display.Reference reference;
-			if (node.optimised == null) {
-				String name = getTokenOfChild(node, 0);
-				reference = scope.findReference(name);
-				if (reference == null)
-					reference = scope.defineVariable(name);
-				node.optimised = reference;
+			Display.Reference reference = (Display.Reference)node.optimised;
+			if (scope.isLong(reference)) {
+				long current = scope.getLong(reference);
+				scope.setLong(reference, current - longOfChild(node, 1));
+			} else if (scope.isDouble(reference)) {
+				double current = scope.getDouble(reference);
+				scope.setDouble(reference, current - doubleOfChild(node, 1));
 			} else
-				reference = (Display.Reference)node.optimised;
-			reference.setValue(reference.getValue().subtract(doChild(node, 1)));
+				scope.setValue(reference, scope.getValue(reference).subtract(doChild(node, 1)));
 			return data;
 		}
 		
 		// Execute an assignment increment statement solo.
 		public Object visit(ASTAssignmentDecrementSolo node, Object data) {
-			Display.Reference reference;
-			if (node.optimised == null) {
-				String name = getTokenOfChild(node, 0);
-				reference = scope.findReference(name);
-				if (reference == null)
-					reference = scope.defineVariable(name);
-				node.optimised = reference;
-			} else
-				reference = (Display.Reference)node.optimised;
-			long v = doChild(node, 1).longValue();
-			v = v - 1;
-			ValueInteger v2 = new ValueInteger(v);
-			reference.setValue(v2);
+			Display.Reference reference = (Display.Reference)node.optimised;
+			scope.setLong(reference, longOfChild(node, 1) - 1);
 			return data;
 		}
 				
@@ -465,18 +776,10 @@ public class Parser implements SiliVisitor {
 		Value index = doChild(node, 1);
 		Value val = doChild(node, 2);
 		
-		Display.Reference reference;
-		if (node.optimised == null) {
-			String name = getTokenOfChild(node, 0);
-			reference = scope.findReference(name);
-			if (reference == null)
-				throw new ExceptionSemantic("Variable or parameter " + name + " is undefined.");
-			node.optimised = reference;
-		} else
-			reference = (Display.Reference)node.optimised;
+		Display.Reference reference = (Display.Reference)node.optimised;
 		
 		
-		ValueArray arr = (ValueArray)reference.getValue();		
+		ValueArray arr = (ValueArray)scope.getValue(reference);		
 		arr.setIndex((int)index.longValue(), val);
 		
 		return data;
@@ -487,18 +790,10 @@ public class Parser implements SiliVisitor {
 		Value index = doChild(node, 1);
 		Value val = doChild(node, 2);
 		
-		Display.Reference reference;
-		if (node.optimised == null) {
-			String name = getTokenOfChild(node, 0);
-			reference = scope.findReference(name);
-			if (reference == null)
-				throw new ExceptionSemantic("Variable or parameter " + name + " is undefined.");
-			node.optimised = reference;
-		} else
-			reference = (Display.Reference)node.optimised;
+		Display.Reference reference = (Display.Reference)node.optimised;
 		
 		
-		ValueArray arr = (ValueArray)reference.getValue();		
+		ValueArray arr = (ValueArray)scope.getValue(reference);		
 		arr.addIndex((int)index.longValue(), val);
 		return data;
 	}
@@ -508,18 +803,10 @@ public class Parser implements SiliVisitor {
 		Value index = doChild(node, 1);
 		Value val = doChild(node, 2);
 		
-		Display.Reference reference;
-		if (node.optimised == null) {
-			String name = getTokenOfChild(node, 0);
-			reference = scope.findReference(name);
-			if (reference == null)
-				throw new ExceptionSemantic("Variable or parameter " + name + " is undefined.");
-			node.optimised = reference;
-		} else
-			reference = (Display.Reference)node.optimised;
+		Display.Reference reference = (Display.Reference)node.optimised;
 		
 		
-		ValueArray arr = (ValueArray)reference.getValue();		
+		ValueArray arr = (ValueArray)scope.getValue(reference);		
 		arr.subIndex((int)index.longValue(), val);
 		return data;
 	}
@@ -529,18 +816,10 @@ public class Parser implements SiliVisitor {
 		Value index = doChild(node, 1);
 		Value val = doChild(node, 2);
 		
-		Display.Reference reference;
-		if (node.optimised == null) {
-			String name = getTokenOfChild(node, 0);
-			reference = scope.findReference(name);
-			if (reference == null)
-				throw new ExceptionSemantic("Variable or parameter " + name + " is undefined.");
-			node.optimised = reference;
-		} else
-			reference = (Display.Reference)node.optimised;
+		Display.Reference reference = (Display.Reference)node.optimised;
 		
 		
-		ValueArray arr = (ValueArray)reference.getValue();		
+		ValueArray arr = (ValueArray)scope.getValue(reference);		
 		arr.multIndex((int)index.longValue(), val);
 		return data;
 	}
@@ -550,79 +829,101 @@ public class Parser implements SiliVisitor {
 		Value index = doChild(node, 1);
 		Value val = doChild(node, 2);
 			
-		Display.Reference reference;
-		if (node.optimised == null) {
-			String name = getTokenOfChild(node, 0);
-			reference = scope.findReference(name);
-			if (reference == null)
-				throw new ExceptionSemantic("Variable or parameter " + name + " is undefined.");
-			node.optimised = reference;
-		} else
-			reference = (Display.Reference)node.optimised;
+		Display.Reference reference = (Display.Reference)node.optimised;
 		
-		ValueArray arr = (ValueArray)reference.getValue();		
+		ValueArray arr = (ValueArray)scope.getValue(reference);		
 		arr.divIndex((int)index.longValue(), val);
 		return data;
 	}
 	
-	// OR
+	// OR.  The right operand isn't evaluated if the left one is true.
 	public Object visit(ASTOr node, Object data) {
-		return doChild(node, 0).or(doChild(node, 1));
+		Value left = doChild(node, 0);
+		if (left instanceof ValueBoolean && left.booleanValue())
+			return ValueBoolean.TRUE;
+		return left.or(doChild(node, 1));
 	}
 
-	// AND
+	// AND.  The right operand isn't evaluated if the left one is false.
 	public Object visit(ASTAnd node, Object data) {
-		return doChild(node, 0).and(doChild(node, 1));
+		Value left = doChild(node, 0);
+		if (left instanceof ValueBoolean && !left.booleanValue())
+			return ValueBoolean.FALSE;
+		return left.and(doChild(node, 1));
 	}
 
 	// ==
 	public Object visit(ASTCompEqual node, Object data) {
-		return doChild(node, 0).eq(doChild(node, 1));
+		if (isPrimitiveComparison(node))
+			return ValueBoolean.valueOf(truth(node));
+		return Specialisation.eq(node, doChild(node, 0), doChild(node, 1));
 	}	
 
 	// !=
 	public Object visit(ASTCompNequal node, Object data) {
-		return doChild(node, 0).neq(doChild(node, 1));
+		if (isPrimitiveComparison(node))
+			return ValueBoolean.valueOf(truth(node));
+		return Specialisation.neq(node, doChild(node, 0), doChild(node, 1));
 	}
 
 	// >=
 	public Object visit(ASTCompGTE node, Object data) {
-		return doChild(node, 0).gte(doChild(node, 1));
+		if (isPrimitiveComparison(node))
+			return ValueBoolean.valueOf(truth(node));
+		return Specialisation.gte(node, doChild(node, 0), doChild(node, 1));
 	}
 
 	// <=
 	public Object visit(ASTCompLTE node, Object data) {
-		return doChild(node, 0).lte(doChild(node, 1));
+		if (isPrimitiveComparison(node))
+			return ValueBoolean.valueOf(truth(node));
+		return Specialisation.lte(node, doChild(node, 0), doChild(node, 1));
 	}
 
 	// >
 	public Object visit(ASTCompGT node, Object data) {
-		return doChild(node, 0).gt(doChild(node, 1));
+		if (isPrimitiveComparison(node))
+			return ValueBoolean.valueOf(truth(node));
+		return Specialisation.gt(node, doChild(node, 0), doChild(node, 1));
 	}
 
 	// <
 	public Object visit(ASTCompLT node, Object data) {
-		return doChild(node, 0).lt(doChild(node, 1));
+		if (isPrimitiveComparison(node))
+			return ValueBoolean.valueOf(truth(node));
+		return Specialisation.lt(node, doChild(node, 0), doChild(node, 1));
 	}
 
 	// +
 	public Object visit(ASTAdd node, Object data) {
-		return doChild(node, 0).add(doChild(node, 1));
+		Value v = primitive(node);
+		if (v != null)
+			return v;
+		return Specialisation.add(node, doChild(node, 0), doChild(node, 1));
 	}
 
 	// -
 	public Object visit(ASTSubtract node, Object data) {
-		return doChild(node, 0).subtract(doChild(node, 1));
+		Value v = primitive(node);
+		if (v != null)
+			return v;
+		return Specialisation.subtract(node, doChild(node, 0), doChild(node, 1));
 	}
 
 	// *
 	public Object visit(ASTTimes node, Object data) {
-		return doChild(node, 0).mult(doChild(node, 1));
+		Value v = primitive(node);
+		if (v != null)
+			return v;
+		return Specialisation.mult(node, doChild(node, 0), doChild(node, 1));
 	}
 
 	// /
 	public Object visit(ASTDivide node, Object data) {
-		return doChild(node, 0).div(doChild(node, 1));
+		Value v = primitive(node);
+		if (v != null)
+			return v;
+		return Specialisation.div(node, doChild(node, 0), doChild(node, 1));
 	}
 	
 	// Power
@@ -686,11 +987,17 @@ public class Parser implements SiliVisitor {
 
 	// + (unary)
 	public Object visit(ASTUnaryPlus node, Object data) {
+		Value v = primitive(node);
+		if (v != null)
+			return v;
 		return doChild(node, 0).unary_plus();
 	}
 
 	// - (unary)
 	public Object visit(ASTUnaryMinus node, Object data) {
+		Value v = primitive(node);
+		if (v != null)
+			return v;
 		return doChild(node, 0).unary_minus();
 	}
 
@@ -704,7 +1011,7 @@ public class Parser implements SiliVisitor {
 	// Return integer literal
 	public Object visit(ASTInteger node, Object data) {
 		if (node.optimised == null)
-			node.optimised = new ValueInteger(Long.parseLong(node.tokenValue));
+			node.optimised = ValueInteger.valueOf(Long.parseLong(node.tokenValue));
 		return node.optimised;
 	}
 
@@ -718,14 +1025,14 @@ public class Parser implements SiliVisitor {
 	// Return true literal
 	public Object visit(ASTTrue node, Object data) {
 		if (node.optimised == null)
-			node.optimised = new ValueBoolean(true);
+			node.optimised = ValueBoolean.TRUE;
 		return node.optimised;
 	}
 
 	// Return false literal
 	public Object visit(ASTFalse node, Object data) {
 		if (node.optimised == null)
-			node.optimised = new ValueBoolean(false);
+			node.optimised = ValueBoolean.FALSE;
 		return node.optimised;
 	}
 
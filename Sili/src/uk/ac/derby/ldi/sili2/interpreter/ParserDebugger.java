@@ -16,7 +16,7 @@ public class ParserDebugger implements SiliVisitor {
 	
 	/** Debugging dump of a node. */
 	private Object dump(SimpleNode node, Object data) {
-		System.out.println(indentString() + node);
+		System.out.println(indentString() + node + ((node.tokenValue == null) ? "" : " " + node.tokenValue));
 		++indent;
 		data = node.childrenAccept(this, data);
 		--indent;
@@ -101,13 +101,19 @@ public class ParserDebugger implements SiliVisitor {
 	}
 	
 	// Execute a FOR loop
-	public Object visit(ASTForLoop node, Object data) {
+	public Object visit(ASTFor node, Object data) {
 		dump(node, data);
 		return data;
 	}
 	
 	// Execute a While loop
-	public Object visit(ASTWhileLoop node, Object data) {
+	public Object visit(ASTWhile node, Object data) {
+		dump(node, data);
+		return data;
+	}
+	
+	// Execute a LOOP
+	public Object visit(ASTLoopX node, Object data) {
 		dump(node, data);
 		return data;
 	}
@@ -119,13 +125,56 @@ public class ParserDebugger implements SiliVisitor {
 		return data;
 	}
 	
-	// Execute the WRITE statement
-	public Object visit(ASTWrite node, Object data) {
+	// Execute the TYPE statement
+	public Object visit(ASTType node, Object data) {
+		dump(node, data);
+		return data;
+	}
+	
+	// Execute the TYPEREPEAT statement
+	public Object visit(ASTTypeRepeat node, Object data) {
+		dump(node, data);
+		return data;
+	}
+	
+	// Quadratic equation
+	public Object visit(ASTQuad node, Object data) {
+		dump(node, data);
+		return data;
+	}
+	
+	// Line equation
+	public Object visit(ASTLine node, Object data) {
+		dump(node, data);
+		return data;
+	}
+	
+	// Speed equation
+	public Object visit(ASTSpeed node, Object data) {
+		dump(node, data);
+		return data;
+	}
+	
+	// Time equation
+	public Object visit(ASTTime node, Object data) {
+		dump(node, data);
+		return data;
+	}
+	
+	// Distance equation
+	public Object visit(ASTDistance node, Object data) {
+		dump(node, data);
+		return data;
+	}
+	
+	// Find Y from line equation
+	public Object visit(ASTPointY node, Object data) {
 		dump(node, data);
 		return data;
 	}
 	
-	public Object visit(ASTFncos node, Object data) {
+	// Find X from line equation
+	public Object visit(ASTPointX node, Object data) {
 		dump(node, data);
 		return data;
 	}
@@ -148,11 +197,51 @@ public class ParserDebugger implements SiliVisitor {
 		return data;
 	}
 	
+	public Object visit(ASTAssignmentMul node, Object data) {
+		dump(node, data);
+		return data;
+	}
+	
+	public Object visit(ASTAssignmentDiv node, Object data) {
+		dump(node, data);
+		return data;
+	}
+	
+	public Object visit(ASTAssignmentIncrementSolo node, Object data) {
+		dump(node, data);
+		return data;
+	}
+	
+	public Object visit(ASTAssignmentDecrementSolo node, Object data) {
+		dump(node, data);
+		return data;
+	}
+	
 	public Object visit(ASTArrayAssignment node, Object data) {
 		dump(node, data);
 		return data;
 	}
 	
+	public Object visit(ASTArrayAssignmentIncrement node, Object data) {
+		dump(node, data);
+		return data;
+	}
+	
+	public Object visit(ASTArrayAssignmentDecrement node, Object data) {
+		dump(node, data);
+		return data;
+	}
+	
+	public Object visit(ASTArrayAssignmentMul node, Object data) {
+		dump(node, data);
+		return data;
+	}
+	
+	public Object visit(ASTArrayAssignmentDiv node, Object data) {
+		dump(node, data);
+		return data;
+	}
+	
 	public Object visit(ASTArrayList node, Object data) {
 		dump(node, data);
 		return data;
@@ -241,6 +330,12 @@ public class ParserDebugger implements SiliVisitor {
 		dump(node, data);
 		return data;
 	}
+	
+	// Percent
+	public Object visit(ASTPercent node, Object data) {
+		dump(node, data);
+		return data;
+	}
 
 	// Cos
 	public Object visit(ASTCos node, Object data) {
@@ -248,8 +343,32 @@ public class ParserDebugger implements SiliVisitor {
 		return data;
 	}
 	
-	// CosPrint
-	public Object visit(ASTCosPrint node, Object data) {
+	// Sin
+	public Object visit(ASTSin node, Object data) {
+		dump(node, data);
+		return data;
+	}
+	
+	// Tan
+	public Object visit(ASTTan node, Object data) {
+		dump(node, data);
+		return data;
+	}
+	
+	// Inverse cos
+	public Object visit(ASTICos node, Object data) {
+		dump(node, data);
+		return data;
+	}
+	
+	// Inverse sin
+	public Object visit(ASTISin node, Object data) {
+		dump(node, data);
+		return data;
+	}
+	
+	// Inverse tan
+	public Object visit(ASTITan node, Object data) {
 		dump(node, data);
 		return data;
 	}
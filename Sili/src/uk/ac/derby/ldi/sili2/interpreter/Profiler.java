@@ -0,0 +1,269 @@
+package uk.ac.derby.ldi.sili2.interpreter;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+
+import uk.ac.derby.ldi.sili2.parser.ast.*;
+
+/** Measures where a program run by Parser spends its time.
+ *
+ * Profiling inserts a Probe node above every statement, every return expression and every
+ * function call of a linked program.  A probe counts its executions, and times them and the
+ * memory its thread allocates while they run.  Probes are only inserted when profiling, so
+ * an ordinary run has no profiling code in it at all.
+ *
+ * Statements are grouped by the line they start on.  A line's self time excludes the
+ * statements nested within it, including those of the functions it calls; a function's
+ * self time excludes the functions it calls.  A recursive function or line counts its
+ * total time once, in its outermost execution.
+ *
+ * Function call stacks, with the self time spent in each, are written in the collapsed
+ * form flame graph tools read: one line per stack, e.g. "main;fib;fib 1234", in microseconds.
+ * Calls nested more deeply than maximumStackDepth are counted in the deepest stack recorded.
+ *
+ * A profiler records a single run, on a single thread.
+ */
+class Profiler {
+
+	private static final int reportLength = 25;
+	private static final int maximumStackDepth = 512;
+
+	// Running totals for a line or a function.
+	private static class Totals {
+		private final String name;
+		private long count;
+		private long total;
+		private long self;
+		private long allocated;
+		private int active;
+
+		Totals(String name) {
+			this.name = name;
+		}
+	}
+
+	// A function in a call stack, with the self time spent in it with that stack.
+	private static class Stack {
+		private final String name;
+		private final IdentityHashMap<FunctionDefinition, Stack> callees = new IdentityHashMap<FunctionDefinition, Stack>();
+		private long self;
+
+		Stack(String name) {
+			this.name = name;
+		}
+
+		Stack callee(FunctionDefinition definition) {
+			Stack callee = callees.get(definition);
+			if (callee == null)
+				callees.put(definition, callee = new Stack(definition.getName()));
+			return callee;
+		}
+	}
+
+	// An execution of a probe.  Frames are reused, so the profiler allocates little while it runs.
+	private static class Frame {
+		private Totals totals;
+		private Stack stack;
+		private long start;
+		private long allocatedAtStart;
+		private long nested;
+		private long nestedAllocated;
+	}
+
+	/** A node that measures the execution of the node below it. */
+	class Probe extends SimpleNode {
+		private final SimpleNode node;
+		private final Totals totals;
+		private final FunctionDefinition function;
+
+		Probe(SimpleNode node, Totals totals, FunctionDefinition function) {
+			super(0);
+			this.node = node;
+			this.totals = totals;
+			this.function = function;
+			this.line = node.line;
+			jjtAddChild(node, 0);
+			node.jjtSetParent(this);
+		}
+
+		/** Parser executes the node and measures it; any other visitor sees the node itself. */
+		public Object jjtAccept(SiliVisitor visitor, Object data) {
+			if (!(visitor instanceof Parser))
+				return node.jjtAccept(visitor, data);
+			if (function == null)
+				enter(lines, totals, null);
+			else
+				enter(functions, totals, function);
+			try {
+				return node.jjtAccept(visitor, data);
+			} finally {
+				if (function == null)
+					exit(lines);
+				else
+					exit(functions);
+			}
+		}
+
+		public String toString() {
+			return node.toString();
+		}
+	}
+
+	private final com.sun.management.ThreadMXBean threads;
+	private final HashMap<Integer, Totals> lineTotals = new HashMap<Integer, Totals>();
+	private final IdentityHashMap<FunctionDefinition, Totals> functionTotals = new IdentityHashMap<FunctionDefinition, Totals>();
+	private final Totals mainTotals = new Totals("main");
+	private final Stack mainStack = new Stack("main");
+
+	// Active probes of statements, and of function calls
+	private final ArrayList<Frame> lines = new ArrayList<Frame>();
+	private final ArrayList<Frame> functions = new ArrayList<Frame>();
+	private final int[] depth = new int[2];
+	private long elapsed;
+
+	/** Ctor */
+	Profiler() {
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (bean instanceof com.sun.management.ThreadMXBean && ((com.sun.management.ThreadMXBean)bean).isThreadAllocatedMemorySupported())
+			threads = (com.sun.management.ThreadMXBean)bean;
+		else
+			threads = null;
+	}
+
+	/** Insert probes into a linked program. */
+	void instrument(Node node) {
+		for (int i = 0; i < node.jjtGetNumChildren(); i++) {
+			SimpleNode child = (SimpleNode)node.jjtGetChild(i);
+			instrument(child);
+			Probe probe = null;
+			if (child instanceof ASTStatement || node instanceof ASTReturnExpression)
+				probe = new Probe(child, line(child.line), null);
+			else if ((child instanceof ASTCall || child instanceof ASTFnInvoke) && child.optimised != null) {
+				FunctionDefinition definition = (child.optimised instanceof Parser.SelfTailCall)
+					? ((Parser.SelfTailCall)child.optimised).getDefinition() : (FunctionDefinition)child.optimised;
+				probe = new Probe(child, function(definition), definition);
+			}
+			if (probe != null) {
+				node.jjtAddChild(probe, i);
+				probe.jjtSetParent(node);
+			}
+		}
+	}
+
+	private Totals line(int line) {
+		Totals totals = lineTotals.get(line);
+		if (totals == null)
+			lineTotals.put(line, totals = new Totals((line == 0) ? "line ?" : "line " + line));
+		return totals;
+	}
+
+	private Totals function(FunctionDefinition definition) {
+		Totals totals = functionTotals.get(definition);
+		if (totals == null)
+			functionTotals.put(definition, totals = new Totals(definition.getName()));
+		return totals;
+	}
+
+	private long allocated() {
+		return (threads == null) ? 0 : threads.getCurrentThreadAllocatedBytes();
+	}
+
+	/** Start measuring the run, as the main program. */
+	void start() {
+		enter(functions, mainTotals, null);
+		functions.get(0).stack = mainStack;
+	}
+
+	/** Stop measuring the run. */
+	void stop() {
+		while (depth[0] > 0)
+			exit(lines);
+		while (depth[1] > 0)
+			exit(functions);
+	}
+
+	// Start an execution of a probe.
+	private void enter(ArrayList<Frame> frames, Totals totals, FunctionDefinition function) {
+		int level = (frames == lines) ? 0 : 1;
+		if (depth[level] == frames.size())
+			frames.add(new Frame());
+		Frame frame = frames.get(depth[level]);
+		if (function != null) {
+			Stack caller = functions.get(depth[level] - 1).stack;
+			frame.stack = (depth[level] < maximumStackDepth) ? caller.callee(function) : caller;
+		}
+		depth[level]++;
+		totals.count++;
+		totals.active++;
+		frame.totals = totals;
+		frame.nested = 0;
+		frame.nestedAllocated = 0;
+		frame.allocatedAtStart = allocated();
+		frame.start = System.nanoTime();
+	}
+
+	// End the latest execution of a probe.
+	private void exit(ArrayList<Frame> frames) {
+		long end = System.nanoTime();
+		long allocatedAtEnd = allocated();
+		int level = (frames == lines) ? 0 : 1;
+		Frame frame = frames.get(--depth[level]);
+		long time = end - frame.start;
+		long allocated = allocatedAtEnd - frame.allocatedAtStart;
+		Totals totals = frame.totals;
+		if (--totals.active == 0)
+			totals.total += time;
+		totals.self += time - frame.nested;
+		totals.allocated += allocated - frame.nestedAllocated;
+		if (level == 1)
+			frame.stack.self += time - frame.nested;
+		if (depth[level] > 0) {
+			Frame outer = frames.get(depth[level] - 1);
+			outer.nested += time;
+			outer.nestedAllocated += allocated;
+		} else if (level == 1)
+			elapsed = time;
+	}
+
+	private static void report(PrintStream out, String title, String what, Collection<Totals> entries) {
+		ArrayList<Totals> sorted = new ArrayList<Totals>(entries);
+		sorted.sort((a, b) -> Long.compare(b.self, a.self));
+		out.println(title);
+		out.println(String.format("%12s %12s %12s %12s  %s", "count", "total ms", "self ms", "self KB", what));
+		for (int i = 0; i < sorted.size() && i < reportLength; i++) {
+			Totals totals = sorted.get(i);
+			out.println(String.format("%12d %12.3f %12.3f %12.1f  %s", totals.count, totals.total / 1e6, totals.self / 1e6, totals.allocated / 1024.0, totals.name));
+		}
+	}
+
+	/** Write the hot-spot report. */
+	void report(PrintStream out) {
+		out.println(String.format("Profile of a %.3f ms run%s", elapsed / 1e6, (threads == null) ? " (allocation not measured)" : ""));
+		ArrayList<Totals> all = new ArrayList<Totals>(functionTotals.values());
+		all.add(mainTotals);
+		report(out, "Functions, by self time", "function", all);
+		report(out, "Lines, by self time", "statement", lineTotals.values());
+	}
+
+	/** Write the call stacks in collapsed form. */
+	void writeStacks(Path file) throws IOException {
+		try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(file))) {
+			writeStacks(out, mainStack, "main");
+		}
+	}
+
+	private static void writeStacks(PrintWriter out, Stack stack, String path) {
+		if (stack.self >= 1000)
+			out.println(path + " " + stack.self / 1000);
+		for (Stack callee: stack.callees.values())
+			writeStacks(out, callee, path + ";" + callee.name);
+	}
+}
@@ -0,0 +1,247 @@
+package uk.ac.derby.ldi.sili2.interpreter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import uk.ac.derby.ldi.sili2.parser.ast.*;
+
+/** A directory of optimised programs, keyed by a hash of their source.
+ *
+ * The key is a 64-bit FNV-1a hash, which is quick to compute and needs no security
+ * provider to be loaded.  Each entry holds the whole source too, and is only used if the
+ * source matches, so a collision costs a miss rather than running the wrong program.
+ *
+ * A program is stored as its optimised AST, in preorder, after an FNV-1a hash of the AST's
+ * bytes.  Each node is written as its SiliTreeConstants id, its ifHasElse and fnHasReturn
+ * flags, its token value, its source line and its number of children.  FunctionDefinitions aren't stored: they refer to the AST, whose
+ * generated classes aren't Serializable, and resolving the loaded AST is cheap next to
+ * parsing and optimising it.
+ *
+ * Files are read through a memory map, and written to a temporary file that is then
+ * renamed, so a reader never sees a partly written entry.  An entry that can't be read,
+ * or whose AST doesn't match its hash, is treated as missing, and the program is parsed again.
+ */
+class ProgramCache {
+
+	// Change this whenever the grammar, the optimiser or the format changes.
+	private static final int formatVersion = 3;
+	private static final int magic = 0x53494c49;	// "SILI"
+
+	private static final byte HAS_ELSE = 1;
+	private static final byte HAS_RETURN = 2;
+	private static final byte HAS_TOKEN = 4;
+
+	// Bytes of a node without a token: id, flags, line and child count
+	private static final int minimumNodeSize = 10;
+
+	private final Path directory;
+
+	/** Ctor.  The directory is created when the first program is stored. */
+	ProgramCache(Path directory) {
+		this.directory = directory;
+	}
+
+	// Get the 64-bit FNV-1a hash of the bytes of a buffer from its position to its limit.
+	private static long hash(ByteBuffer bytes) {
+		long hash = 0xcbf29ce484222325L;
+		for (int i = bytes.position(); i < bytes.limit(); i++) {
+			hash ^= bytes.get(i) & 0xff;
+			hash *= 0x100000001b3L;
+		}
+		return hash;
+	}
+
+	/** Get the key of a program's source. */
+	static String key(byte[] source) {
+		long hash = hash(ByteBuffer.wrap(source));
+		char[] key = new char[16];
+		for (int i = key.length - 1; i >= 0; i--, hash >>>= 4)
+			key[i] = Character.forDigit((int)(hash & 0xf), 16);
+		return new String(key);
+	}
+
+	private Path file(String key) {
+		return directory.resolve(key + ".ast");
+	}
+
+	/** Load the optimised program with a given source and key.  Return null if it isn't in the cache. */
+	ASTCode load(byte[] source, String key) {
+		Path file = file(key);
+		if (!Files.isRegularFile(file))
+			return null;
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			if (buffer.getInt() != magic || buffer.getInt() != formatVersion || buffer.getInt() != source.length)
+				return null;
+			byte[] cached = new byte[source.length];
+			buffer.get(cached);
+			if (!Arrays.equals(cached, source))
+				return null;
+			long hash = buffer.getLong();
+			if (hash(buffer) != hash)
+				return null;
+			Node code = read(buffer);
+			return (code instanceof ASTCode && !buffer.hasRemaining()) ? (ASTCode)code : null;
+		} catch (IOException | RuntimeException e) {
+			return null;
+		}
+	}
+
+	/** Store the optimised form of a given source under its key. */
+	void store(byte[] source, String key, ASTCode code) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(magic);
+		out.writeInt(formatVersion);
+		out.writeInt(source.length);
+		out.write(source);
+		ByteArrayOutputStream ast = new ByteArrayOutputStream();
+		DataOutputStream astOut = new DataOutputStream(ast);
+		write(code, astOut);
+		astOut.flush();
+		out.writeLong(hash(ByteBuffer.wrap(ast.toByteArray())));
+		ast.writeTo(out);
+		out.flush();
+		Files.createDirectories(directory);
+		Path temporary = Files.createTempFile(directory, key, ".tmp");
+		try {
+			Files.write(temporary, bytes.toByteArray());
+			Files.move(temporary, file(key), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(temporary);
+		}
+	}
+
+	private static void write(SimpleNode node, DataOutputStream out) throws IOException {
+		byte flags = 0;
+		if (node.ifHasElse)
+			flags |= HAS_ELSE;
+		if (node.fnHasReturn)
+			flags |= HAS_RETURN;
+		if (node.tokenValue != null)
+			flags |= HAS_TOKEN;
+		out.writeByte(node.getId());
+		out.writeByte(flags);
+		if (node.tokenValue != null) {
+			byte[] token = node.tokenValue.getBytes(StandardCharsets.UTF_8);
+			out.writeInt(token.length);
+			out.write(token);
+		}
+		out.writeInt(node.line);
+		out.writeInt(node.jjtGetNumChildren());
+		for (int i = 0; i < node.jjtGetNumChildren(); i++)
+			write((SimpleNode)node.jjtGetChild(i), out);
+	}
+
+	// Read a node.  Throws IllegalArgumentException if a length or count runs past the end of the buffer.
+	private static Node read(ByteBuffer buffer) {
+		SimpleNode node = create(buffer.get());
+		byte flags = buffer.get();
+		node.ifHasElse = (flags & HAS_ELSE) != 0;
+		node.fnHasReturn = (flags & HAS_RETURN) != 0;
+		if ((flags & HAS_TOKEN) != 0) {
+			byte[] token = new byte[length(buffer, buffer.getInt(), 1)];
+			buffer.get(token);
+			node.tokenValue = new String(token, StandardCharsets.UTF_8);
+		}
+		node.line = buffer.getInt();
+		int childCount = length(buffer, buffer.getInt(), minimumNodeSize);
+		for (int i = 0; i < childCount; i++) {
+			Node child = read(buffer);
+			node.jjtAddChild(child, i);
+			child.jjtSetParent(node);
+		}
+		return node;
+	}
+
+	// Check a count of items of at least a given size against the bytes left in a buffer.
+	private static int length(ByteBuffer buffer, int count, int size) {
+		if (count < 0 || count > buffer.remaining() / size)
+			throw new IllegalArgumentException("Bad length " + count);
+		return count;
+	}
+
+	// Create an empty node of the class jjtree generated for a given id.
+	static SimpleNode create(int id) {
+		switch (id) {
+			case SiliTreeConstants.JJTCODE: return new ASTCode(id);
+			case SiliTreeConstants.JJTSTATEMENT: return new ASTStatement(id);
+			case SiliTreeConstants.JJTBLOCK: return new ASTBlock(id);
+			case SiliTreeConstants.JJTPARMLIST: return new ASTParmlist(id);
+			case SiliTreeConstants.JJTFNBODY: return new ASTFnBody(id);
+			case SiliTreeConstants.JJTFNDEF: return new ASTFnDef(id);
+			case SiliTreeConstants.JJTRETURNEXPRESSION: return new ASTReturnExpression(id);
+			case SiliTreeConstants.JJTARRAYASSIGNMENT: return new ASTArrayAssignment(id);
+			case SiliTreeConstants.JJTARRAYASSIGNMENTINCREMENT: return new ASTArrayAssignmentIncrement(id);
+			case SiliTreeConstants.JJTARRAYASSIGNMENTDECREMENT: return new ASTArrayAssignmentDecrement(id);
+			case SiliTreeConstants.JJTARRAYASSIGNMENTMUL: return new ASTArrayAssignmentMul(id);
+			case SiliTreeConstants.JJTARRAYASSIGNMENTDIV: return new ASTArrayAssignmentDiv(id);
+			case SiliTreeConstants.JJTASSIGNMENT: return new ASTAssignment(id);
+			case SiliTreeConstants.JJTASSIGNMENTINCREMENT: return new ASTAssignmentIncrement(id);
+			case SiliTreeConstants.JJTASSIGNMENTDECREMENT: return new ASTAssignmentDecrement(id);
+			case SiliTreeConstants.JJTASSIGNMENTMUL: return new ASTAssignmentMul(id);
+			case SiliTreeConstants.JJTASSIGNMENTDIV: return new ASTAssignmentDiv(id);
+			case SiliTreeConstants.JJTASSIGNMENTINCREMENTSOLO: return new ASTAssignmentIncrementSolo(id);
+			case SiliTreeConstants.JJTASSIGNMENTDECREMENTSOLO: return new ASTAssignmentDecrementSolo(id);
+			case SiliTreeConstants.JJTIFSTATEMENT: return new ASTIfStatement(id);
+			case SiliTreeConstants.JJTFOR: return new ASTFor(id);
+			case SiliTreeConstants.JJTWHILE: return new ASTWhile(id);
+			case SiliTreeConstants.JJTLOOPX: return new ASTLoopX(id);
+			case SiliTreeConstants.JJTTYPE: return new ASTType(id);
+			case SiliTreeConstants.JJTTYPEREPEAT: return new ASTTypeRepeat(id);
+			case SiliTreeConstants.JJTQUAD: return new ASTQuad(id);
+			case SiliTreeConstants.JJTLINE: return new ASTLine(id);
+			case SiliTreeConstants.JJTPOINTY: return new ASTPointY(id);
+			case SiliTreeConstants.JJTPOINTX: return new ASTPointX(id);
+			case SiliTreeConstants.JJTCALL: return new ASTCall(id);
+			case SiliTreeConstants.JJTSPEED: return new ASTSpeed(id);
+			case SiliTreeConstants.JJTDISTANCE: return new ASTDistance(id);
+			case SiliTreeConstants.JJTTIME: return new ASTTime(id);
+			case SiliTreeConstants.JJTARGLIST: return new ASTArgList(id);
+			case SiliTreeConstants.JJTOR: return new ASTOr(id);
+			case SiliTreeConstants.JJTAND: return new ASTAnd(id);
+			case SiliTreeConstants.JJTCOMPEQUAL: return new ASTCompEqual(id);
+			case SiliTreeConstants.JJTCOMPNEQUAL: return new ASTCompNequal(id);
+			case SiliTreeConstants.JJTCOMPGTE: return new ASTCompGTE(id);
+			case SiliTreeConstants.JJTCOMPLTE: return new ASTCompLTE(id);
+			case SiliTreeConstants.JJTCOMPGT: return new ASTCompGT(id);
+			case SiliTreeConstants.JJTCOMPLT: return new ASTCompLT(id);
+			case SiliTreeConstants.JJTADD: return new ASTAdd(id);
+			case SiliTreeConstants.JJTSUBTRACT: return new ASTSubtract(id);
+			case SiliTreeConstants.JJTTIMES: return new ASTTimes(id);
+			case SiliTreeConstants.JJTDIVIDE: return new ASTDivide(id);
+			case SiliTreeConstants.JJTPOW: return new ASTPow(id);
+			case SiliTreeConstants.JJTPERCENT: return new ASTPercent(id);
+			case SiliTreeConstants.JJTUNARYNOT: return new ASTUnaryNot(id);
+			case SiliTreeConstants.JJTUNARYPLUS: return new ASTUnaryPlus(id);
+			case SiliTreeConstants.JJTUNARYMINUS: return new ASTUnaryMinus(id);
+			case SiliTreeConstants.JJTCOS: return new ASTCos(id);
+			case SiliTreeConstants.JJTSIN: return new ASTSin(id);
+			case SiliTreeConstants.JJTTAN: return new ASTTan(id);
+			case SiliTreeConstants.JJTICOS: return new ASTICos(id);
+			case SiliTreeConstants.JJTISIN: return new ASTISin(id);
+			case SiliTreeConstants.JJTITAN: return new ASTITan(id);
+			case SiliTreeConstants.JJTARRAYLIST: return new ASTArrayList(id);
+			case SiliTreeConstants.JJTFNINVOKE: return new ASTFnInvoke(id);
+			case SiliTreeConstants.JJTARRAYINDEX: return new ASTArrayIndex(id);
+			case SiliTreeConstants.JJTIDENTIFIER: return new ASTIdentifier(id);
+			case SiliTreeConstants.JJTDEREFERENCE: return new ASTDereference(id);
+			case SiliTreeConstants.JJTCHARACTER: return new ASTCharacter(id);
+			case SiliTreeConstants.JJTINTEGER: return new ASTInteger(id);
+			case SiliTreeConstants.JJTRATIONAL: return new ASTRational(id);
+			case SiliTreeConstants.JJTTRUE: return new ASTTrue(id);
+			case SiliTreeConstants.JJTFALSE: return new ASTFalse(id);
+			default: throw new IllegalArgumentException("Unknown node id " + id);
+		}
+	}
+}
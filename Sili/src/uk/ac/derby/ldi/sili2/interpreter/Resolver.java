@@ -0,0 +1,472 @@
+package uk.ac.derby.ldi.sili2.interpreter;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+import uk.ac.derby.ldi.sili2.parser.ast.*;
+
+/** Static name resolution of a Sili program.
+ *
+ * Walks the AST in execution order, registers every function, and binds every variable
+ * reference to a (function, slot) pair and every function call to its FunctionDefinition.
+ * A function's body is resolved, in the scope that defines it, once the statement that
+ * first calls it has been resolved, so an assignment within it binds to a variable of an
+ * enclosing scope only if that variable is defined by then.  That is the first call in the
+ * source, whether or not it runs.  The bodies of functions that are never called are
+ * resolved at the end of their enclosing scope.  Once resolution is
+ * complete, every function's local count is its exact frame size.
+ *
+ * A name that isn't defined when it is reached, such as a variable read at the top of a
+ * loop and assigned further down, is looked up again once the whole program has been
+ * resolved.  Names that still cannot be bound, calls with the wrong number of arguments,
+ * and invalid function definitions are reported before the program runs.
+ *
+ * A program that runs as it is read is resolved a top-level statement at a time.  A name
+ * that isn't defined yet is looked up again after each later statement, and is only
+ * reported as undefined at the end of the program.
+ */
+class Resolver {
+
+	/** A resolved variable or parameter. */
+	static class Variable {
+		private final FunctionDefinition scope;
+		private final int slot;
+
+		/** Ctor */
+		Variable(FunctionDefinition scope, int slot) {
+			this.scope = scope;
+			this.slot = slot;
+		}
+
+		/** Get the function definition that owns this variable. */
+		FunctionDefinition getScope() {
+			return scope;
+		}
+
+		/** Get the display depth of this variable. */
+		int getLevel() {
+			return scope.getLevel();
+		}
+
+		/** Get the slot number of this variable. */
+		int getSlot() {
+			return slot;
+		}
+
+		/** Variables are equal if they are the same slot of the same function. */
+		public boolean equals(Object o) {
+			return o instanceof Variable && ((Variable)o).scope == scope && ((Variable)o).slot == slot;
+		}
+
+		public int hashCode() {
+			return System.identityHashCode(scope) * 31 + slot;
+		}
+	}
+
+	private final FunctionDefinition main = new FunctionDefinition("%main", 0);
+	private final ArrayList<FunctionDefinition> chain = new ArrayList<FunctionDefinition>();
+	private final IdentityHashMap<Node, Variable> variables = new IdentityHashMap<Node, Variable>();
+	private final IdentityHashMap<Node, FunctionDefinition> functions = new IdentityHashMap<Node, FunctionDefinition>();
+	private final ArrayList<Problem> problems = new ArrayList<Problem>();
+	private final IdentityHashMap<FunctionDefinition, BitSet> captured = new IdentityHashMap<FunctionDefinition, BitSet>();
+	private final ArrayList<FunctionDefinition> definitions = new ArrayList<FunctionDefinition>();
+	private final Set<Node> selfTailCalls = Collections.newSetFromMap(new IdentityHashMap<Node, Boolean>());
+
+	// Functions whose bodies haven't been resolved, with the scope chain that defines each, in definition order
+	private final IdentityHashMap<FunctionDefinition, FunctionDefinition[]> unresolved = new IdentityHashMap<FunctionDefinition, FunctionDefinition[]>();
+	private final ArrayList<FunctionDefinition> unresolvedOrder = new ArrayList<FunctionDefinition>();
+
+	// For a program resolved a statement at a time
+	private final ArrayList<FunctionDefinition> resolvedFunctions = new ArrayList<FunctionDefinition>();
+	private final Set<Node> topLevelFunctions = Collections.newSetFromMap(new IdentityHashMap<Node, Boolean>());
+
+	// A name that couldn't be bound where it was reached, or an error.
+	private static class Problem {
+		private final Node node;
+		private final FunctionDefinition[] chain;
+		private String message;
+
+		Problem(Node node, FunctionDefinition[] chain, String message) {
+			this.node = node;
+			this.chain = chain;
+			this.message = message;
+		}
+	}
+
+	/** Resolve a whole program whose main scope starts with the named input variables, if any.  Throws
+	 * ExceptionSemantic if a name can't be resolved. */
+	Resolver(ASTCode code, String... inputs) {
+		for (String input: inputs)
+			main.defineParameter(input);
+		main.setFunctionBody(code);
+		for (int i = 0; i < code.jjtGetNumChildren(); i++)
+			resolveTopLevel(code.jjtGetChild(i));
+		finish();
+	}
+
+	/** Ctor for a program resolved a top-level statement at a time. */
+	Resolver() {
+	}
+
+	/** Resolve the next top-level statement of a program, and look up the names of earlier statements
+	 * again.  Throws ExceptionSemantic for an invalid call or function definition. */
+	void resolveStatement(ASTStatement statement) {
+		findTopLevelFunctions(statement);
+		resolveTopLevel(statement);
+	}
+
+	// Resolve a top-level statement, then the bodies of the functions it calls, then look up the
+	// names that weren't defined again.
+	private void resolveTopLevel(Node statement) {
+		chain.add(main);
+		resolve(statement);
+		chain.remove(chain.size() - 1);
+		resolveCalls(statement);
+		retry();
+	}
+
+	/** True if every name in the statements resolved so far is bound. */
+	boolean isComplete() {
+		return problems.isEmpty();
+	}
+
+	/** End a program resolved a statement at a time.  The bodies of functions that were never called
+	 * are resolved now, so errors are reported as they would be for the whole program.  Throws
+	 * ExceptionSemantic if a name is still undefined. */
+	void finish() {
+		for (FunctionDefinition definition: new ArrayList<FunctionDefinition>(unresolvedOrder))
+			if (unresolved.containsKey(definition))
+				resolveBody(definition);
+		retry();
+		for (Problem problem: problems) {
+			bindLater(problem);
+			throw new ExceptionSemantic(problem.message);
+		}
+	}
+
+	/** Get the top-level functions whose bodies have been resolved since this was last called. */
+	ArrayList<FunctionDefinition> takeResolvedFunctions() {
+		ArrayList<FunctionDefinition> taken = new ArrayList<FunctionDefinition>(resolvedFunctions);
+		resolvedFunctions.clear();
+		return taken;
+	}
+
+	/** True if an ASTFnDef defines a top-level function of a program resolved a statement at a time.
+	 * Its body is linked by itself, once it has been resolved. */
+	boolean isTopLevelFunction(Node node) {
+		return topLevelFunctions.contains(node);
+	}
+
+	// Note the function definitions of a top-level statement that aren't within another function.
+	private void findTopLevelFunctions(Node node) {
+		if (node instanceof ASTFnDef) {
+			topLevelFunctions.add(node);
+			return;
+		}
+		for (int i = 0; i < node.jjtGetNumChildren(); i++)
+			findTopLevelFunctions(node.jjtGetChild(i));
+	}
+
+	// Resolve the body of a function, in the scope chain that defines it, and of the functions it calls.
+	private void resolveBody(FunctionDefinition definition) {
+		FunctionDefinition[] definedIn = unresolved.remove(definition);
+		unresolvedOrder.remove(definition);
+		ArrayList<FunctionDefinition> saved = new ArrayList<FunctionDefinition>(chain);
+		chain.clear();
+		Collections.addAll(chain, definedIn);
+		definitions.add(definition);
+		resolveScope(definition);
+		chain.clear();
+		chain.addAll(saved);
+		if (!definition.hasReturn())
+			findSelfTailCalls(definition, definition.getFunctionBody());
+		if (definedIn.length == 1)
+			resolvedFunctions.add(definition);
+	}
+
+	// Resolve the bodies of the functions called within a node that haven't been resolved.
+	private void resolveCalls(Node node) {
+		if (node instanceof ASTCall || node instanceof ASTFnInvoke) {
+			FunctionDefinition definition = functions.get(node);
+			if (definition != null && unresolved.containsKey(definition))
+				resolveBody(definition);
+		}
+		for (int i = 0; i < node.jjtGetNumChildren(); i++)
+			resolveCalls(node.jjtGetChild(i));
+	}
+
+	// Look up names that weren't defined again, and resolve the bodies of the functions that are now called.
+	private void retry() {
+		ArrayList<Problem> unbound = new ArrayList<Problem>();
+		while (!problems.isEmpty()) {
+			Problem problem = problems.remove(0);
+			if (problem.message == null && !bind(problem))
+				unbound.add(problem);
+			else if (problem.message != null)
+				throw new ExceptionSemantic(problem.message);
+			else
+				resolveCalls(problem.node);
+		}
+		problems.addAll(unbound);
+	}
+
+	/** Drop what is known about the nodes of a subtree that has been linked. */
+	void forget(Node node) {
+		variables.remove(node);
+		functions.remove(node);
+		selfTailCalls.remove(node);
+		topLevelFunctions.remove(node);
+		for (int i = 0; i < node.jjtGetNumChildren(); i++)
+			forget(node.jjtGetChild(i));
+	}
+
+	/** Get the definition of the root or main scope. */
+	FunctionDefinition getMain() {
+		return main;
+	}
+
+	/** Get every user-defined function, in the order their bodies were resolved. */
+	Iterable<FunctionDefinition> getFunctions() {
+		return definitions;
+	}
+
+	/** Bind a node, made after resolution, to a variable. */
+	void bindVariable(Node node, Variable variable) {
+		variables.put(node, variable);
+	}
+
+	/** Bind a call, made after resolution, to a function. */
+	void bindFunction(Node node, FunctionDefinition definition) {
+		functions.put(node, definition);
+	}
+
+	/** Get the variable referenced by a node.  Return null if it is undefined. */
+	Variable getVariable(Node node) {
+		return variables.get(node);
+	}
+
+	/** Get the function referenced by an ASTCall, ASTFnInvoke or ASTFnDef.  Return null if it is undefined. */
+	FunctionDefinition getFunction(Node node) {
+		return functions.get(node);
+	}
+
+	/** True if an ASTCall is a call a function without a return value makes to itself as the last thing it does. */
+	boolean isSelfTailCall(Node node) {
+		return selfTailCalls.contains(node);
+	}
+
+	/** True if a slot of a function is referenced from a function nested within it. */
+	boolean isCaptured(FunctionDefinition definition, int slot) {
+		BitSet slots = captured.get(definition);
+		return slots != null && slots.get(slot);
+	}
+
+	/** True if any slot of a function is referenced from a function nested within it. */
+	boolean hasCaptured(FunctionDefinition definition) {
+		BitSet slots = captured.get(definition);
+		return slots != null && !slots.isEmpty();
+	}
+
+	// Find the calls a function makes to itself in the last statement of a statement list, or
+	// either branch of a final IF.
+	private void findSelfTailCalls(FunctionDefinition definition, Node node) {
+		if (node instanceof ASTCall) {
+			if (functions.get(node) == definition)
+				selfTailCalls.add(node);
+		} else if (node instanceof ASTFnBody || node instanceof ASTBlock || node instanceof ASTStatement) {
+			if (node.jjtGetNumChildren() > 0)
+				findSelfTailCalls(definition, node.jjtGetChild(node.jjtGetNumChildren() - 1));
+		} else if (node instanceof ASTIfStatement) {
+			findSelfTailCalls(definition, node.jjtGetChild(1));
+			if (((ASTIfStatement)node).ifHasElse)
+				findSelfTailCalls(definition, node.jjtGetChild(2));
+		}
+	}
+
+	// Resolve the body and return expression of a function a statement at a time, each followed by
+	// the bodies of the functions it calls, then the functions it defines that were never called.
+	private void resolveScope(FunctionDefinition definition) {
+		chain.add(definition);
+		Node body = definition.getFunctionBody();
+		for (int i = 0; i < body.jjtGetNumChildren(); i++) {
+			resolve(body.jjtGetChild(i));
+			resolveCalls(body.jjtGetChild(i));
+		}
+		if (definition.hasReturn()) {
+			resolve(definition.getFunctionReturnExpression());
+			resolveCalls(definition.getFunctionReturnExpression());
+		}
+		for (FunctionDefinition inner: new ArrayList<FunctionDefinition>(unresolvedOrder))
+			if (unresolved.containsKey(inner) && unresolved.get(inner)[unresolved.get(inner).length - 1] == definition)
+				resolveBody(inner);
+		chain.remove(chain.size() - 1);
+	}
+
+	private FunctionDefinition current() {
+		return chain.get(chain.size() - 1);
+	}
+
+	private FunctionDefinition[] currentChain() {
+		return chain.toArray(new FunctionDefinition[chain.size()]);
+	}
+
+	private static SimpleNode getChild(Node node, int childIndex) {
+		return (SimpleNode)node.jjtGetChild(childIndex);
+	}
+
+	private void resolveChildren(Node node, int[] order) {
+		for (int childIndex: order)
+			resolve(node.jjtGetChild(childIndex));
+	}
+
+	// Find a variable in the innermost scope of a chain or an enclosing one.
+	private Variable findVariable(FunctionDefinition[] chain, String name) {
+		for (int level = chain.length - 1; level >= 0; level--) {
+			FunctionDefinition definition = chain[level];
+			int slot = definition.getLocalSlotNumber(name);
+			if (slot >= 0) {
+				if (level != chain.length - 1) {
+					BitSet slots = captured.get(definition);
+					if (slots == null)
+						captured.put(definition, slots = new BitSet());
+					slots.set(slot);
+				}
+				return new Variable(definition, slot);
+			}
+		}
+		return null;
+	}
+
+	// Find a function in the innermost scope of a chain or an enclosing one.
+	private static FunctionDefinition findFunction(FunctionDefinition[] chain, String name) {
+		for (int level = chain.length - 1; level >= 0; level--) {
+			FunctionDefinition definition = chain[level].findFunction(name);
+			if (definition != null)
+				return definition;
+		}
+		return null;
+	}
+
+	// Name referenced by a variable reference or a call.
+	private static String getName(Node node) {
+		if (node instanceof ASTDereference)
+			return ((SimpleNode)node).tokenValue;
+		return getChild(node, 0).tokenValue;
+	}
+
+	// Bind an assignment target, defining it in the current scope if it doesn't exist.
+	private void define(Node node) {
+		String name = getName(node);
+		Variable variable = findVariable(currentChain(), name);
+		if (variable == null)
+			variable = new Variable(current(), current().defineVariable(name));
+		variables.put(node, variable);
+	}
+
+	// Bind a reference to an existing variable, or a call to an existing function.
+	private void reference(Node node) {
+		Problem problem = new Problem(node, currentChain(), null);
+		if (!bind(problem) || problem.message != null)
+			problems.add(problem);
+	}
+
+	// Try to bind a problem's reference or call in its scope chain.  Return false if its name
+	// isn't defined.  An invalid call is bound, and its error recorded in the problem.
+	private boolean bind(Problem problem) {
+		Node node = problem.node;
+		if (node instanceof ASTCall || node instanceof ASTFnInvoke) {
+			FunctionDefinition definition = findFunction(problem.chain, getName(node));
+			if (definition == null)
+				return false;
+			functions.put(node, definition);
+			problem.message = checkCall(node, definition);
+			return true;
+		}
+		Variable variable = findVariable(problem.chain, getName(node));
+		if (variable == null)
+			return false;
+		variables.put(node, variable);
+		return true;
+	}
+
+	// Bind a name that wasn't defined where it was reached, now the whole program is resolved.
+	private void bindLater(Problem problem) {
+		if (bind(problem))
+			return;
+		if (problem.node instanceof ASTCall || problem.node instanceof ASTFnInvoke)
+			problem.message = "Function " + getName(problem.node) + " is undefined.";
+		else
+			problem.message = "Variable or parameter " + getName(problem.node) + " is undefined.";
+	}
+
+	// Check a call against the function it calls.  Return an error message, or null if it is valid.
+	private static String checkCall(Node node, FunctionDefinition definition) {
+		if (node instanceof ASTFnInvoke && !definition.hasReturn())
+			return "Function " + definition.getName() + " is being invoked in an expression but does not have a return value.";
+		int expected = definition.getParameterCount();
+		int count = node.jjtGetChild(1).jjtGetNumChildren();
+		if (count == expected)
+			return null;
+		int got = (count > expected) ? expected + 1 : count + 1;
+		return "Function " + definition.getSignature() + " expected " + expected + " arguments but got " + got + ".";
+	}
+
+	private void defineFunction(ASTFnDef node) {
+		String fnname = getChild(node, 0).tokenValue;
+		if (current().findFunction(fnname) != null) {
+			problems.add(new Problem(node, null, "Function " + fnname + " already exists."));
+			return;
+		}
+		FunctionDefinition definition = new FunctionDefinition(fnname, current().getLevel() + 1);
+		Node parmlist = node.jjtGetChild(1);
+		try {
+			for (int i = 0; i < parmlist.jjtGetNumChildren(); i++)
+				definition.defineParameter(getChild(parmlist, i).tokenValue);
+		} catch (ExceptionSemantic e) {
+			problems.add(new Problem(node, null, e.getMessage()));
+			return;
+		}
+		current().addFunction(definition);
+		definition.setFunctionBody(getChild(node, 2));
+		if (node.fnHasReturn)
+			definition.setFunctionReturnExpression(getChild(node, 3));
+		functions.put(node, definition);
+		unresolved.put(definition, currentChain());
+		unresolvedOrder.add(definition);
+	}
+
+	// Resolve a node and its children, in the order Parser executes them.
+	private void resolve(Node node) {
+		if (node instanceof ASTFnDef)
+			defineFunction((ASTFnDef)node);
+		else if (node instanceof ASTCall || node instanceof ASTFnInvoke) {
+			reference(node);
+			resolve(node.jjtGetChild(1));
+		} else if (node instanceof ASTDereference)
+			reference(node);
+		else if (node instanceof ASTAssignment || node instanceof ASTAssignmentIncrement
+				|| node instanceof ASTAssignmentDecrement || node instanceof ASTAssignmentMul
+				|| node instanceof ASTAssignmentDiv || node instanceof ASTAssignmentIncrementSolo
+				|| node instanceof ASTAssignmentDecrementSolo) {
+			define(node);
+			resolve(node.jjtGetChild(1));
+		} else if (node instanceof ASTArrayIndex) {
+			resolve(node.jjtGetChild(1));
+			reference(node);
+		} else if (node instanceof ASTArrayAssignment || node instanceof ASTArrayAssignmentIncrement
+				|| node instanceof ASTArrayAssignmentDecrement || node instanceof ASTArrayAssignmentMul
+				|| node instanceof ASTArrayAssignmentDiv) {
+			resolveChildren(node, new int[] {1, 2});
+			reference(node);
+		} else if (node instanceof ASTFor)
+			resolveChildren(node, new int[] {0, 1, 3, 2});
+		else if (node instanceof ASTTypeRepeat)
+			resolveChildren(node, new int[] {1, 0, 2});
+		else
+			for (int i = 0; i < node.jjtGetNumChildren(); i++)
+				resolve(node.jjtGetChild(i));
+	}
+}
@@ -0,0 +1,177 @@
+package uk.ac.derby.ldi.sili2.interpreter;
+
+import uk.ac.derby.ldi.sili2.values.*;
+
+/** Operand types an arithmetic or comparison node has specialised itself for.
+ *
+ * The specialisation is kept in the node's optimised slot.  On first execution a node
+ * specialises itself for the operand types it sees.  Each later execution checks that
+ * its operands still fit; if they don't, the node rewrites itself to GENERIC and uses
+ * the Value operations from then on.  The fast paths give the same results as the
+ * corresponding Value methods, without a virtual call.
+ */
+enum Specialisation {
+	/** Both operands are integers. */
+	INTEGER,
+	/** Left operand is rational, right operand is rational or integer. */
+	RATIONAL,
+	/** Left operand is a string. */
+	STRING,
+	/** Mixed or other operand types. */
+	GENERIC;
+
+	// Return the specialisation that fits a pair of operands.
+	private static Specialisation classify(Value left, Value right) {
+		if (left instanceof ValueInteger && right instanceof ValueInteger)
+			return INTEGER;
+		if (left instanceof ValueRational && (right instanceof ValueRational || right instanceof ValueInteger))
+			return RATIONAL;
+		if (left instanceof ValueString)
+			return STRING;
+		return GENERIC;
+	}
+
+	// Return the node's specialisation, rewriting it if the operands don't fit.
+	private static Specialisation specialise(BaseASTNode node, Value left, Value right) {
+		Object current = node.optimised;
+		if (current == INTEGER) {
+			if (left instanceof ValueInteger && right instanceof ValueInteger)
+				return INTEGER;
+		} else if (current == RATIONAL) {
+			if (left instanceof ValueRational && (right instanceof ValueRational || right instanceof ValueInteger))
+				return RATIONAL;
+		} else if (current == STRING) {
+			if (left instanceof ValueString)
+				return STRING;
+		} else if (current == GENERIC)
+			return GENERIC;
+		else {
+			Specialisation specialisation = classify(left, right);
+			node.optimised = specialisation;
+			return specialisation;
+		}
+		node.optimised = GENERIC;
+		return GENERIC;
+	}
+
+	private static long longOf(Value v) {
+		return ((ValueInteger)v).longValue();
+	}
+
+	private static double doubleOf(Value v) {
+		return ((ValueRational)v).doubleValue();
+	}
+
+	private static String stringOf(Value v) {
+		return ((ValueString)v).stringValue();
+	}
+
+	/** Compare two rationals as ValueRational.compare does. */
+	static int compare(double left, double right) {
+		if (left == right)
+			return 0;
+		else if (left > right)
+			return 1;
+		else
+			return -1;
+	}
+
+	// Compare two operands of a specialised node.
+	private static int compare(Specialisation specialisation, Value left, Value right) {
+		if (specialisation == INTEGER)
+			return Long.compare(longOf(left), longOf(right));
+		if (specialisation == RATIONAL)
+			return compare(doubleOf(left), right.doubleValue());
+		return stringOf(left).compareTo(right.stringValue());
+	}
+
+	/** + */
+	static Value add(BaseASTNode node, Value left, Value right) {
+		Specialisation specialisation = specialise(node, left, right);
+		if (specialisation == INTEGER)
+			return ValueInteger.valueOf(longOf(left) + longOf(right));
+		if (specialisation == RATIONAL)
+			return new ValueRational(doubleOf(left) + right.doubleValue());
+		if (specialisation == STRING)
+			return new ValueString(stringOf(left) + right.stringValue());
+		return left.add(right);
+	}
+
+	/** - */
+	static Value subtract(BaseASTNode node, Value left, Value right) {
+		Specialisation specialisation = specialise(node, left, right);
+		if (specialisation == INTEGER)
+			return ValueInteger.valueOf(longOf(left) - longOf(right));
+		if (specialisation == RATIONAL)
+			return new ValueRational(doubleOf(left) - right.doubleValue());
+		return left.subtract(right);
+	}
+
+	/** * */
+	static Value mult(BaseASTNode node, Value left, Value right) {
+		Specialisation specialisation = specialise(node, left, right);
+		if (specialisation == INTEGER)
+			return ValueInteger.valueOf(longOf(left) * longOf(right));
+		if (specialisation == RATIONAL)
+			return new ValueRational(doubleOf(left) * right.doubleValue());
+		return left.mult(right);
+	}
+
+	/** / */
+	static Value div(BaseASTNode node, Value left, Value right) {
+		Specialisation specialisation = specialise(node, left, right);
+		if (specialisation == INTEGER)
+			return ValueInteger.valueOf(longOf(left) / longOf(right));
+		if (specialisation == RATIONAL)
+			return new ValueRational(doubleOf(left) / right.doubleValue());
+		return left.div(right);
+	}
+
+	/** == */
+	static Value eq(BaseASTNode node, Value left, Value right) {
+		Specialisation specialisation = specialise(node, left, right);
+		if (specialisation == GENERIC)
+			return left.eq(right);
+		return ValueBoolean.valueOf(compare(specialisation, left, right) == 0);
+	}
+
+	/** != */
+	static Value neq(BaseASTNode node, Value left, Value right) {
+		Specialisation specialisation = specialise(node, left, right);
+		if (specialisation == GENERIC)
+			return left.neq(right);
+		return ValueBoolean.valueOf(compare(specialisation, left, right) != 0);
+	}
+
+	/** >= */
+	static Value gte(BaseASTNode node, Value left, Value right) {
+		Specialisation specialisation = specialise(node, left, right);
+		if (specialisation == GENERIC)
+			return left.gte(right);
+		return ValueBoolean.valueOf(compare(specialisation, left, right) >= 0);
+	}
+
+	/** <= */
+	static Value lte(BaseASTNode node, Value left, Value right) {
+		Specialisation specialisation = specialise(node, left, right);
+		if (specialisation == GENERIC)
+			return left.lte(right);
+		return ValueBoolean.valueOf(compare(specialisation, left, right) <= 0);
+	}
+
+	/** > */
+	static Value gt(BaseASTNode node, Value left, Value right) {
+		Specialisation specialisation = specialise(node, left, right);
+		if (specialisation == GENERIC)
+			return left.gt(right);
+		return ValueBoolean.valueOf(compare(specialisation, left, right) > 0);
+	}
+
+	/** < */
+	static Value lt(BaseASTNode node, Value left, Value right) {
+		Specialisation specialisation = specialise(node, left, right);
+		if (specialisation == GENERIC)
+			return left.lt(right);
+		return ValueBoolean.valueOf(compare(specialisation, left, right) < 0);
+	}
+}
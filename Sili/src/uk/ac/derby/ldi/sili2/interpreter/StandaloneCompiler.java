@@ -0,0 +1,118 @@
+package uk.ac.derby.ldi.sili2.interpreter;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import uk.ac.derby.ldi.sili2.parser.ast.ASTCode;
+
+/** Compiles a Sili program ahead of time into a runnable jar.
+ *
+ * The program is compiled by BytecodeCompiler to a class with a main method, which runs it
+ * as the interpreter would.  The jar holds that class and the classes of Sili it refers to,
+ * directly or not, found by reading the constant pool of each class file.  Those are
+ * CompiledCode, Output and the values, so the jar has no parser or interpreter in it and a
+ * run starts with nothing to parse or optimise.
+ */
+class StandaloneCompiler {
+
+	private static final String projectPackage = "uk/ac/derby/ldi/sili2/";
+	private static final Pattern className = Pattern.compile(Pattern.quote(projectPackage) + "[A-Za-z0-9_/$]+");
+
+	/** Compile an optimised program into a jar at a given path, whose main class runs it on a call stack of a given
+	 * number of megabytes.  Throws ExceptionSemantic if it can't be compiled. */
+	static void compile(ASTCode code, Path jar, int megabytes, boolean flushEveryLine) throws IOException {
+		TreeMap<String, byte[]> classes = new TreeMap<String, byte[]>();
+		String mainClass = null;
+		for (Map.Entry<String, byte[]> compiled: new BytecodeCompiler(code).compileStandalone(megabytes, flushEveryLine).entrySet()) {
+			classes.put(compiled.getKey().replace('.', '/'), compiled.getValue());
+			if (compiled.getKey().indexOf('$') < 0)
+				mainClass = compiled.getKey();
+		}
+		addDependencies(classes);
+		Manifest manifest = new Manifest();
+		manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+		manifest.getMainAttributes().put(Attributes.Name.MAIN_CLASS, mainClass);
+		try (OutputStream file = Files.newOutputStream(jar); JarOutputStream out = new JarOutputStream(file, manifest)) {
+			for (Map.Entry<String, byte[]> entry: classes.entrySet()) {
+				out.putNextEntry(new JarEntry(entry.getKey() + ".class"));
+				out.write(entry.getValue());
+				out.closeEntry();
+			}
+		}
+	}
+
+	// Add the project classes the given classes refer to, and the classes those refer to, and so on.
+	private static void addDependencies(TreeMap<String, byte[]> classes) throws IOException {
+		ArrayDeque<byte[]> unread = new ArrayDeque<byte[]>(classes.values());
+		HashSet<String> seen = new HashSet<String>(classes.keySet());
+		ClassLoader loader = StandaloneCompiler.class.getClassLoader();
+		while (!unread.isEmpty()) {
+			for (String name: references(unread.remove())) {
+				if (!seen.add(name))
+					continue;
+				try (InputStream in = loader.getResourceAsStream(name + ".class")) {
+					// A name in a string or a descriptor may not be a class.
+					if (in == null)
+						continue;
+					byte[] bytes = in.readAllBytes();
+					classes.put(name, bytes);
+					unread.add(bytes);
+				}
+			}
+		}
+	}
+
+	// The names of the project classes a class file refers to.  Class entries name classes, and descriptors in
+	// Utf8 entries name the types of fields and methods, so every Utf8 entry is searched.
+	private static HashSet<String> references(byte[] classFile) throws IOException {
+		HashSet<String> names = new HashSet<String>();
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(classFile));
+		in.skipBytes(8);
+		int count = in.readUnsignedShort();
+		for (int i = 1; i < count; i++) {
+			int tag = in.readUnsignedByte();
+			switch (tag) {
+				case 1:
+					Matcher matcher = className.matcher(in.readUTF());
+					while (matcher.find())
+						names.add(matcher.group());
+					break;
+				case 3: case 4:
+					in.skipBytes(4);
+					break;
+				case 5: case 6:
+					// Longs and doubles take two entries.
+					in.skipBytes(8);
+					i++;
+					break;
+				case 7: case 8: case 16: case 19: case 20:
+					in.skipBytes(2);
+					break;
+				case 9: case 10: case 11: case 12: case 17: case 18:
+					in.skipBytes(4);
+					break;
+				case 15:
+					in.skipBytes(3);
+					break;
+				default:
+					throw new IOException("Unrecognised constant pool entry " + tag + " in class file.");
+			}
+		}
+		return names;
+	}
+}
@@ -0,0 +1,175 @@
+package uk.ac.derby.ldi.sili2.interpreter;
+
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import uk.ac.derby.ldi.sili2.parser.ast.*;
+import uk.ac.derby.ldi.sili2.values.Value;
+
+/** Compiles the hot functions of an interpreted program to JVM bytecode, in the background.
+ *
+ * Parser counts the calls of every function, and the iterations of the loops each function
+ * runs.  When the count of a function reaches the threshold, the function is compiled by
+ * BytecodeCompiler, with the functions it calls, on a compiler thread shared by all
+ * programs.  Calls made once it has been compiled run the compiled code; calls already
+ * running carry on in the interpreter, since there is no on-stack replacement.
+ *
+ * Only functions that return a value computed from their arguments alone are compiled: a
+ * function that defines functions, uses a variable of an enclosing scope, writes output or
+ * assigns to an array element is left to the interpreter, as is any function that calls one.
+ * A call of a compiled function has no effect apart from its result, so if it fails, it can
+ * be run again by the interpreter, which fails exactly as it always would have.
+ *
+ * The compiled code does integer arithmetic and comparisons on longs wherever the
+ * interpreter has only seen integers.  If it meets other operands, it deoptimises: it carries
+ * on with the Value operation, and once the call returns the compiled code is discarded and
+ * the function goes back to the interpreter, which counts its calls afresh.  A function is
+ * compiled at most maximumCompilations times.
+ */
+class TieredCompiler {
+
+	/** Number of calls and loop iterations after which a function is compiled, by default. */
+	static final long defaultThreshold = 100000;
+
+	private static final int maximumCompilations = 3;
+
+	private static volatile long threshold = defaultThreshold;
+
+	private static final ExecutorService compilerThread = Executors.newSingleThreadExecutor(runnable -> {
+		Thread thread = new Thread(runnable, "sili-compiler");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	private final Resolver resolver;
+
+	// Number of times each function has been queued for compiling
+	private final IdentityHashMap<FunctionDefinition, Integer> compilations = new IdentityHashMap<FunctionDefinition, Integer>();
+
+	/** The compiled form of a function. */
+	static class CompiledFunction {
+		private final CompiledUnit code;
+		private final int index;
+
+		CompiledFunction(CompiledUnit code, int index) {
+			this.code = code;
+			this.index = index;
+		}
+
+		/** Call the function.  A call that fails may be run again by the interpreter. */
+		Value invoke(Value[] arguments) {
+			return code.invoke(index, arguments);
+		}
+
+		/** True if the code has met operands it wasn't specialised for. */
+		boolean isDeoptimised() {
+			return code.deoptimised;
+		}
+	}
+
+	/** Ctor.  Compile functions of a program that has been resolved by a given resolver. */
+	TieredCompiler(Resolver resolver) {
+		this.resolver = resolver;
+	}
+
+	/** Set the number of calls and loop iterations after which a function is compiled.  0 turns compiling off. */
+	static void setThreshold(long count) {
+		threshold = count;
+	}
+
+	/** True if hot functions are compiled. */
+	static boolean isEnabled() {
+		return threshold > 0;
+	}
+
+	/** Count calls of a function, or iterations of its loops, and compile it if that makes it hot. */
+	void heat(FunctionDefinition definition, long count) {
+		long hotness = definition.heat(count);
+		if (hotness >= threshold && hotness - count < threshold)
+			queue(definition);
+	}
+
+	/** Go back to interpreting a function, whose compiled code has deoptimised or failed. */
+	void deoptimise(FunctionDefinition definition, CompiledFunction compiled) {
+		if (definition.getCompiled() == compiled) {
+			definition.setCompiled(null);
+			definition.cool();
+		}
+	}
+
+	// Queue a function for compiling, unless it has been compiled too often.
+	private synchronized void queue(FunctionDefinition definition) {
+		Integer count = compilations.get(definition);
+		int compiled = (count == null) ? 0 : count.intValue();
+		if (compiled >= maximumCompilations)
+			return;
+		compilations.put(definition, compiled + 1);
+		compilerThread.execute(() -> compile(definition));
+	}
+
+	// Never compile a function again.
+	private synchronized void abandon(FunctionDefinition definition) {
+		compilations.put(definition, maximumCompilations);
+	}
+
+	// Compile a function, with the functions it calls, and have its calls use the compiled code.
+	private void compile(FunctionDefinition definition) {
+		LinkedHashSet<FunctionDefinition> unit = new LinkedHashSet<FunctionDefinition>();
+		if (!collect(definition, unit)) {
+			abandon(definition);
+			return;
+		}
+		CompiledUnit code;
+		try {
+			code = (CompiledUnit)new BytecodeCompiler(resolver, unit).compile();
+		} catch (ExceptionSemantic e) {
+			abandon(definition);
+			return;
+		}
+		// The function is first in the unit.
+		definition.setCompiled(new CompiledFunction(code, 0));
+	}
+
+	// Add a function, and the functions it calls, to the set compiled together.  Return false if any of them can't be compiled.
+	private boolean collect(FunctionDefinition definition, LinkedHashSet<FunctionDefinition> unit) {
+		if (!unit.add(definition))
+			return true;
+		return definition.hasReturn()
+			&& isSelfContained(definition, definition.getFunctionBody(), unit)
+			&& isSelfContained(definition, definition.getFunctionReturnExpression(), unit);
+	}
+
+	// True if a node of a function only uses the function's own variables, has no effects and only calls functions that can be compiled.
+	private boolean isSelfContained(FunctionDefinition definition, Node node, LinkedHashSet<FunctionDefinition> unit) {
+		// The compiled code makes an inlined call.
+		if (node instanceof Inliner.Inline)
+			node = ((Inliner.Inline)node).getCall();
+		if (node instanceof ASTFnDef || hasEffect(node))
+			return false;
+		if (node instanceof ASTCall || node instanceof ASTFnInvoke) {
+			if (!collect(resolver.getFunction(node), unit))
+				return false;
+		} else {
+			Resolver.Variable variable = resolver.getVariable(node);
+			if (variable != null && variable.getScope() != definition)
+				return false;
+		}
+		for (int i = 0; i < node.jjtGetNumChildren(); i++)
+			if (!isSelfContained(definition, node.jjtGetChild(i), unit))
+				return false;
+		return true;
+	}
+
+	/** True if a node writes output or changes an array. */
+	static boolean hasEffect(Node node) {
+		return node instanceof ASTType || node instanceof ASTTypeRepeat
+			|| node instanceof ASTQuad || node instanceof ASTLine || node instanceof ASTSpeed
+			|| node instanceof ASTTime || node instanceof ASTDistance
+			|| node instanceof ASTPointX || node instanceof ASTPointY
+			|| node instanceof ASTArrayAssignment || node instanceof ASTArrayAssignmentIncrement
+			|| node instanceof ASTArrayAssignmentDecrement || node instanceof ASTArrayAssignmentMul
+			|| node instanceof ASTArrayAssignmentDiv;
+	}
+}
@@ -0,0 +1,279 @@
+package uk.ac.derby.ldi.sili2.interpreter;
+
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import uk.ac.derby.ldi.sili2.parser.ast.*;
+
+/** Static type inference of a resolved Sili program.
+ *
+ * Works out the types of value every expression can evaluate to, and records them in the
+ * node's inferredType as a set of the bits below.  Parser evaluates an expression proven to
+ * be an integer or a rational on primitives, and a test proven to be boolean without checking
+ * it is; anything with more than one possible type is left to the dynamic path.
+ *
+ * The analysis is flow-sensitive within a function: an assignment replaces what is known
+ * about a variable of the function, the branches of an IF are joined, and a loop is analysed
+ * until what it assigns stops growing.  A variable used by a nested function, or of the
+ * main scope read within a function, is taken to hold any type it is ever assigned anywhere.
+ * A parameter holds any type it is passed, and a call any type its function returns, so the
+ * functions of the program are analysed over and over until none of those change.
+ *
+ * Errors aren't types: an operation that would fail adds nothing, since nothing evaluates
+ * after it.  The result of every arithmetic operation, if it has one, has the type of its
+ * left operand.
+ */
+class TypeInference {
+
+	static final int INTEGER = 1;
+	static final int RATIONAL = 2;
+	static final int BOOLEAN = 4;
+	static final int STRING = 8;
+	static final int ARRAY = 16;
+	// Any other value, or one that can't be followed, such as an array element
+	private static final int OTHER = 32;
+	private static final int ANY = INTEGER | RATIONAL | BOOLEAN | STRING | ARRAY | OTHER;
+
+	private final Resolver resolver;
+
+	// Types ever assigned to each variable or passed to each parameter, and returned by each function
+	private final HashMap<Resolver.Variable, Integer> assigned = new HashMap<Resolver.Variable, Integer>();
+	private final IdentityHashMap<FunctionDefinition, Integer> returned = new IdentityHashMap<FunctionDefinition, Integer>();
+	private final IdentityHashMap<Node, Integer> types = new IdentityHashMap<Node, Integer>();
+	private boolean changed;
+
+	// The function being analysed
+	private FunctionDefinition function;
+
+	/** Ctor.  Analyse a program resolved by a given resolver. */
+	TypeInference(Resolver resolver) {
+		this.resolver = resolver;
+	}
+
+	/** Infer the types of the program's expressions, and record them in its nodes. */
+	void infer() {
+		FunctionDefinition main = resolver.getMain();
+		// The inputs of the main scope may be anything.
+		for (int i = 0; i < main.getParameterCount(); i++)
+			assigned.put(new Resolver.Variable(main, i), ANY);
+		do {
+			changed = false;
+			analyse(main);
+			for (FunctionDefinition definition: resolver.getFunctions())
+				analyse(definition);
+		} while (changed);
+		for (Map.Entry<Node, Integer> entry: types.entrySet())
+			((SimpleNode)entry.getKey()).inferredType = entry.getValue();
+	}
+
+	// Analyse the body and return expression of a function.
+	private void analyse(FunctionDefinition definition) {
+		function = definition;
+		HashMap<Resolver.Variable, Integer> state = new HashMap<Resolver.Variable, Integer>();
+		for (int i = 0; i < definition.getParameterCount(); i++)
+			state.put(new Resolver.Variable(definition, i), get(assigned, new Resolver.Variable(definition, i)));
+		analyse(definition.getFunctionBody(), state);
+		if (definition.hasReturn())
+			join(returned, definition, analyse(definition.getFunctionReturnExpression().jjtGetChild(0), state));
+	}
+
+	private static <K> int get(Map<K, Integer> map, K key) {
+		Integer type = map.get(key);
+		return (type == null) ? 0 : type.intValue();
+	}
+
+	// Add types to those of a variable, a parameter or a function.
+	private <K> void join(Map<K, Integer> map, K key, int type) {
+		int old = get(map, key);
+		if ((old | type) != old) {
+			map.put(key, old | type);
+			changed = true;
+		}
+	}
+
+	// Add the types of every variable in one state to another.
+	private static void join(HashMap<Resolver.Variable, Integer> state, HashMap<Resolver.Variable, Integer> other) {
+		for (Map.Entry<Resolver.Variable, Integer> entry: other.entrySet())
+			state.put(entry.getKey(), get(state, entry.getKey()) | entry.getValue());
+	}
+
+	// True if the flow of a variable's types is followed through the function being analysed.
+	private boolean isFollowed(Resolver.Variable variable) {
+		return variable.getScope() == function && !resolver.isCaptured(function, variable.getSlot());
+	}
+
+	private int read(Node node, HashMap<Resolver.Variable, Integer> state) {
+		Resolver.Variable variable = resolver.getVariable(node);
+		if (variable == null)
+			return ANY;
+		return isFollowed(variable) ? get(state, variable) : get(assigned, variable);
+	}
+
+	private void write(Node node, HashMap<Resolver.Variable, Integer> state, int type) {
+		Resolver.Variable variable = resolver.getVariable(node);
+		if (variable == null)
+			return;
+		if (isFollowed(variable))
+			state.put(variable, type);
+		join(assigned, variable, type);
+	}
+
+	// The types of the result of an arithmetic operation, given those of its left operand.
+	private static int arithmetic(int left, boolean concatenates) {
+		if ((left & OTHER) != 0)
+			return ANY;
+		return (left & (INTEGER | RATIONAL)) | (concatenates ? left & STRING : 0);
+	}
+
+	// Analyse the children of a node in order, and return the types of the last.
+	private int analyseChildren(Node node, HashMap<Resolver.Variable, Integer> state) {
+		int type = 0;
+		for (int i = 0; i < node.jjtGetNumChildren(); i++)
+			type = analyse(node.jjtGetChild(i), state);
+		return type;
+	}
+
+	// Analyse a loop until the state at its start stops growing.  Its children, given in the order
+	// they run in each iteration, all run in every iteration.
+	private void analyseLoop(Node node, HashMap<Resolver.Variable, Integer> state, int... children) {
+		HashMap<Resolver.Variable, Integer> start;
+		do {
+			start = new HashMap<Resolver.Variable, Integer>(state);
+			HashMap<Resolver.Variable, Integer> iteration = new HashMap<Resolver.Variable, Integer>(state);
+			for (int child: children)
+				analyse(node.jjtGetChild(child), iteration);
+			join(state, iteration);
+		} while (!start.equals(state));
+	}
+
+	// Analyse the arguments of a call, and pass their types to the function's parameters.
+	private void analyseCall(Node node, HashMap<Resolver.Variable, Integer> state) {
+		FunctionDefinition definition = resolver.getFunction(node);
+		Node arguments = node.jjtGetChild(1);
+		for (int i = 0; i < arguments.jjtGetNumChildren(); i++) {
+			int type = analyse(arguments.jjtGetChild(i), state);
+			if (definition != null)
+				join(assigned, new Resolver.Variable(definition, i), type);
+		}
+	}
+
+	// Analyse a node run in a given state, which it updates.  Return the types it can evaluate to.
+	private int analyse(Node node, HashMap<Resolver.Variable, Integer> state) {
+		int type = evaluate(node, state);
+		Integer old = types.get(node);
+		types.put(node, (old == null) ? type : old | type);
+		return type;
+	}
+
+	private int evaluate(Node node, HashMap<Resolver.Variable, Integer> state) {
+		// Functions are analysed by themselves.
+		if (node instanceof ASTFnDef)
+			return 0;
+		if (node instanceof ASTInteger)
+			return INTEGER;
+		if (node instanceof ASTRational)
+			return RATIONAL;
+		if (node instanceof ASTCharacter)
+			return STRING;
+		if (node instanceof ASTTrue || node instanceof ASTFalse)
+			return BOOLEAN;
+		if (node instanceof ASTDereference)
+			return read(node, state);
+		if (node instanceof ASTArrayList) {
+			analyseChildren(node, state);
+			return ARRAY;
+		}
+		if (node instanceof ASTArrayIndex) {
+			analyse(node.jjtGetChild(1), state);
+			return ANY;
+		}
+		if (node instanceof ASTAdd) {
+			int left = analyse(node.jjtGetChild(0), state);
+			analyse(node.jjtGetChild(1), state);
+			return arithmetic(left, true);
+		}
+		if (node instanceof ASTSubtract || node instanceof ASTTimes || node instanceof ASTDivide
+				|| node instanceof ASTPow || node instanceof ASTPercent) {
+			int left = analyse(node.jjtGetChild(0), state);
+			analyse(node.jjtGetChild(1), state);
+			return arithmetic(left, false);
+		}
+		if (node instanceof ASTUnaryPlus || node instanceof ASTUnaryMinus)
+			return arithmetic(analyse(node.jjtGetChild(0), state), false);
+		if (node instanceof ASTCos || node instanceof ASTSin || node instanceof ASTTan
+				|| node instanceof ASTICos || node instanceof ASTISin || node instanceof ASTITan) {
+			analyse(node.jjtGetChild(0), state);
+			return RATIONAL;
+		}
+		if (node instanceof ASTOr || node instanceof ASTAnd || node instanceof ASTUnaryNot
+				|| node instanceof ASTCompEqual || node instanceof ASTCompNequal
+				|| node instanceof ASTCompGTE || node instanceof ASTCompLTE
+				|| node instanceof ASTCompGT || node instanceof ASTCompLT) {
+			analyseChildren(node, state);
+			return BOOLEAN;
+		}
+		if (node instanceof ASTFnInvoke) {
+			analyseCall(node, state);
+			FunctionDefinition definition = resolver.getFunction(node);
+			return (definition == null) ? ANY : get(returned, definition);
+		}
+		if (node instanceof ASTCall) {
+			analyseCall(node, state);
+			return 0;
+		}
+		if (node instanceof ASTAssignment) {
+			write(node, state, analyse(node.jjtGetChild(1), state));
+			return 0;
+		}
+		if (node instanceof ASTAssignmentIncrement) {
+			int current = read(node, state);
+			analyse(node.jjtGetChild(1), state);
+			write(node, state, arithmetic(current, true));
+			return 0;
+		}
+		if (node instanceof ASTAssignmentDecrement || node instanceof ASTAssignmentMul || node instanceof ASTAssignmentDiv) {
+			int current = read(node, state);
+			analyse(node.jjtGetChild(1), state);
+			write(node, state, arithmetic(current, false));
+			return 0;
+		}
+		if (node instanceof ASTAssignmentIncrementSolo || node instanceof ASTAssignmentDecrementSolo) {
+			analyse(node.jjtGetChild(1), state);
+			write(node, state, INTEGER);
+			return 0;
+		}
+		if (node instanceof ASTIfStatement) {
+			analyse(node.jjtGetChild(0), state);
+			HashMap<Resolver.Variable, Integer> otherwise = new HashMap<Resolver.Variable, Integer>(state);
+			analyse(node.jjtGetChild(1), state);
+			if (((ASTIfStatement)node).ifHasElse)
+				analyse(node.jjtGetChild(2), otherwise);
+			join(state, otherwise);
+			return 0;
+		}
+		if (node instanceof ASTFor) {
+			analyse(node.jjtGetChild(0), state);
+			analyseLoop(node, state, 1, 3, 2);
+			return 0;
+		}
+		if (node instanceof ASTWhile || node instanceof ASTLoopX) {
+			analyseLoop(node, state, 0, 1);
+			return 0;
+		}
+		if (node instanceof ASTTypeRepeat) {
+			analyseLoop(node, state, 1, 0, 2);
+			return 0;
+		}
+		if (node instanceof LoopAnalysis.Invariant)
+			return analyse(node.jjtGetChild(0), state);
+		if (node instanceof Inliner.Inline) {
+			// The parameter assignments, the body, then the return expression
+			int type = analyseChildren(node, state);
+			return ((Inliner.Inline)node).hasReturn() ? type : 0;
+		}
+		// Statements, blocks, output and the equation builtins.  A value they give may be anything.
+		analyseChildren(node, state);
+		return ANY;
+	}
+}
@@ -0,0 +1,639 @@
+package uk.ac.derby.ldi.sili2.interpreter;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+
+import uk.ac.derby.ldi.sili2.parser.ast.*;
+import uk.ac.derby.ldi.sili2.values.*;
+
+/** Lowers a Sili program to a VMProgram.
+ *
+ * Names are bound by Resolver.  Every visit method emits the code for its node;
+ * expressions leave exactly one value on the operand stack and statements leave
+ * it as they found it.
+ */
+class VMCompiler implements SiliVisitor {
+
+	private final Resolver resolver;
+	private final IdentityHashMap<FunctionDefinition, Integer> functionNumbers = new IdentityHashMap<FunctionDefinition, Integer>();
+	private final ArrayList<Value> constants = new ArrayList<Value>();
+	private final ArrayList<String> messages = new ArrayList<String>();
+	private final ArrayList<String> names = new ArrayList<String>();
+	private final ArrayList<VMProgram.Function> functions = new ArrayList<VMProgram.Function>();
+	private int[] code = new int[256];
+	private int pc = 0;
+
+	// State of the function being lowered
+	private FunctionDefinition function;
+	private int counterCount;
+	private int depth;
+	private int maximumDepth;
+
+	/** Ctor */
+	VMCompiler(ASTCode program) {
+		resolver = new Resolver(program);
+		functionNumbers.put(resolver.getMain(), 0);
+		for (FunctionDefinition definition: resolver.getFunctions())
+			functionNumbers.put(definition, functionNumbers.size());
+	}
+
+	/** Lower the program. */
+	VMProgram compile() {
+		compileFunction(resolver.getMain());
+		for (FunctionDefinition definition: resolver.getFunctions())
+			compileFunction(definition);
+		int[] program = new int[pc];
+		System.arraycopy(code, 0, program, 0, pc);
+		return new VMProgram(program, constants.toArray(new Value[constants.size()]),
+			messages.toArray(new String[messages.size()]), names.toArray(new String[names.size()]),
+			functions.toArray(new VMProgram.Function[functions.size()]));
+	}
+
+	private void compileFunction(FunctionDefinition definition) {
+		function = definition;
+		counterCount = 0;
+		depth = 0;
+		maximumDepth = 0;
+		int entry = pc;
+		definition.getFunctionBody().jjtAccept(this, null);
+		if (definition == resolver.getMain())
+			emit(0, VMProgram.HALT);
+		else {
+			if (definition.hasReturn())
+				definition.getFunctionReturnExpression().jjtAccept(this, null);
+			else
+				emit(1, VMProgram.CONST, constant(null));
+			emit(-1, VMProgram.RETURN);
+		}
+		functions.add(new VMProgram.Function(definition.getName(), definition.getLevel(), definition.getParameterCount(),
+			definition.getLocalCount() + counterCount, maximumDepth, entry));
+	}
+
+	// Emit an instruction, given its effect on the depth of the operand stack.
+	private void emit(int stackEffect, int... words) {
+		if (pc + words.length > code.length) {
+			int[] larger = new int[Math.max(code.length * 2, pc + words.length)];
+			System.arraycopy(code, 0, larger, 0, pc);
+			code = larger;
+		}
+		for (int word: words)
+			code[pc++] = word;
+		depth += stackEffect;
+		if (depth > maximumDepth)
+			maximumDepth = depth;
+	}
+
+	// Emit a jump whose target is not yet known, and return the location of its target operand.
+	private int emitJump(int stackEffect, int... words) {
+		emit(stackEffect, words);
+		return pc - 1;
+	}
+
+	// Point a previously emitted jump at the current location.
+	private void patch(int location) {
+		code[location] = pc;
+	}
+
+	private int constant(Value v) {
+		constants.add(v);
+		return constants.size() - 1;
+	}
+
+	private void fail(int stackEffect, String message) {
+		messages.add(message);
+		emit(stackEffect, VMProgram.FAIL, messages.size() - 1);
+	}
+
+	// Allocate a loop counter slot in the current frame.
+	private int counter() {
+		return function.getLocalCount() + counterCount++;
+	}
+
+	// Get the ith child of a given node.
+	private static SimpleNode getChild(SimpleNode node, int childIndex) {
+		return (SimpleNode)node.jjtGetChild(childIndex);
+	}
+
+	// Get the token value of the ith child of a given node.
+	private static String getTokenOfChild(SimpleNode node, int childIndex) {
+		return getChild(node, childIndex).tokenValue;
+	}
+
+	// Lower a given child of the given node.
+	private void doChild(SimpleNode node, int childIndex) {
+		node.jjtGetChild(childIndex).jjtAccept(this, null);
+	}
+
+	// Lower all children of the given node.
+	private Object doChildren(SimpleNode node, Object data) {
+		return node.childrenAccept(this, data);
+	}
+
+	// Push the value of a variable, referenced by a given node.
+	private void load(SimpleNode node, Resolver.Variable variable) {
+		names.add((node instanceof ASTDereference) ? node.tokenValue : getTokenOfChild(node, 0));
+		if (variable.getScope() == function)
+			emit(1, VMProgram.LOAD, variable.getSlot(), names.size() - 1);
+		else
+			emit(1, VMProgram.LOAD_OUTER, variable.getLevel(), variable.getSlot(), names.size() - 1);
+	}
+
+	// Pop a value into a variable.
+	private void store(Resolver.Variable variable) {
+		if (variable.getScope() == function)
+			emit(-1, VMProgram.STORE, variable.getSlot());
+		else
+			emit(-1, VMProgram.STORE_OUTER, variable.getLevel(), variable.getSlot());
+	}
+
+	// Push the value of a variable referenced by a node.
+	private void dereference(SimpleNode node) {
+		load(node, resolver.getVariable(node));
+	}
+
+	// Invoke a function, leaving its return value on the stack.  Resolver has checked the call.
+	private void invoke(SimpleNode node) {
+		FunctionDefinition definition = resolver.getFunction(node);
+		SimpleNode arglist = getChild(node, 1);
+		for (int i = 0; i < arglist.jjtGetNumChildren(); i++)
+			doChild(arglist, i);
+		emit(1 - definition.getParameterCount(), VMProgram.CALL, functionNumbers.get(definition));
+	}
+
+	// Called if one of the following methods is missing...
+	public Object visit(SimpleNode node, Object data) {
+		throw new ExceptionSemantic(node + ": virtual machine not implemented for this node.");
+	}
+
+	// A Sili program
+	public Object visit(ASTCode node, Object data) {
+		return doChildren(node, data);
+	}
+
+	// A statement
+	public Object visit(ASTStatement node, Object data) {
+		return doChildren(node, data);
+	}
+
+	// A block
+	public Object visit(ASTBlock node, Object data) {
+		return doChildren(node, data);
+	}
+
+	// Function definition; its body is lowered separately.
+	public Object visit(ASTFnDef node, Object data) {
+		return data;
+	}
+
+	// Function definition parameter list
+	public Object visit(ASTParmlist node, Object data) {
+		return data;
+	}
+
+	// Function body
+	public Object visit(ASTFnBody node, Object data) {
+		return doChildren(node, data);
+	}
+
+	// Function return expression
+	public Object visit(ASTReturnExpression node, Object data) {
+		doChild(node, 0);
+		return data;
+	}
+
+	// Function call
+	public Object visit(ASTCall node, Object data) {
+		if (resolver.isSelfTailCall(node)) {
+			FunctionDefinition definition = resolver.getFunction(node);
+			SimpleNode arglist = getChild(node, 1);
+			for (int i = 0; i < arglist.jjtGetNumChildren(); i++)
+				doChild(arglist, i);
+			emit(-definition.getParameterCount(), VMProgram.TAIL_CALL, functionNumbers.get(definition));
+			return data;
+		}
+		invoke(node);
+		emit(-1, VMProgram.POP);
+		return data;
+	}
+
+	// Function invocation in an expression
+	public Object visit(ASTFnInvoke node, Object data) {
+		invoke(node);
+		return data;
+	}
+
+	// Function invocation argument list; lowered by invoke().
+	public Object visit(ASTArgList node, Object data) {
+		return data;
+	}
+
+	// IF
+	public Object visit(ASTIfStatement node, Object data) {
+		doChild(node, 0);
+		int toElse = emitJump(-1, VMProgram.IF_FALSE, 0);
+		doChild(node, 1);
+		if (node.ifHasElse) {
+			int toEnd = emitJump(0, VMProgram.JUMP, 0);
+			patch(toElse);
+			doChild(node, 2);
+			patch(toEnd);
+		} else
+			patch(toElse);
+		return data;
+	}
+
+	// FOR loop
+	public Object visit(ASTFor node, Object data) {
+		doChild(node, 0);
+		int test = pc;
+		doChild(node, 1);
+		int toEnd = emitJump(-1, VMProgram.FOR_FALSE, 0);
+		doChild(node, 3);
+		doChild(node, 2);
+		emit(0, VMProgram.JUMP, test);
+		patch(toEnd);
+		return data;
+	}
+
+	// While loop
+	public Object visit(ASTWhile node, Object data) {
+		int test = pc;
+		doChild(node, 0);
+		int toEnd = emitJump(-1, VMProgram.WHILE_FALSE, 0);
+		doChild(node, 1);
+		emit(0, VMProgram.JUMP, test);
+		patch(toEnd);
+		return data;
+	}
+
+	// Loop x number of times; the count is re-evaluated on every iteration, as Parser does.
+	public Object visit(ASTLoopX node, Object data) {
+		int count = counter();
+		emit(0, VMProgram.COUNTER_RESET, count);
+		int test = pc;
+		doChild(node, 0);
+		int toEnd = emitJump(-1, VMProgram.LOOP_DONE, count, 0);
+		doChild(node, 1);
+		emit(0, VMProgram.COUNTER_INC, count);
+		emit(0, VMProgram.JUMP, test);
+		patch(toEnd);
+		return data;
+	}
+
+	// TYPEREPEAT statement
+	public Object visit(ASTTypeRepeat node, Object data) {
+		int count = counter();
+		emit(0, VMProgram.COUNTER_RESET, count);
+		int test = pc;
+		doChild(node, 1);
+		int toEnd = emitJump(-1, VMProgram.REPEAT_DONE, count, 0);
+		doChild(node, 0);
+		emit(-1, VMProgram.TYPE);
+		doChild(node, 2);
+		emit(0, VMProgram.COUNTER_INC, count);
+		emit(0, VMProgram.JUMP, test);
+		patch(toEnd);
+		return data;
+	}
+
+	// Lower the arguments of a builtin statement, then the statement itself.
+	private Object builtin(SimpleNode node, int opcode) {
+		doChildren(node, null);
+		emit(-node.jjtGetNumChildren(), opcode);
+		return null;
+	}
+
+	// Quadratic equation
+	public Object visit(ASTQuad node, Object data) {
+		return builtin(node, VMProgram.QUAD);
+	}
+
+	// Line equation
+	public Object visit(ASTLine node, Object data) {
+		return builtin(node, VMProgram.LINE);
+	}
+
+	// Speed equation
+	public Object visit(ASTSpeed node, Object data) {
+		return builtin(node, VMProgram.SPEED);
+	}
+
+	// Time equation
+	public Object visit(ASTTime node, Object data) {
+		return builtin(node, VMProgram.TIME);
+	}
+
+	// Distance equation
+	public Object visit(ASTDistance node, Object data) {
+		return builtin(node, VMProgram.DISTANCE);
+	}
+
+	// Find Y from line equation
+	public Object visit(ASTPointY node, Object data) {
+		return builtin(node, VMProgram.POINTY);
+	}
+
+	// Find X from line equation
+	public Object visit(ASTPointX node, Object data) {
+		return builtin(node, VMProgram.POINTX);
+	}
+
+	// TYPE statement
+	public Object visit(ASTType node, Object data) {
+		return builtin(node, VMProgram.TYPE);
+	}
+
+	// Identifier
+	public Object visit(ASTIdentifier node, Object data) {
+		return data;
+	}
+
+	// Dereference a variable or parameter
+	public Object visit(ASTDereference node, Object data) {
+		dereference(node);
+		return data;
+	}
+
+	// Array literal
+	public Object visit(ASTArrayList node, Object data) {
+		doChildren(node, data);
+		emit(1 - node.jjtGetNumChildren(), VMProgram.ARRAY, node.jjtGetNumChildren());
+		return data;
+	}
+
+	// Array index
+	public Object visit(ASTArrayIndex node, Object data) {
+		doChild(node, 1);
+		dereference(node);
+		emit(-1, VMProgram.GET_INDEX);
+		return data;
+	}
+
+	// Assignment statement
+	public Object visit(ASTAssignment node, Object data) {
+		doChild(node, 1);
+		store(resolver.getVariable(node));
+		return data;
+	}
+
+	// Lower an assignment that applies a Value operation to the current value.
+	private Object assignOperation(SimpleNode node, int opcode) {
+		Resolver.Variable variable = resolver.getVariable(node);
+		load(node, variable);
+		doChild(node, 1);
+		emit(-1, opcode);
+		store(variable);
+		return null;
+	}
+
+	// Lower an increment or decrement by one of an integer value.
+	private Object assignStep(SimpleNode node, int opcode) {
+		doChild(node, 1);
+		emit(0, opcode);
+		store(resolver.getVariable(node));
+		return null;
+	}
+
+	// Assignment increment statement
+	public Object visit(ASTAssignmentIncrement node, Object data) {
+		return assignOperation(node, VMProgram.ADD);
+	}
+
+	// Assignment mul statement
+	public Object visit(ASTAssignmentMul node, Object data) {
+		return assignOperation(node, VMProgram.MULT);
+	}
+
+	// Assignment div statement
+	public Object visit(ASTAssignmentDiv node, Object data) {
+		return assignOperation(node, VMProgram.DIV);
+	}
+
+	// Assignment increment statement solo
+	public Object visit(ASTAssignmentIncrementSolo node, Object data) {
+		return assignStep(node, VMProgram.INCREMENT);
+	}
+
+	// Assignment decrement statement
+	public Object visit(ASTAssignmentDecrement node, Object data) {
+		return assignOperation(node, VMProgram.SUBTRACT);
+	}
+
+	// Assignment decrement statement solo
+	public Object visit(ASTAssignmentDecrementSolo node, Object data) {
+		return assignStep(node, VMProgram.DECREMENT);
+	}
+
+	// Lower an array element assignment.
+	private Object assignIndex(SimpleNode node, int opcode) {
+		doChild(node, 1);
+		doChild(node, 2);
+		dereference(node);
+		emit(-3, opcode);
+		return null;
+	}
+
+	// Array assignment statement
+	public Object visit(ASTArrayAssignment node, Object data) {
+		return assignIndex(node, VMProgram.SET_INDEX);
+	}
+
+	// Array increment
+	public Object visit(ASTArrayAssignmentIncrement node, Object data) {
+		return assignIndex(node, VMProgram.ADD_INDEX);
+	}
+
+	// Array decrement
+	public Object visit(ASTArrayAssignmentDecrement node, Object data) {
+		return assignIndex(node, VMProgram.SUB_INDEX);
+	}
+
+	// Array multiply
+	public Object visit(ASTArrayAssignmentMul node, Object data) {
+		return assignIndex(node, VMProgram.MULT_INDEX);
+	}
+
+	// Array divide
+	public Object visit(ASTArrayAssignmentDiv node, Object data) {
+		return assignIndex(node, VMProgram.DIV_INDEX);
+	}
+
+	// Lower a binary operation.
+	private Object binary(SimpleNode node, int opcode) {
+		doChild(node, 0);
+		doChild(node, 1);
+		emit(-1, opcode);
+		return null;
+	}
+
+	// Lower OR or AND, skipping the right operand if the left one decides the result.
+	private Object shortCircuit(SimpleNode node, int skip, int opcode) {
+		doChild(node, 0);
+		int toEnd = emitJump(0, skip, 0);
+		doChild(node, 1);
+		emit(-1, opcode);
+		patch(toEnd);
+		return null;
+	}
+
+	// Lower a unary operation.
+	private Object unary(SimpleNode node, int opcode) {
+		doChild(node, 0);
+		emit(0, opcode);
+		return null;
+	}
+
+	// OR.  The left operand stays on the stack as the result if it is true.
+	public Object visit(ASTOr node, Object data) {
+		return shortCircuit(node, VMProgram.OR_TRUE, VMProgram.OR);
+	}
+
+	// AND.  The left operand stays on the stack as the result if it is false.
+	public Object visit(ASTAnd node, Object data) {
+		return shortCircuit(node, VMProgram.AND_FALSE, VMProgram.AND);
+	}
+
+	// ==
+	public Object visit(ASTCompEqual node, Object data) {
+		return binary(node, VMProgram.EQ);
+	}
+
+	// !=
+	public Object visit(ASTCompNequal node, Object data) {
+		return binary(node, VMProgram.NEQ);
+	}
+
+	// >=
+	public Object visit(ASTCompGTE node, Object data) {
+		return binary(node, VMProgram.GTE);
+	}
+
+	// <=
+	public Object visit(ASTCompLTE node, Object data) {
+		return binary(node, VMProgram.LTE);
+	}
+
+	// >
+	public Object visit(ASTCompGT node, Object data) {
+		return binary(node, VMProgram.GT);
+	}
+
+	// <
+	public Object visit(ASTCompLT node, Object data) {
+		return binary(node, VMProgram.LT);
+	}
+
+	// +
+	public Object visit(ASTAdd node, Object data) {
+		return binary(node, VMProgram.ADD);
+	}
+
+	// -
+	public Object visit(ASTSubtract node, Object data) {
+		return binary(node, VMProgram.SUBTRACT);
+	}
+
+	// *
+	public Object visit(ASTTimes node, Object data) {
+		return binary(node, VMProgram.MULT);
+	}
+
+	// /
+	public Object visit(ASTDivide node, Object data) {
+		return binary(node, VMProgram.DIV);
+	}
+
+	// Power
+	public Object visit(ASTPow node, Object data) {
+		return binary(node, VMProgram.POW);
+	}
+
+	// Percent
+	public Object visit(ASTPercent node, Object data) {
+		return binary(node, VMProgram.PERCENT);
+	}
+
+	// Cos
+	public Object visit(ASTCos node, Object data) {
+		return unary(node, VMProgram.COS);
+	}
+
+	// Sin
+	public Object visit(ASTSin node, Object data) {
+		return unary(node, VMProgram.SIN);
+	}
+
+	// Tan
+	public Object visit(ASTTan node, Object data) {
+		return unary(node, VMProgram.TAN);
+	}
+
+	// Inverse cos
+	public Object visit(ASTICos node, Object data) {
+		return unary(node, VMProgram.ICOS);
+	}
+
+	// Inverse sin
+	public Object visit(ASTISin node, Object data) {
+		return unary(node, VMProgram.ISIN);
+	}
+
+	// Inverse tan
+	public Object visit(ASTITan node, Object data) {
+		return unary(node, VMProgram.ITAN);
+	}
+
+	// NOT
+	public Object visit(ASTUnaryNot node, Object data) {
+		return unary(node, VMProgram.NOT);
+	}
+
+	// + (unary)
+	public Object visit(ASTUnaryPlus node, Object data) {
+		return unary(node, VMProgram.PLUS);
+	}
+
+	// - (unary)
+	public Object visit(ASTUnaryMinus node, Object data) {
+		return unary(node, VMProgram.MINUS);
+	}
+
+	// String literal
+	public Object visit(ASTCharacter node, Object data) {
+		emit(1, VMProgram.CONST, constant(ValueString.stripDelimited(node.tokenValue)));
+		return data;
+	}
+
+	// Integer literal.  One that Parser can't parse fails where it's used, as it does in Parser.
+	public Object visit(ASTInteger node, Object data) {
+		try {
+			emit(1, VMProgram.CONST, constant(ValueInteger.valueOf(Long.parseLong(node.tokenValue))));
+		} catch (NumberFormatException e) {
+			fail(1, e.getMessage());
+		}
+		return data;
+	}
+
+	// Floating point literal
+	public Object visit(ASTRational node, Object data) {
+		try {
+			emit(1, VMProgram.CONST, constant(new ValueRational(Double.parseDouble(node.tokenValue))));
+		} catch (NumberFormatException e) {
+			fail(1, e.getMessage());
+		}
+		return data;
+	}
+
+	// True literal
+	public Object visit(ASTTrue node, Object data) {
+		emit(1, VMProgram.CONST, constant(ValueBoolean.TRUE));
+		return data;
+	}
+
+	// False literal
+	public Object visit(ASTFalse node, Object data) {
+		emit(1, VMProgram.CONST, constant(ValueBoolean.FALSE));
+		return data;
+	}
+
+}
@@ -0,0 +1,166 @@
+package uk.ac.derby.ldi.sili2.interpreter;
+
+import java.io.PrintStream;
+
+import uk.ac.derby.ldi.sili2.values.Value;
+
+/** A Sili program lowered to the instruction set of VirtualMachine.
+ *
+ * Code is a flat int array of opcodes, each followed by its operands.  The machine
+ * is stack based: expressions push their result onto the operand stack, and a
+ * function's locals occupy the bottom of its frame on the same stack.
+ */
+class VMProgram {
+
+	// Opcodes.  Operands are listed after each one.
+	static final int HALT = 0;
+	static final int CONST = 1;				// constant
+	static final int LOAD = 2;				// slot, name; fail if the slot hasn't been assigned
+	static final int STORE = 3;				// slot
+	static final int LOAD_OUTER = 4;		// level, slot, name; fail if the slot hasn't been assigned
+	static final int STORE_OUTER = 5;		// level, slot
+	static final int POP = 6;
+	static final int JUMP = 7;				// target
+	static final int IF_FALSE = 8;			// target; IF test
+	static final int FOR_FALSE = 9;			// target; FOR test
+	static final int WHILE_FALSE = 10;		// target; WHILE test
+	static final int COUNTER_RESET = 11;	// slot
+	static final int COUNTER_INC = 12;		// slot
+	static final int LOOP_DONE = 13;		// slot, target; jump if the rational count is reached
+	static final int REPEAT_DONE = 14;		// slot, target; jump if the integer count is reached
+	static final int CALL = 15;				// function
+	static final int RETURN = 16;
+	static final int FAIL = 17;				// message
+	static final int OR = 18;
+	static final int AND = 19;
+	static final int EQ = 20;
+	static final int NEQ = 21;
+	static final int GTE = 22;
+	static final int LTE = 23;
+	static final int GT = 24;
+	static final int LT = 25;
+	static final int ADD = 26;
+	static final int SUBTRACT = 27;
+	static final int MULT = 28;
+	static final int DIV = 29;
+	static final int POW = 30;
+	static final int PERCENT = 31;
+	static final int NOT = 32;
+	static final int PLUS = 33;
+	static final int MINUS = 34;
+	static final int COS = 35;
+	static final int SIN = 36;
+	static final int TAN = 37;
+	static final int ICOS = 38;
+	static final int ISIN = 39;
+	static final int ITAN = 40;
+	static final int INCREMENT = 41;
+	static final int DECREMENT = 42;
+	static final int ARRAY = 43;			// count
+	static final int GET_INDEX = 44;
+	static final int SET_INDEX = 45;
+	static final int ADD_INDEX = 46;
+	static final int SUB_INDEX = 47;
+	static final int MULT_INDEX = 48;
+	static final int DIV_INDEX = 49;
+	static final int TYPE = 50;
+	static final int QUAD = 51;
+	static final int LINE = 52;
+	static final int SPEED = 53;
+	static final int TIME = 54;
+	static final int DISTANCE = 55;
+	static final int POINTY = 56;
+	static final int POINTX = 57;
+	static final int TAIL_CALL = 58;		// function; reuse the current frame
+	static final int OR_TRUE = 59;			// target; skip the right operand of OR if the left one is true
+	static final int AND_FALSE = 60;		// target; skip the right operand of AND if the left one is false
+
+	private static final String[] opcodeNames = {
+		"halt", "const", "load", "store", "load_outer", "store_outer", "pop", "jump",
+		"if_false", "for_false", "while_false", "counter_reset", "counter_inc", "loop_done", "repeat_done",
+		"call", "return", "fail", "or", "and", "eq", "neq", "gte", "lte", "gt", "lt",
+		"add", "subtract", "mult", "div", "pow", "percent", "not", "plus", "minus",
+		"cos", "sin", "tan", "icos", "isin", "itan", "increment", "decrement",
+		"array", "get_index", "set_index", "add_index", "sub_index", "mult_index", "div_index",
+		"type", "quad", "line", "speed", "time", "distance", "pointy", "pointx",
+		"tail_call", "or_true", "and_false"
+	};
+
+	private static final int[] operandCounts = {
+		0, 1, 2, 1, 3, 2, 0, 1,
+		1, 1, 1, 1, 1, 2, 2,
+		1, 0, 1, 0, 0, 0, 0, 0, 0, 0, 0,
+		0, 0, 0, 0, 0, 0, 0, 0, 0,
+		0, 0, 0, 0, 0, 0, 0, 0,
+		1, 0, 0, 0, 0, 0, 0,
+		0, 0, 0, 0, 0, 0, 0, 0,
+		1, 1, 1
+	};
+
+	/** A function in the program. */
+	static class Function {
+		final String name;
+		final int level;
+		final int parameterCount;
+		final int frameSize;
+		final int maximumStack;
+		final int entry;
+
+		Function(String name, int level, int parameterCount, int frameSize, int maximumStack, int entry) {
+			this.name = name;
+			this.level = level;
+			this.parameterCount = parameterCount;
+			this.frameSize = frameSize;
+			this.maximumStack = maximumStack;
+			this.entry = entry;
+		}
+	}
+
+	final int[] code;
+	final Value[] constants;
+	final String[] messages;
+	final String[] names;
+	final Function[] functions;
+
+	/** Ctor.  Function 0 is the main program. */
+	VMProgram(int[] code, Value[] constants, String[] messages, String[] names, Function[] functions) {
+		this.code = code;
+		this.constants = constants;
+		this.messages = messages;
+		this.names = names;
+		this.functions = functions;
+	}
+
+	/** Get the number of operands of an opcode. */
+	static int getOperandCount(int opcode) {
+		return operandCounts[opcode];
+	}
+
+	/** Write a listing of the program. */
+	void disassemble(PrintStream out) {
+		for (int f = 0; f < functions.length; f++) {
+			Function function = functions[f];
+			int end = (f + 1 < functions.length) ? functions[f + 1].entry : code.length;
+			out.println("function " + f + " " + function.name + " level " + function.level
+				+ " parameters " + function.parameterCount + " frame " + function.frameSize
+				+ " stack " + function.maximumStack);
+			int pc = function.entry;
+			while (pc < end) {
+				int opcode = code[pc];
+				StringBuilder line = new StringBuilder(String.format("%6d  %-14s", pc, opcodeNames[opcode]));
+				for (int i = 1; i <= operandCounts[opcode]; i++)
+					line.append(' ').append(code[pc + i]);
+				if (opcode == CONST)
+					line.append("\t; ").append(constants[code[pc + 1]]);
+				else if (opcode == FAIL)
+					line.append("\t; ").append(messages[code[pc + 1]]);
+				else if (opcode == LOAD || opcode == LOAD_OUTER)
+					line.append("\t; ").append(names[code[pc + operandCounts[opcode]]]);
+				else if (opcode == CALL)
+					line.append("\t; ").append(functions[code[pc + 1]].name);
+				out.println(line);
+				pc += 1 + operandCounts[opcode];
+			}
+		}
+	}
+}
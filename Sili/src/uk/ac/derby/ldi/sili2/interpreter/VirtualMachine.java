@@ -0,0 +1,353 @@
+package uk.ac.derby.ldi.sili2.interpreter;
+
+import java.util.Arrays;
+
+import uk.ac.derby.ldi.sili2.values.*;
+
+/** Executes a VMProgram.
+ *
+ * All Sili calls run in a single dispatch loop.  Frames live on one value stack: a frame
+ * holds its function's locals and loop counters, followed by its operand stack.  Calls
+ * push a return record rather than a Java frame, and the display holds the frame pointer
+ * of the active function at each nesting level.  A self tail call reuses the caller's
+ * frame.  Recursion depth is bounded only by the stack limit given to the constructor;
+ * exceeding it raises StackOverflowError, as running out of Java stack would.
+ */
+class VirtualMachine {
+
+	private static final int maximumFunctionNesting = 64;
+	private static final int returnRecordSize = 4;
+	// Approximate size of a stack slot: a Value reference and a loop counter.
+	private static final int bytesPerSlot = 16;
+
+	private final VMProgram program;
+	private final Output output;
+	private final long maximumSlots;
+	private Value[] stack = new Value[1024];
+	private long[] counters = new long[1024];
+	private int[] returns = new int[returnRecordSize * 64];
+	private final int[] display = new int[maximumFunctionNesting];
+
+	/** Ctor.  The stack may grow to approximately the given number of bytes.  Output goes to a given Output. */
+	VirtualMachine(VMProgram program, long stackLimit, Output output) {
+		this.program = program;
+		this.output = output;
+		maximumSlots = Math.min(stackLimit / bytesPerSlot, Integer.MAX_VALUE - 8);
+	}
+
+	// Ensure the value stack can hold at least the given number of entries.
+	private void ensureStack(int size) {
+		if (size > stack.length) {
+			if (size > maximumSlots)
+				throw new StackOverflowError();
+			int length = (int)Math.min(Math.max(stack.length * 2L, size), maximumSlots);
+			stack = Arrays.copyOf(stack, length);
+			counters = Arrays.copyOf(counters, length);
+		}
+	}
+
+	// Fail a load of a variable that hasn't been assigned.
+	private Value undefined(int name) {
+		throw new ExceptionSemantic("Variable or parameter " + program.names[name] + " is undefined.");
+	}
+
+	private static boolean test(Value v, String message) {
+		if (!(v instanceof ValueBoolean))
+			throw new ExceptionSemantic(message);
+		return ((ValueBoolean)v).booleanValue();
+	}
+
+	/** Run the program. */
+	void execute() {
+		final int[] code = program.code;
+		final Value[] constants = program.constants;
+		final VMProgram.Function[] functions = program.functions;
+		ensureStack(functions[0].frameSize + functions[0].maximumStack);
+		Value[] stack = this.stack;
+		long[] counters = this.counters;
+		int pc = functions[0].entry;
+		int fp = 0;
+		int sp = functions[0].frameSize;
+		int rp = 0;
+		display[0] = 0;
+		while (true) {
+			switch (code[pc++]) {
+			case VMProgram.HALT:
+				return;
+			case VMProgram.CONST:
+				stack[sp++] = constants[code[pc++]];
+				break;
+			case VMProgram.LOAD: {
+				Value v = stack[fp + code[pc]];
+				stack[sp++] = (v != null) ? v : undefined(code[pc + 1]);
+				pc += 2;
+				break;
+			}
+			case VMProgram.STORE:
+				stack[fp + code[pc++]] = stack[--sp];
+				break;
+			case VMProgram.LOAD_OUTER: {
+				Value v = stack[display[code[pc]] + code[pc + 1]];
+				stack[sp++] = (v != null) ? v : undefined(code[pc + 2]);
+				pc += 3;
+				break;
+			}
+			case VMProgram.STORE_OUTER:
+				stack[display[code[pc]] + code[pc + 1]] = stack[--sp];
+				pc += 2;
+				break;
+			case VMProgram.POP:
+				sp--;
+				break;
+			case VMProgram.JUMP:
+				pc = code[pc];
+				break;
+			case VMProgram.IF_FALSE:
+				if (test(stack[--sp], "The test expression of an if statement must be boolean."))
+					pc++;
+				else
+					pc = code[pc];
+				break;
+			case VMProgram.FOR_FALSE:
+				if (test(stack[--sp], "The test expression of a for loop must be boolean."))
+					pc++;
+				else
+					pc = code[pc];
+				break;
+			case VMProgram.WHILE_FALSE:
+				if (((ValueBoolean)stack[--sp]).booleanValue())
+					pc++;
+				else
+					pc = code[pc];
+				break;
+			case VMProgram.COUNTER_RESET:
+				counters[fp + code[pc++]] = 0;
+				break;
+			case VMProgram.COUNTER_INC:
+				counters[fp + code[pc++]]++;
+				break;
+			case VMProgram.LOOP_DONE:
+				if ((double)counters[fp + code[pc]] == stack[--sp].doubleValue())
+					pc = code[pc + 1];
+				else
+					pc += 2;
+				break;
+			case VMProgram.REPEAT_DONE:
+				if (counters[fp + code[pc]] == stack[--sp].longValue())
+					pc = code[pc + 1];
+				else
+					pc += 2;
+				break;
+			case VMProgram.CALL: {
+				int calleeNumber = code[pc++];
+				VMProgram.Function callee = functions[calleeNumber];
+				int base = sp - callee.parameterCount;
+				if (base + callee.frameSize + callee.maximumStack > stack.length) {
+					ensureStack(base + callee.frameSize + callee.maximumStack);
+					stack = this.stack;
+					counters = this.counters;
+				}
+				if (rp + returnRecordSize > returns.length)
+					returns = Arrays.copyOf(returns, returns.length * 2);
+				returns[rp++] = pc;
+				returns[rp++] = fp;
+				returns[rp++] = callee.level;
+				returns[rp++] = display[callee.level];
+				Arrays.fill(stack, sp, base + callee.frameSize, null);
+				display[callee.level] = base;
+				fp = base;
+				sp = base + callee.frameSize;
+				pc = callee.entry;
+				break;
+			}
+			case VMProgram.TAIL_CALL: {
+				VMProgram.Function callee = functions[code[pc]];
+				sp -= callee.parameterCount;
+				System.arraycopy(stack, sp, stack, fp, callee.parameterCount);
+				Arrays.fill(stack, fp + callee.parameterCount, fp + callee.frameSize, null);
+				sp = fp + callee.frameSize;
+				pc = callee.entry;
+				break;
+			}
+			case VMProgram.RETURN: {
+				Value v = stack[--sp];
+				sp = fp;
+				display[returns[rp - 2]] = returns[rp - 1];
+				fp = returns[rp - 3];
+				pc = returns[rp - 4];
+				rp -= returnRecordSize;
+				stack[sp++] = v;
+				break;
+			}
+			case VMProgram.FAIL:
+				throw new ExceptionSemantic(program.messages[code[pc]]);
+			case VMProgram.OR_TRUE:
+				if (stack[sp - 1] instanceof ValueBoolean && stack[sp - 1].booleanValue())
+					pc = code[pc];
+				else
+					pc++;
+				break;
+			case VMProgram.AND_FALSE:
+				if (stack[sp - 1] instanceof ValueBoolean && !stack[sp - 1].booleanValue())
+					pc = code[pc];
+				else
+					pc++;
+				break;
+			case VMProgram.OR:
+				sp--;
+				stack[sp - 1] = stack[sp - 1].or(stack[sp]);
+				break;
+			case VMProgram.AND:
+				sp--;
+				stack[sp - 1] = stack[sp - 1].and(stack[sp]);
+				break;
+			case VMProgram.EQ:
+				sp--;
+				stack[sp - 1] = stack[sp - 1].eq(stack[sp]);
+				break;
+			case VMProgram.NEQ:
+				sp--;
+				stack[sp - 1] = stack[sp - 1].neq(stack[sp]);
+				break;
+			case VMProgram.GTE:
+				sp--;
+				stack[sp - 1] = stack[sp - 1].gte(stack[sp]);
+				break;
+			case VMProgram.LTE:
+				sp--;
+				stack[sp - 1] = stack[sp - 1].lte(stack[sp]);
+				break;
+			case VMProgram.GT:
+				sp--;
+				stack[sp - 1] = stack[sp - 1].gt(stack[sp]);
+				break;
+			case VMProgram.LT:
+				sp--;
+				stack[sp - 1] = stack[sp - 1].lt(stack[sp]);
+				break;
+			case VMProgram.ADD:
+				sp--;
+				stack[sp - 1] = stack[sp - 1].add(stack[sp]);
+				break;
+			case VMProgram.SUBTRACT:
+				sp--;
+				stack[sp - 1] = stack[sp - 1].subtract(stack[sp]);
+				break;
+			case VMProgram.MULT:
+				sp--;
+				stack[sp - 1] = stack[sp - 1].mult(stack[sp]);
+				break;
+			case VMProgram.DIV:
+				sp--;
+				stack[sp - 1] = stack[sp - 1].div(stack[sp]);
+				break;
+			case VMProgram.POW:
+				sp--;
+				stack[sp - 1] = stack[sp - 1].pow(stack[sp]);
+				break;
+			case VMProgram.PERCENT:
+				sp--;
+				stack[sp - 1] = stack[sp - 1].percent(stack[sp]);
+				break;
+			case VMProgram.NOT:
+				stack[sp - 1] = stack[sp - 1].not();
+				break;
+			case VMProgram.PLUS:
+				stack[sp - 1] = stack[sp - 1].unary_plus();
+				break;
+			case VMProgram.MINUS:
+				stack[sp - 1] = stack[sp - 1].unary_minus();
+				break;
+			case VMProgram.COS:
+				stack[sp - 1] = new ValueRational(stack[sp - 1].doubleValue()).cos();
+				break;
+			case VMProgram.SIN:
+				stack[sp - 1] = new ValueRational(stack[sp - 1].doubleValue()).sin();
+				break;
+			case VMProgram.TAN:
+				stack[sp - 1] = new ValueRational(stack[sp - 1].doubleValue()).tan();
+				break;
+			case VMProgram.ICOS:
+				stack[sp - 1] = new ValueRational(stack[sp - 1].doubleValue()).icos();
+				break;
+			case VMProgram.ISIN:
+				stack[sp - 1] = new ValueRational(stack[sp - 1].doubleValue()).isin();
+				break;
+			case VMProgram.ITAN:
+				stack[sp - 1] = new ValueRational(stack[sp - 1].doubleValue()).itan();
+				break;
+			case VMProgram.INCREMENT:
+				stack[sp - 1] = ValueInteger.valueOf(stack[sp - 1].longValue() + 1);
+				break;
+			case VMProgram.DECREMENT:
+				stack[sp - 1] = ValueInteger.valueOf(stack[sp - 1].longValue() - 1);
+				break;
+			case VMProgram.ARRAY: {
+				int count = code[pc++];
+				Value[] values = new Value[count];
+				sp -= count;
+				System.arraycopy(stack, sp, values, 0, count);
+				stack[sp++] = new ValueArray(values);
+				break;
+			}
+			case VMProgram.GET_INDEX:
+				sp--;
+				stack[sp - 1] = ((ValueArray)stack[sp]).getIndex((int)stack[sp - 1].longValue());
+				break;
+			case VMProgram.SET_INDEX:
+				sp -= 3;
+				((ValueArray)stack[sp + 2]).setIndex((int)stack[sp].longValue(), stack[sp + 1]);
+				break;
+			case VMProgram.ADD_INDEX:
+				sp -= 3;
+				((ValueArray)stack[sp + 2]).addIndex((int)stack[sp].longValue(), stack[sp + 1]);
+				break;
+			case VMProgram.SUB_INDEX:
+				sp -= 3;
+				((ValueArray)stack[sp + 2]).subIndex((int)stack[sp].longValue(), stack[sp + 1]);
+				break;
+			case VMProgram.MULT_INDEX:
+				sp -= 3;
+				((ValueArray)stack[sp + 2]).multIndex((int)stack[sp].longValue(), stack[sp + 1]);
+				break;
+			case VMProgram.DIV_INDEX:
+				sp -= 3;
+				((ValueArray)stack[sp + 2]).divIndex((int)stack[sp].longValue(), stack[sp + 1]);
+				break;
+			case VMProgram.TYPE:
+				CompiledCode.type(output, stack[--sp]);
+				break;
+			case VMProgram.QUAD:
+				sp -= 3;
+				CompiledCode.quad(output, stack[sp], stack[sp + 1], stack[sp + 2]);
+				break;
+			case VMProgram.LINE:
+				sp -= 4;
+				CompiledCode.line(output, stack[sp], stack[sp + 1], stack[sp + 2], stack[sp + 3]);
+				break;
+			case VMProgram.SPEED:
+				sp -= 2;
+				CompiledCode.speed(output, stack[sp], stack[sp + 1]);
+				break;
+			case VMProgram.TIME:
+				sp -= 2;
+				CompiledCode.time(output, stack[sp], stack[sp + 1]);
+				break;
+			case VMProgram.DISTANCE:
+				sp -= 2;
+				CompiledCode.distance(output, stack[sp], stack[sp + 1]);
+				break;
+			case VMProgram.POINTY:
+				sp -= 3;
+				CompiledCode.pointY(output, stack[sp], stack[sp + 1], stack[sp + 2]);
+				break;
+			case VMProgram.POINTX:
+				sp -= 3;
+				CompiledCode.pointX(output, stack[sp], stack[sp + 1], stack[sp + 2]);
+				break;
+			default:
+				throw new ExceptionSemantic("Invalid instruction " + code[pc - 1] + " at " + (pc - 1) + ".");
+			}
+		}
+	}
+}
@@ -28,7 +28,7 @@ public abstract class ValueAbstract implements Value {
 		throw new ExceptionSemantic("Cannot perform ^ on " + getName() + " and " + v.getName());
 	}
 	
-	public Value percentage(Value v) {
+	public Value percent(Value v) {
 		throw new ExceptionSemantic("Cannot perform % on " + getName() + " and " + v.getName());
 	}
 	
@@ -98,31 +98,31 @@ public abstract class ValueAbstract implements Value {
 
 	/** Test this value and another for equality. */
 	public Value eq(Value v) {
-		return new ValueBoolean(compare(v) == 0);
+		return ValueBoolean.valueOf(compare(v) == 0);
 	}
 	
 	/** Test this value and another for non-equality. */
 	public Value neq(Value v) {
-		return new ValueBoolean(compare(v) != 0);
+		return ValueBoolean.valueOf(compare(v) != 0);
 	}
 	
 	/** Test this value and another for >= */
 	public Value gte(Value v) {
-		return new ValueBoolean(compare(v) >= 0);
+		return ValueBoolean.valueOf(compare(v) >= 0);
 	}
 	
 	/** Test this value and another for <= */
 	public Value lte(Value v) {
-		return new ValueBoolean(compare(v) <= 0);
+		return ValueBoolean.valueOf(compare(v) <= 0);
 	}
 	
 	/** Test this value and another for > */
 	public Value gt(Value v) {
-		return new ValueBoolean(compare(v) > 0);
+		return ValueBoolean.valueOf(compare(v) > 0);
 	}
 	
 	/** Test this value and another for < */	
 	public Value lt(Value v) {
-		return new ValueBoolean(compare(v) < 0);
+		return ValueBoolean.valueOf(compare(v) < 0);
 	}
 }
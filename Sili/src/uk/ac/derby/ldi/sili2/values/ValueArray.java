@@ -1,49 +1,165 @@
 package uk.ac.derby.ldi.sili2.values;
 
+import uk.ac.derby.ldi.sili2.interpreter.ExceptionSemantic;
+
+/** An array of values.
+ *
+ * An array holding only integers is stored as a long[], and one holding only rationals as a double[],
+ * so their elements aren't boxed.  Storing a value of any other type promotes the array, in place, to
+ * a generic Value[].  Integers and rationals are never stored together in a primitive array, so every
+ * element reads back as the type it was stored as.
+ */
 public class ValueArray extends ValueAbstract {
 
-	private Value[] internalValue;
-	
+	private long[] longs = null;
+	private double[] doubles = null;
+	private Value[] internalValue = null;
+
 	public ValueArray(Value[] b) {
-		internalValue = b;
+		if (allInstancesOf(b, ValueInteger.class)) {
+			longs = new long[b.length];
+			for (int i = 0; i < b.length; i++)
+				longs[i] = b[i].longValue();
+		} else if (allInstancesOf(b, ValueRational.class)) {
+			doubles = new double[b.length];
+			for (int i = 0; i < b.length; i++)
+				doubles[i] = b[i].doubleValue();
+		} else
+			internalValue = b;
+	}
+
+	private static boolean allInstancesOf(Value[] values, Class<?> type) {
+		if (values.length == 0)
+			return false;
+		for (Value v: values)
+			if (v == null || v.getClass() != type)
+				return false;
+		return true;
 	}
-	
+
+	// Convert to a generic Value[] representation.
+	private void promote() {
+		if (longs != null) {
+			internalValue = new Value[longs.length];
+			for (int i = 0; i < longs.length; i++)
+				internalValue[i] = ValueInteger.valueOf(longs[i]);
+			longs = null;
+		} else if (doubles != null) {
+			internalValue = new Value[doubles.length];
+			for (int i = 0; i < doubles.length; i++)
+				internalValue[i] = new ValueRational(doubles[i]);
+			doubles = null;
+		}
+	}
+
 	public String getName() {
 		return "array";
 	}
-	
+
+	public int compare(Value v) {
+		throw new ExceptionSemantic("Cannot compare " + getName() + " and " + v.getName());
+	}
+
+	/** Get the elements of this array.  Converts the array to its generic representation. */
 	public Value[] getValues() {
+		promote();
 		return internalValue;
 	}
 
+	/** Get the number of elements. */
+	public int length() {
+		if (longs != null)
+			return longs.length;
+		if (doubles != null)
+			return doubles.length;
+		return internalValue.length;
+	}
+
 	public Value getIndex(int index) {
+		if (longs != null)
+			return ValueInteger.valueOf(longs[index]);
+		if (doubles != null)
+			return new ValueRational(doubles[index]);
 		return internalValue[index];
 	}
-	
+
 	public void setIndex(int index, Value v) {
+		if (longs != null) {
+			if (v instanceof ValueInteger) {
+				longs[index] = v.longValue();
+				return;
+			}
+			checkIndex(index);
+			promote();
+		} else if (doubles != null) {
+			if (v instanceof ValueRational) {
+				doubles[index] = v.doubleValue();
+				return;
+			}
+			checkIndex(index);
+			promote();
+		}
 		internalValue[index] = v;
 	}
-	
+
+	// Fail on an out of range index before promoting, as the store itself would.
+	private void checkIndex(int index) {
+		if (index < 0 || index >= length())
+			throw new ArrayIndexOutOfBoundsException("Index " + index + " out of bounds for length " + length());
+	}
+
+	// Compound operations on primitive arrays behave as ValueInteger and ValueRational do:
+	// an integer element combines with the other operand's longValue(), and a rational
+	// element with its doubleValue(), so the element keeps its type.
+
 	public void addIndex(int index, Value v) {
-		internalValue[index] = internalValue[index].add(v);
+		if (longs != null)
+			longs[index] = longs[index] + v.longValue();
+		else if (doubles != null)
+			doubles[index] = doubles[index] + v.doubleValue();
+		else
+			internalValue[index] = internalValue[index].add(v);
 	}
-	
+
 	public void subIndex(int index, Value v) {
-		internalValue[index] = internalValue[index].subtract(v);
+		if (longs != null)
+			longs[index] = longs[index] - v.longValue();
+		else if (doubles != null)
+			doubles[index] = doubles[index] - v.doubleValue();
+		else
+			internalValue[index] = internalValue[index].subtract(v);
 	}
-	
+
 	public void multIndex(int index, Value v) {
-		internalValue[index] = internalValue[index].mult(v);
+		if (longs != null)
+			longs[index] = longs[index] * v.longValue();
+		else if (doubles != null)
+			doubles[index] = doubles[index] * v.doubleValue();
+		else
+			internalValue[index] = internalValue[index].mult(v);
 	}
-	
+
 	public void divIndex(int index, Value v) {
-		internalValue[index] = internalValue[index].div(v);
+		if (longs != null)
+			longs[index] = longs[index] / v.longValue();
+		else if (doubles != null)
+			doubles[index] = doubles[index] / v.doubleValue();
+		else
+			internalValue[index] = internalValue[index].div(v);
 	}
-	
+
+	private double doubleAt(int index) {
+		if (longs != null)
+			return (double)longs[index];
+		if (doubles != null)
+			return doubles[index];
+		return internalValue[index].doubleValue();
+	}
+
 	public int compare(int index, Value v) {
-		if (internalValue[index].doubleValue() == v.doubleValue())
+		if (doubleAt(index) == v.doubleValue())
 			return 0;
-		else if (internalValue[index].doubleValue() > v.doubleValue())
+		else if (doubleAt(index) > v.doubleValue())
 			return 1;
 		else
 			return -1;
@@ -2,8 +2,19 @@ package uk.ac.derby.ldi.sili2.values;
 
 public class ValueBoolean extends ValueAbstract {
 
+	/** Canonical true. */
+	public static final ValueBoolean TRUE = new ValueBoolean(true);
+	
+	/** Canonical false. */
+	public static final ValueBoolean FALSE = new ValueBoolean(false);
+	
 	private boolean internalValue;
 	
+	/** Return the canonical ValueBoolean for a given value. */
+	public static ValueBoolean valueOf(boolean b) {
+		return (b) ? TRUE : FALSE;
+	}
+	
 	public ValueBoolean(boolean b) {
 		internalValue = b;
 	}
@@ -23,15 +34,15 @@ public class ValueBoolean extends ValueAbstract {
 	}
 	
 	public Value or(Value v) {
-		return new ValueBoolean(internalValue || v.booleanValue());
+		return valueOf(internalValue || v.booleanValue());
 	}
 
 	public Value and(Value v) {
-		return new ValueBoolean(internalValue && v.booleanValue());
+		return valueOf(internalValue && v.booleanValue());
 	}
 
 	public Value not() {
-		return new ValueBoolean(!internalValue);
+		return valueOf(!internalValue);
 	}
 
 	public int compare(Value v) {
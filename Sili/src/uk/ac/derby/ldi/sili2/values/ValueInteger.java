@@ -2,8 +2,24 @@ package uk.ac.derby.ldi.sili2.values;
 
 public class ValueInteger extends ValueAbstract {
 
+	private static final long cacheLow = -128;
+	private static final long cacheHigh = 1023;
+	private static final ValueInteger[] cache = new ValueInteger[(int)(cacheHigh - cacheLow + 1)];
+	
+	static {
+		for (int i = 0; i < cache.length; i++)
+			cache[i] = new ValueInteger(cacheLow + i);
+	}
+	
 	private long internalValue;
 	
+	/** Return a ValueInteger for a given value.  Small integers are shared rather than allocated. */
+	public static ValueInteger valueOf(long b) {
+		if (b >= cacheLow && b <= cacheHigh)
+			return cache[(int)(b - cacheLow)];
+		return new ValueInteger(b);
+	}
+	
 	public ValueInteger(long b) {
 		internalValue = b;
 	}
@@ -37,67 +53,67 @@ public class ValueInteger extends ValueAbstract {
 	}
 	
 	public Value add(Value v) {
-		return new ValueInteger(internalValue + v.longValue());
+		return valueOf(internalValue + v.longValue());
 	}
 
 	public Value subtract(Value v) {
-		return new ValueInteger(internalValue - v.longValue());
+		return valueOf(internalValue - v.longValue());
 	}
 
 	public Value mult(Value v) {
-		return new ValueInteger(internalValue * v.longValue());
+		return valueOf(internalValue * v.longValue());
 	}
 
 	public Value div(Value v) {
-		return new ValueInteger(internalValue / v.longValue());
+		return valueOf(internalValue / v.longValue());
 	}
 	
 	public Value pow(Value v) {
 		int i = (int)Math.pow(internalValue, v.longValue());
-		return new ValueInteger(i);
+		return valueOf(i);
 	}
 	
 	public Value percent(Value v) {
 		int i = (int)(internalValue * v.longValue()) / 100;
-		return new ValueInteger(i);
+		return valueOf(i);
 	}
 	
 	public Value cos() {
 		double i = Math.cos(Math.toRadians(internalValue));
-		return new ValueInteger((int)i);
+		return valueOf((int)i);
 	}
 	
 	public Value sin() {
 		double i = Math.sin(Math.toRadians(internalValue));
-		return new ValueInteger((int)i);
+		return valueOf((int)i);
 	}
 	
 	public Value tan() {
 		double i = Math.tan(Math.toRadians(internalValue));
-		return new ValueInteger((int)i);
+		return valueOf((int)i);
 	}
 	
 	public Value icos() {
 		double i = Math.toDegrees(Math.acos(internalValue));
-		return new ValueInteger((int)i);
+		return valueOf((int)i);
 	}
 	
 	public Value isin() {
 		double i = Math.toDegrees(Math.asin(internalValue));
-		return new ValueInteger((int)i);
+		return valueOf((int)i);
 	}
 	
 	public Value itan() {
 		double i = Math.toDegrees(Math.atan(internalValue));
-		return new ValueInteger((int)i);
+		return valueOf((int)i);
 	}
 
 	public Value unary_plus() {
-		return new ValueInteger(internalValue);
+		return valueOf(internalValue);
 	}
 
 	public Value unary_minus() {
-		return new ValueInteger(-internalValue);
+		return valueOf(-internalValue);
 	}
 	
 	public String toString() {